@@ -42,17 +42,19 @@ public class HK2Context extends InMemoryContext {
 		
 		Object obj = lookupImpl(name);
 		if(obj == null) {
+			// Services are found without the monitor, handles are not bound yet, so they are just dropped 
+			// when other thread has registered the name.
+			final List<ServiceHandle<?>> services = 
+					serviceLocator.getAllServiceHandles(new NamedImpl(name.toString()));	
+			if(services.size() > 1) {
+				throw new NamingException("Multiple services found for: " + name.toString());
+			}
+			// The monitor of InMemoryContext guards only the bindings, so registration is coordinated 
+			// with its own changes.
 			synchronized (this) {
 				obj = super.lookupImpl(name);
-				if(obj == null) {
-					final List<ServiceHandle<?>> services = 
-							serviceLocator.getAllServiceHandles(new NamedImpl(name.toString()));	
-					if(services.size() > 1) {
-						throw new NamingException("Multiple services found for: " + name.toString());
-					}
-					if(services.size() == 1) {
-						add(name, services.get(0), true);
-					}
+				if(obj == null && services.size() == 1) {
+					add(name, services.get(0), true);
 				}
 			}
 		}
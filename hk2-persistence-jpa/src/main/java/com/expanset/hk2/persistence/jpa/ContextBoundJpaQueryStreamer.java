@@ -0,0 +1,244 @@
+package com.expanset.hk2.persistence.jpa;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Implementation of {@link JpaQueryStreamer}, that is bound to the persistence context.
+ * <p>JPA 2.2 Query.getResultStream() is used when it is available (JDBC cursor with the fetch size), 
+ * otherwise results of ordered queries are fetched by pages. Pages of the query without deterministic 
+ * order may skip or repeat rows, so results of other queries are fetched at once.</p>
+ */
+@ThreadSafe
+public class ContextBoundJpaQueryStreamer implements JpaQueryStreamer {
+
+	private final static Method getResultStream = findGetResultStream();
+
+	protected final EntityManager entityManager;
+
+	protected final boolean resultStream;
+
+	private final Set<ResultIterator<?>> openStreams = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	/**
+	 * @param entityManager Entity manager of the persistence context.
+	 */
+	public ContextBoundJpaQueryStreamer(@Nonnull EntityManager entityManager) {
+		this(entityManager, true);
+	}
+
+	/**
+	 * @param entityManager Entity manager of the persistence context.
+	 * @param resultStream Use JPA 2.2 result stream, if it is available.
+	 */
+	protected ContextBoundJpaQueryStreamer(@Nonnull EntityManager entityManager, boolean resultStream) {
+		Validate.notNull(entityManager, "entityManager");
+
+		this.entityManager = entityManager;
+		this.resultStream = resultStream && getResultStream != null;
+	}
+
+	@Override
+	public <T> Stream<T> stream(@Nonnull TypedQuery<T> query, int fetchSize, int clearInterval, boolean ordered) {
+		Validate.notNull(query, "query");
+		Validate.isTrue(fetchSize > 0, "fetchSize");
+		Validate.isTrue(clearInterval >= 0, "clearInterval");
+
+		query.setHint("org.hibernate.fetchSize", fetchSize);
+		query.setHint("eclipselink.jdbc.fetch-size", fetchSize);
+
+		final ResultIterator<T> iterator = new ResultIterator<>(
+				query, fetchSize, clearInterval, ordered, entityManager.getTransaction().isActive());
+		openStreams.add(iterator);
+		return StreamSupport
+				.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(iterator::close);
+	}
+
+	/**
+	 * Closes streams, that were opened in the transaction.
+	 */
+	public void closeTransactionStreams() {
+		for(ResultIterator<?> iterator : openStreams) {
+			if(iterator.inTransaction) {
+				iterator.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes all open streams.
+	 */
+	public void closeAll() {
+		for(ResultIterator<?> iterator : openStreams) {
+			iterator.close();
+		}
+	}
+
+	/**
+	 * @return Count of open streams.
+	 */
+	public int getOpenStreamsCount() {
+		return openStreams.size();
+	}
+
+	private static Method findGetResultStream() {
+		try {
+			return Query.class.getMethod("getResultStream");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Stream<T> getResultStream(TypedQuery<T> query) {
+		try {
+			return (Stream<T>)getResultStream.invoke(query);
+		} catch (InvocationTargetException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			if(e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final class ResultIterator<T> implements Iterator<T>, AutoCloseable {
+
+		private final TypedQuery<T> query;
+
+		private final int fetchSize;
+
+		private final int clearInterval;
+
+		private final boolean ordered;
+
+		private final boolean inTransaction;
+
+		private Stream<T> cursor;
+
+		private Iterator<T> current;
+
+		private int offset;
+
+		private int remaining;
+
+		private boolean lastPage;
+
+		private long returned;
+
+		private volatile boolean closed;
+
+		/**
+		 * All results were returned, the iterator was closed by itself.
+		 */
+		private volatile boolean exhausted;
+
+		public ResultIterator(
+				TypedQuery<T> query, int fetchSize, int clearInterval, boolean ordered, boolean inTransaction) {
+			this.query = query;
+			this.fetchSize = fetchSize;
+			this.clearInterval = clearInterval;
+			this.ordered = ordered;
+			this.inTransaction = inTransaction;
+			if(resultStream) {
+				this.cursor = getResultStream(query);
+				this.current = cursor.iterator();
+				this.lastPage = true;
+			} else {
+				this.offset = query.getFirstResult();
+				this.remaining = query.getMaxResults();
+				this.lastPage = remaining <= 0;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if(exhausted) {
+				return false;
+			}
+			if(closed) {
+				throw new IllegalStateException("Stream is closed");
+			}
+
+			if(current != null && current.hasNext()) {
+				return true;
+			}
+			if(lastPage) {
+				exhausted = true;
+				close();
+				return false;
+			}
+
+			fetchPage();
+			return current.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			if(clearInterval > 0 && returned > 0 && returned % clearInterval == 0) {
+				entityManager.clear();
+			}
+			returned++;
+			return current.next();
+		}
+
+		@Override
+		public void close() {
+			if(closed) {
+				return;
+			}
+
+			closed = true;
+			openStreams.remove(this);
+			current = null;
+			if(cursor != null) {
+				cursor.close();
+			}
+		}
+
+		private void fetchPage() {
+			if(!ordered) {
+				current = query.getResultList().iterator();
+				lastPage = true;
+				return;
+			}
+
+			final int pageSize = Math.min(fetchSize, remaining);
+			final List<T> page = query
+					.setFirstResult(offset)
+					.setMaxResults(pageSize)
+					.getResultList();
+			offset += page.size();
+			remaining -= page.size();
+			lastPage = page.size() < pageSize || remaining == 0;
+			current = page.iterator();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package com.expanset.hk2.persistence.jpa;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.lang3.reflect.MethodUtils;
+
+import com.expanset.common.errors.ExceptionAdapter;
+
+/**
+ * Writes large count of entities with bounded memory usage. Entity manager is flushed and cleared
+ * every {@link #setBatchSize(int)} entities, so written entities are detached.
+ * <p>JDBC batch size of Hibernate session (5.2 and later) is set to the batch size during writing. 
+ * Ordering of inserts and updates and EclipseLink batch writing are settings of the persistence unit.</p>
+ * <p>Can be received by {@link JpaPersistenceContextWrapper#unwrap(Class)} or created for the injected entity manager:</p>
+ * <pre>
+ * {@literal @}PersistenceContext(unitName = "mydb")
+ * private EntityManager entityManager;
+ * ...
+ * transactionManager.begin();
+ * new JpaBulkWriter(entityManager)
+ *	.setBatchSize(100)
+ *	.setCommitInterval(10000, transactionManager)
+ *	.persist(users);
+ * transactionManager.commit();
+ * </pre>
+ */
+@NotThreadSafe
+public class JpaBulkWriter {
+
+	/**
+	 * Default count of entities, that are written by one flush.
+	 */
+	public final static int DEFAULT_BATCH_SIZE = 50;
+
+	protected final EntityManager entityManager;
+
+	protected int batchSize = DEFAULT_BATCH_SIZE;
+
+	protected int commitInterval;
+
+	protected TransactionManager transactionManager;
+
+	protected final Map<String, Object> hints = new LinkedHashMap<>();
+
+	/**
+	 * @param entityManager Entity manager to write entities.
+	 */
+	public JpaBulkWriter(@Nonnull EntityManager entityManager) {
+		Validate.notNull(entityManager, "entityManager");
+
+		this.entityManager = entityManager;
+	}
+
+	/**
+	 * @param batchSize Count of entities, that are written by one flush. It is used as JDBC batch size of the session.
+	 * @return This writer.
+	 */
+	public JpaBulkWriter setBatchSize(int batchSize) {
+		Validate.isTrue(batchSize > 0, "batchSize");
+
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Commits the current transaction by the transaction manager and begins new one every commitInterval entities.
+	 * Committed chunks are not rolled back if the transaction is rolled back later.
+	 * @param commitInterval Count of entities in one chunk, 0 - not used.
+	 * @param transactionManager Manager of the current transaction.
+	 * @return This writer.
+	 */
+	public JpaBulkWriter setCommitInterval(int commitInterval, @Nonnull TransactionManager transactionManager) {
+		Validate.isTrue(commitInterval >= 0, "commitInterval");
+		Validate.notNull(transactionManager, "transactionManager");
+
+		this.commitInterval = commitInterval;
+		this.transactionManager = transactionManager;
+		return this;
+	}
+
+	/**
+	 * Sets property of the entity manager, that is used during writing. Previous value of the property
+	 * is restored after writing, property without previous value is kept.
+	 * @param name Property name.
+	 * @param value Property value.
+	 * @return This writer.
+	 */
+	public JpaBulkWriter setHint(@Nonnull String name, @Nonnull Object value) {
+		Validate.notNull(name, "name");
+		Validate.notNull(value, "value");
+
+		hints.put(name, value);
+		return this;
+	}
+
+	/**
+	 * Persists new entities.
+	 * @param entities Entities to persist.
+	 * @return Count of persisted entities.
+	 */
+	public long persist(@Nonnull Stream<?> entities) {
+		Validate.notNull(entities, "entities");
+
+		return write(entities.iterator(), false);
+	}
+
+	/**
+	 * Persists new entities.
+	 * @param entities Entities to persist.
+	 * @return Count of persisted entities.
+	 */
+	public long persist(@Nonnull Iterable<?> entities) {
+		Validate.notNull(entities, "entities");
+
+		return write(entities.iterator(), false);
+	}
+
+	/**
+	 * Merges entities.
+	 * @param entities Entities to merge.
+	 * @return Count of merged entities.
+	 */
+	public long merge(@Nonnull Stream<?> entities) {
+		Validate.notNull(entities, "entities");
+
+		return write(entities.iterator(), true);
+	}
+
+	/**
+	 * Merges entities.
+	 * @param entities Entities to merge.
+	 * @return Count of merged entities.
+	 */
+	public long merge(@Nonnull Iterable<?> entities) {
+		Validate.notNull(entities, "entities");
+
+		return write(entities.iterator(), true);
+	}
+
+	protected long write(Iterator<?> entities, boolean merge) {
+		final FlushModeType flushMode = entityManager.getFlushMode();
+		entityManager.setFlushMode(FlushModeType.COMMIT);
+		final Map<String, Object> previousHints = applyHints();
+		final Object session = entityManager.getDelegate();
+		final Method setJdbcBatchSize = session != null ? 
+				MethodUtils.getAccessibleMethod(session.getClass(), "setJdbcBatchSize", Integer.class) : null;
+		final Object jdbcBatchSize = setJdbcBatchSize != null ? 
+				ExceptionAdapter.get(() -> MethodUtils.invokeMethod(session, "getJdbcBatchSize")) : null;
+		if(setJdbcBatchSize != null) {
+			ExceptionAdapter.run(() -> setJdbcBatchSize.invoke(session, batchSize));
+		}
+
+		long count = 0;
+		try {
+			while(entities.hasNext()) {
+				final Object entity = entities.next();
+				if(merge) {
+					entityManager.merge(entity);
+				} else {
+					entityManager.persist(entity);
+				}
+				count++;
+
+				if(commitInterval > 0 && count % commitInterval == 0) {
+					commitChunk();
+				} else if(count % batchSize == 0) {
+					flush();
+				}
+			}
+			if(count % batchSize != 0) {
+				flush();
+			}
+		} finally {
+			entityManager.setFlushMode(flushMode);
+			if(setJdbcBatchSize != null) {
+				ExceptionAdapter.run(() -> setJdbcBatchSize.invoke(session, jdbcBatchSize));
+			}
+			for(Entry<String, Object> hint : previousHints.entrySet()) {
+				entityManager.setProperty(hint.getKey(), hint.getValue());
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Sets hints to the entity manager.
+	 * @return Previous values of hints.
+	 */
+	protected Map<String, Object> applyHints() {
+		if(hints.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		
+		final Map<String, Object> properties = entityManager.getProperties();
+		final Map<String, Object> result = new HashMap<>();
+		for(Entry<String, Object> hint : hints.entrySet()) {
+			final Object previous = properties.get(hint.getKey());
+			if(previous != null) {
+				result.put(hint.getKey(), previous);
+			}
+			entityManager.setProperty(hint.getKey(), hint.getValue());
+		}
+		return result;
+	}
+
+	protected void flush() {
+		entityManager.flush();
+		entityManager.clear();
+	}
+
+	protected void commitChunk() {
+		flush();
+
+		final int status = ExceptionAdapter.get(transactionManager::getStatus);
+		if(status == Status.STATUS_NO_TRANSACTION) {
+			return;
+		}
+		if(status != Status.STATUS_ACTIVE) {
+			throw new IllegalStateException("Transaction is marked for rollback");
+		}
+
+		ExceptionAdapter.run(transactionManager::commit);
+		ExceptionAdapter.run(transactionManager::begin);
+	}
+}
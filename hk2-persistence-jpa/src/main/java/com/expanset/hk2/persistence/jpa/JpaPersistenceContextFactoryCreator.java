@@ -6,8 +6,11 @@ import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 
 import org.apache.commons.lang.Validate;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.text.StrSubstitutor;
 import org.jvnet.hk2.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.expanset.hk2.persistence.PersistenceContextFactoryKey;
 import com.expanset.hk2.persistence.PersistenceContextFactoryWrapper;
@@ -21,6 +24,8 @@ public class JpaPersistenceContextFactoryCreator implements PersistenceContextFa
 	
 	private final static String JPA_URL_PROPERTY = "javax.persistence.jdbc.url";
 	
+	private final static Logger log = LoggerFactory.getLogger(JpaPersistenceContextFactoryCreator.class);
+	
 	@Override
 	public PersistenceContextFactoryWrapper create(
 			PersistenceContextFactoryKey key, 
@@ -43,4 +48,26 @@ public class JpaPersistenceContextFactoryCreator implements PersistenceContextFa
 		
 		return new JpaPersistenceContextFactoryWrapper(entityManagerFactory);
 	}
+
+	/**
+	 * Returns the key with the default unit name ({@link JpaPersistenceBinder#DEFAULT_UNIT_NAME}),
+	 * null if the default unit name is not set (the factory is not warmed up then).
+	 */
+	@Override
+	public PersistenceContextFactoryKey createKey(
+			String factoryName, 
+			Map<String, String> factoryProperties,
+			Map<String, String> commonProperties) {
+		Validate.notNull(factoryName, "factoryName");
+		
+		final String unitName = 
+				commonProperties != null ? commonProperties.get(JpaPersistenceBinder.DEFAULT_UNIT_NAME) : null;
+		if(StringUtils.isEmpty(unitName)) {
+			log.warn("Factory {} cannot be warmed up, common property {} is not set", 
+					StringUtils.isEmpty(factoryName) ? "(default)" : factoryName, JpaPersistenceBinder.DEFAULT_UNIT_NAME);
+			return null;
+		}
+		
+		return new JpaPersistenceContextFactoryKey(factoryName, unitName);
+	}
 }
@@ -50,9 +50,9 @@ public class JpaPersistenceContextFactoryKey extends PersistenceContextFactoryKe
 	}	
 
 	@Override
-	public int hashCode() {
+	protected int computeHashCode() {
 		final int prime = 31;
-		int result = super.hashCode();
+		int result = super.computeHashCode();
 		result = prime * result + ((unitName == null) ? 0 : unitName.hashCode());
 		return result;
 	}
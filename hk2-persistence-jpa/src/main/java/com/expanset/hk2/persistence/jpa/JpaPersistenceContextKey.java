@@ -38,7 +38,7 @@ public class JpaPersistenceContextKey extends PersistenceContextKey {
 		super(new JpaPersistenceContextFactoryKey(factoryName, unitName));
 		
 		if(properties != null) {
-			this.properties = new HashMap<>(properties);
+			this.properties = Collections.unmodifiableMap(new HashMap<>(properties));
 		} else {
 			this.properties = null;
 		}
@@ -48,7 +48,7 @@ public class JpaPersistenceContextKey extends PersistenceContextKey {
 	 * @return Persistence manager additional properties.
 	 */
 	public Map<String, String> getProperties() {
-		return properties != null ? Collections.unmodifiableMap(properties) : Collections.emptyMap();
+		return properties != null ? properties : Collections.emptyMap();
 	}
 
 	@Override
@@ -59,11 +59,10 @@ public class JpaPersistenceContextKey extends PersistenceContextKey {
 				properties);
 	}
 	
-	
 	@Override
-	public int hashCode() {
+	protected int computeHashCode() {
 		final int prime = 31;
-		int result = super.hashCode();
+		int result = super.computeHashCode();
 		result = prime * result + ((properties == null) ? 0 : properties.hashCode());
 		
 		return result;
@@ -1,7 +1,10 @@
 package com.expanset.hk2.persistence.jpa;
 
+import java.util.AbstractMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -20,7 +23,8 @@ import com.expanset.hk2.persistence.PersistenceContextFactoryAccessor;
 import com.expanset.hk2.persistence.PersistenceSessionManager;
 
 /**
- * Support of {@link PersistenceContext} annotation for {@link EntityManager} injecting.
+ * Support of {@link PersistenceContext} annotation for {@link EntityManager} and {@link JpaQueryStreamer} injecting.
+ * Persistence context keys are created once for each injection point.
  */
 @Service
 public class JpaPersistenceContextResolver implements InjectionResolver<PersistenceContext>  {
@@ -31,8 +35,49 @@ public class JpaPersistenceContextResolver implements InjectionResolver<Persiste
 	@Inject
 	protected Provider<PersistenceContextFactoryAccessor> persistenceContextFactoryAccessor; 
 	
+	/**
+	 * Keys of the fields and parameters of the methods, that were injected.
+	 */
+	protected final ConcurrentMap<Object, InjectionPointKey> injectionPointKeys = 
+			new ConcurrentHashMap<>();
+	
 	@Override
 	public Object resolve(Injectee injectee, ServiceHandle<?> root) {
+		final String defaultUnitName = 
+				persistenceContextFactoryAccessor.get().getCommonProperty(JpaPersistenceBinder.DEFAULT_UNIT_NAME);
+		final Object injectionPoint = getInjectionPoint(injectee);
+		InjectionPointKey injectionPointKey = injectionPointKeys.get(injectionPoint);
+		if(injectionPointKey == null || !injectionPointKey.isValid(defaultUnitName)) {
+			injectionPointKey = new InjectionPointKey(createKey(injectee, defaultUnitName), defaultUnitName);
+			injectionPointKeys.put(injectionPoint, injectionPointKey);
+		}
+		final JpaPersistenceContextKey key = injectionPointKey.getKey();
+		
+		if(ReflectionHelper.getRawClass(injectee.getRequiredType()) == JpaQueryStreamer.class) {
+			return persistenceSessionManager.get().getPersistenceContext(
+					key, 
+					JpaQueryStreamer.class, 
+					injectee.getInjecteeDescriptor().getScope());
+		}
+		
+		final EntityManager entityManager = persistenceSessionManager.get().getPersistenceContext(
+				key, 
+				EntityManager.class, 
+				injectee.getInjecteeDescriptor().getScope());
+		return entityManager;		
+	}
+
+	@Override
+	public boolean isConstructorParameterIndicator() {
+		return false;
+	}
+
+	@Override
+	public boolean isMethodParameterIndicator() {
+		return false;
+	}
+
+	protected JpaPersistenceContextKey createKey(Injectee injectee, String defaultUnitName) {
 		String factoryName = ReflectionHelper.getNameFromAllQualifiers(
 				injectee.getRequiredQualifiers(), injectee.getParent());
 		
@@ -45,7 +90,7 @@ public class JpaPersistenceContextResolver implements InjectionResolver<Persiste
 
 		String unitName = persistenceContext.unitName();
 		if(StringUtils.isEmpty(unitName)) {
-			unitName = persistenceContextFactoryAccessor.get().getCommonProperty(JpaPersistenceBinder.DEFAULT_UNIT_NAME);
+			unitName = defaultUnitName;
 			if(StringUtils.isEmpty(unitName)) {
 				throw new IllegalStateException("You must fill unitName");	
 			}
@@ -58,21 +103,43 @@ public class JpaPersistenceContextResolver implements InjectionResolver<Persiste
 				properties.put(property.name(), property.value());
 			}
 		}
-		
-		final EntityManager entityManager = persistenceSessionManager.get().getPersistenceContext(
-				new JpaPersistenceContextKey(factoryName, unitName, properties), 
-				EntityManager.class, 
-				injectee.getInjecteeDescriptor().getScope());
-		return entityManager;		
+
+		return persistenceContextFactoryAccessor.get().internKey(
+				new JpaPersistenceContextKey(factoryName, unitName, properties));
 	}
 
-	@Override
-	public boolean isConstructorParameterIndicator() {
-		return false;
+	/**
+	 * @param injectee Injection point.
+	 * @return Field or pair of method and parameter position.
+	 */
+	protected static Object getInjectionPoint(Injectee injectee) {
+		if(injectee.getPosition() <= 0) {
+			return injectee.getParent();
+		}
+		return new AbstractMap.SimpleImmutableEntry<>(injectee.getParent(), injectee.getPosition());
 	}
+	
+	protected static final class InjectionPointKey {
+		
+		private final JpaPersistenceContextKey key;
+		
+		private final String defaultUnitName;
 
-	@Override
-	public boolean isMethodParameterIndicator() {
-		return false;
+		public InjectionPointKey(JpaPersistenceContextKey key, String defaultUnitName) {
+			this.key = key;
+			this.defaultUnitName = defaultUnitName;
+		}
+
+		public JpaPersistenceContextKey getKey() {
+			return key;
+		}
+
+		/**
+		 * @param currentDefaultUnitName Current value of the default unit name.
+		 * @return true if the key is not changed by reconfiguration.
+		 */
+		public boolean isValid(String currentDefaultUnitName) {
+			return StringUtils.equals(defaultUnitName, currentDefaultUnitName);
+		}
 	}
 }
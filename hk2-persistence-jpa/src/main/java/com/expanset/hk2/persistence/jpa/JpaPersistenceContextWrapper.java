@@ -1,10 +1,19 @@
 package com.expanset.hk2.persistence.jpa;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongSupplier;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+import javax.persistence.QueryTimeoutException;
 import javax.transaction.Transaction;
 
 import org.apache.commons.lang.Validate;
@@ -19,6 +28,38 @@ public class JpaPersistenceContextWrapper implements PersistenceContextWrapper {
 
 	protected final EntityManager entityManager;
 
+	/**
+	 * Entity manager, that applies the deadline to statements.
+	 */
+	protected final EntityManager deadlineEntityManager;
+
+	protected final ContextBoundJpaQueryStreamer queryStreamer;
+
+	/**
+	 * Time before the deadline of statements in milliseconds or null.
+	 */
+	protected volatile LongSupplier remainingTime;
+
+	/**
+	 * Query timeout of the entity manager before the transaction timeout was applied.
+	 */
+	protected Object defaultQueryTimeout;
+
+	protected boolean queryTimeoutChanged;
+	
+	/**
+	 * Standard JPA hint of query timeout in milliseconds.
+	 */
+	public final static String QUERY_TIMEOUT_PROPERTY = "javax.persistence.query.timeout";
+	
+	/**
+	 * Methods of the entity manager, that execute statements or create queries.
+	 */
+	protected final static Set<String> STATEMENT_METHODS = new HashSet<>(Arrays.asList(
+			"find", "getReference", "persist", "merge", "remove", "refresh", "flush", "lock", 
+			"createQuery", "createNamedQuery", "createNativeQuery", 
+			"createStoredProcedureQuery", "createNamedStoredProcedureQuery"));
+
 	/**
 	 * @param entityManager Wrapped JPA entity manager.
 	 */
@@ -26,13 +67,45 @@ public class JpaPersistenceContextWrapper implements PersistenceContextWrapper {
 		Validate.notNull(entityManager, "entityManager");
 		
 		this.entityManager = entityManager;
+		this.deadlineEntityManager = withDeadline(entityManager);
+		this.queryStreamer = new ContextBoundJpaQueryStreamer(deadlineEntityManager);
 	}
 
 	@Override
 	public Transaction beginTransaction() 
 			throws Exception {
-		final EntityTransaction transaction = entityManager.getTransaction();
-		return new JpaTransaction(transaction);
+		return beginTransaction(false);
+	}
+
+	@Override
+	public Transaction beginTransaction(boolean readOnly) 
+			throws Exception {
+		return new JpaTransaction(entityManager, readOnly, queryStreamer);
+	}
+	
+	/**
+	 * Remaining time is set as query timeout of the entity manager and created queries, when statements 
+	 * are executed or queries are created by the entity manager, that is returned by {@link #unwrap(Class)}.
+	 */
+	@Override
+	public void setDeadline(@Nullable LongSupplier remainingTime) 
+			throws Exception {
+		if(remainingTime != null) {
+			if(!queryTimeoutChanged) {
+				defaultQueryTimeout = entityManager.getProperties().get(QUERY_TIMEOUT_PROPERTY);
+				queryTimeoutChanged = true;
+			}
+			this.remainingTime = remainingTime;
+			return;
+		}
+		
+		this.remainingTime = null;
+		if(queryTimeoutChanged) {
+			// JPA has no way to remove the property, so 0 is used when there was no default value.
+			entityManager.setProperty(QUERY_TIMEOUT_PROPERTY, defaultQueryTimeout != null ? defaultQueryTimeout : 0);
+			defaultQueryTimeout = null;
+			queryTimeoutChanged = false;
+		}
 	}
 	
 	@Override
@@ -42,7 +115,13 @@ public class JpaPersistenceContextWrapper implements PersistenceContextWrapper {
 		Validate.notNull(iface, "iface");
 		
 		if(iface.equals(EntityManager.class)) {
-			return (T) entityManager;
+			return (T) deadlineEntityManager;
+		}
+		if(iface.equals(JpaQueryStreamer.class)) {
+			return (T) queryStreamer;
+		}
+		if(iface.equals(JpaBulkWriter.class)) {
+			return (T) new JpaBulkWriter(deadlineEntityManager);
 		}
 		if(iface.equals(ConnectionProvider.class)) {
 			return (T) new ConnectionProvider() {
@@ -69,12 +148,71 @@ public class JpaPersistenceContextWrapper implements PersistenceContextWrapper {
 		Validate.notNull(iface, "iface");
 		
 		return iface.equals(EntityManager.class) || 
+				iface.equals(JpaQueryStreamer.class) || 
+				iface.equals(JpaBulkWriter.class) || 
 				iface.equals(ConnectionProvider.class);
 	}
 
+	/**
+	 * Creates entity manager, that sets remaining time before the deadline as query timeout. 
+	 * Statements are not executed, when the deadline is passed.
+	 * @param entityManager Entity manager to wrap.
+	 * @return Entity manager, that applies the deadline.
+	 */
+	protected EntityManager withDeadline(EntityManager entityManager) {
+		return (EntityManager)Proxy.newProxyInstance(
+				EntityManager.class.getClassLoader(), 
+				new Class<?>[] { EntityManager.class }, 
+				(proxy, method, args) -> {
+					if(method.getName().equals("equals") && method.getParameterCount() == 1) {
+						return proxy == args[0];
+					}
+					if(method.getName().equals("hashCode") && method.getParameterCount() == 0) {
+						return System.identityHashCode(proxy);
+					}
+					
+					final Integer timeout = STATEMENT_METHODS.contains(method.getName()) ? applyDeadline() : null;
+					final Object result;
+					try {
+						result = method.invoke(entityManager, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+					if(timeout != null && result instanceof Query) {
+						((Query)result).setHint(QUERY_TIMEOUT_PROPERTY, timeout);
+					}
+					return result;
+				});
+	}
+	
+	/**
+	 * Sets remaining time before the deadline as query timeout of the entity manager.
+	 * @return Query timeout in milliseconds or null if there is no deadline.
+	 */
+	protected Integer applyDeadline() {
+		final LongSupplier currentRemainingTime = remainingTime;
+		if(currentRemainingTime == null) {
+			return null;
+		}
+		final long milliseconds = currentRemainingTime.getAsLong();
+		if(milliseconds <= 0) {
+			throw new QueryTimeoutException("Deadline of the transaction is passed");
+		}
+		if(milliseconds == Long.MAX_VALUE) {
+			return null;
+		}
+		final Integer timeout = (int)Math.min(milliseconds, Integer.MAX_VALUE);
+		entityManager.setProperty(QUERY_TIMEOUT_PROPERTY, timeout);
+		return timeout;
+	}
+
 	@Override
 	public void close() 
 			throws Exception {
-		entityManager.close();
+		try {
+			queryStreamer.closeAll();
+		} finally {
+			entityManager.close();
+		}
 	}
 }
@@ -0,0 +1,63 @@
+package com.expanset.hk2.persistence.jpa;
+
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.persistence.TypedQuery;
+
+/**
+ * Streams query results with bounded memory usage. Rows are fetched by the consumer demand, 
+ * entity manager is cleared periodically, so returned entities are detached.
+ * <p>Streams are closed automatically when the persistence session ends, streams that were opened 
+ * in a transaction are closed when the transaction ends. Injection example:</p>
+ * <pre>
+ * {@literal @}PersistenceContext(unitName = "mydb")
+ * private JpaQueryStreamer queryStreamer;
+ * ...
+ * try(Stream&lt;User&gt; users = queryStreamer.stream(entityManager.createQuery("from User", User.class))) {
+ *	users.forEach(user -&gt; report.write(user));
+ * }
+ * </pre>
+ */
+public interface JpaQueryStreamer {
+
+	/**
+	 * Default count of rows, that are fetched at once.
+	 */
+	int DEFAULT_FETCH_SIZE = 100;
+
+	/**
+	 * Streams query results, {@link #DEFAULT_FETCH_SIZE} rows are fetched at once and entity manager
+	 * is cleared after each fetch.
+	 * @param query Query to execute.
+	 * @return Stream of results, that should be closed.
+	 * @param <T> Type of results.
+	 */
+	default <T> Stream<T> stream(@Nonnull TypedQuery<T> query) {
+		return stream(query, DEFAULT_FETCH_SIZE, DEFAULT_FETCH_SIZE);
+	}
+
+	/**
+	 * Streams query results.
+	 * @param query Query to execute.
+	 * @param fetchSize Count of rows, that are fetched at once.
+	 * @param clearInterval Entity manager is cleared every clearInterval rows, 0 - not cleared.
+	 * @return Stream of results, that should be closed.
+	 * @param <T> Type of results.
+	 */
+	default <T> Stream<T> stream(@Nonnull TypedQuery<T> query, int fetchSize, int clearInterval) {
+		return stream(query, fetchSize, clearInterval, false);
+	}
+
+	/**
+	 * Streams query results.
+	 * @param query Query to execute.
+	 * @param fetchSize Count of rows, that are fetched at once.
+	 * @param clearInterval Entity manager is cleared every clearInterval rows, 0 - not cleared.
+	 * @param ordered true if the query has ORDER BY with unique key (identifier in example), 
+	 * only such query can be fetched by pages, when the result stream of JPA 2.2 is not available.
+	 * @return Stream of results, that should be closed.
+	 * @param <T> Type of results.
+	 */
+	<T> Stream<T> stream(@Nonnull TypedQuery<T> query, int fetchSize, int clearInterval, boolean ordered);
+}
@@ -1,7 +1,10 @@
 package com.expanset.hk2.persistence.jpa;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.RollbackException;
@@ -16,24 +19,78 @@ import org.apache.commons.lang.Validate;
 
 /**
  * Implementation of {@link Transaction} for JPA engine.
+ * <p>Read-only transaction switches the entity manager to manual (Hibernate) or commit flush mode 
+ * and is completed by rollback, so changes are not flushed and dirty checking is skipped.</p>
  */
 public class JpaTransaction implements Transaction, AutoCloseable {
 
 	protected int status = Status.STATUS_ACTIVE;
 	
 	protected final EntityTransaction transaction;
+
+	protected final ContextBoundJpaQueryStreamer queryStreamer;
+
+	protected final EntityManager readOnlyEntityManager;
+
+	protected final FlushModeType flushModeAtStart;
+
+	protected final static String HIBERNATE_FLUSH_MODE = "org.hibernate.flushMode";
 	
 	/**
 	 * @param transaction Started JPA transaction. 
 	 */
 	public JpaTransaction(@Nonnull EntityTransaction transaction) {
+		this(transaction, null);
+	}
+
+	/**
+	 * @param transaction Started JPA transaction. 
+	 * @param queryStreamer Streams of the persistence context, that are closed with the transaction.
+	 */
+	public JpaTransaction(@Nonnull EntityTransaction transaction, @Nullable ContextBoundJpaQueryStreamer queryStreamer) {
 		Validate.notNull(transaction, "transaction");
 		
 		this.transaction = transaction;	
+		this.queryStreamer = queryStreamer;
+		this.readOnlyEntityManager = null;
+		this.flushModeAtStart = null;
 		
 		transaction.begin();
 	} 
 	
+	/**
+	 * @param entityManager Entity manager, that begins transaction.
+	 * @param readOnly true if the transaction does not change data.
+	 * @param queryStreamer Streams of the persistence context, that are closed with the transaction.
+	 */
+	public JpaTransaction(
+			@Nonnull EntityManager entityManager, 
+			boolean readOnly, 
+			@Nullable ContextBoundJpaQueryStreamer queryStreamer) {
+		Validate.notNull(entityManager, "entityManager");
+
+		this.transaction = entityManager.getTransaction();
+		this.queryStreamer = queryStreamer;
+		if(readOnly) {
+			this.readOnlyEntityManager = entityManager;
+			this.flushModeAtStart = entityManager.getFlushMode();
+			entityManager.setFlushMode(FlushModeType.COMMIT);
+			entityManager.setProperty(HIBERNATE_FLUSH_MODE, "MANUAL");
+		} else {
+			this.readOnlyEntityManager = null;
+			this.flushModeAtStart = null;
+		}
+
+		transaction.begin();
+	}
+
+	/**
+	 * @return true if the transaction does not change data.
+	 */
+	public boolean isReadOnly() {
+		return readOnlyEntityManager != null;
+	}
+
 	@Override
 	public int getStatus() 
 			throws SystemException {
@@ -65,7 +122,11 @@ public class JpaTransaction implements Transaction, AutoCloseable {
 		
 		status = Status.STATUS_COMMITTING;
 		try {
-			transaction.commit();
+			if(isReadOnly()) {
+				transaction.rollback();
+			} else {
+				transaction.commit();
+			}
 		} finally {
 			status = Status.STATUS_COMMITTED;
 		}
@@ -101,5 +162,15 @@ public class JpaTransaction implements Transaction, AutoCloseable {
 	@Override
 	public void close() 
 			throws Exception {
+		try {
+			if(queryStreamer != null) {
+				queryStreamer.closeTransactionStreams();
+			}
+		} finally {
+			if(isReadOnly() && readOnlyEntityManager.isOpen()) {
+				readOnlyEntityManager.setFlushMode(flushModeAtStart);
+				readOnlyEntityManager.setProperty(HIBERNATE_FLUSH_MODE, flushModeAtStart.name());
+			}
+		}
 	}
 }
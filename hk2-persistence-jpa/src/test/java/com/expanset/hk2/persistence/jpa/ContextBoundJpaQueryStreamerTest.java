@@ -0,0 +1,151 @@
+package com.expanset.hk2.persistence.jpa;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.TypedQuery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ContextBoundJpaQueryStreamerTest {
+
+	private EntityManager entityManager;
+	
+	private EntityTransaction transaction;
+	
+	private TypedQuery<String> query;
+	
+	private ContextBoundJpaQueryStreamer queryStreamer;
+	
+	@Before
+	@SuppressWarnings("unchecked")
+	public void init() {
+		transaction = mock(EntityTransaction.class);
+		entityManager = mock(EntityManager.class);
+		when(entityManager.getTransaction()).thenReturn(transaction);
+		
+		query = mock(TypedQuery.class);
+		when(query.setFirstResult(anyInt())).thenReturn(query);
+		when(query.setMaxResults(anyInt())).thenReturn(query);
+		when(query.getFirstResult()).thenReturn(0);
+		when(query.getMaxResults()).thenReturn(Integer.MAX_VALUE);
+		
+		queryStreamer = new ContextBoundJpaQueryStreamer(entityManager, false);
+	}
+	
+	@Test
+	public void orderedQueryIsFetchedByPages() {
+		when(query.getResultList()).thenReturn(
+				Arrays.asList("a", "b"), Arrays.asList("c", "d"), Arrays.asList("e"));
+		
+		final List<String> result;
+		try(Stream<String> stream = queryStreamer.stream(query, 2, 0, true)) {
+			result = stream.collect(Collectors.toList());
+		}
+		
+		assertEquals(Arrays.asList("a", "b", "c", "d", "e"), result);
+		verify(query).setFirstResult(0);
+		verify(query).setFirstResult(2);
+		verify(query).setFirstResult(4);
+		verify(query, times(3)).getResultList();
+		assertEquals(0, queryStreamer.getOpenStreamsCount());
+	}
+
+	@Test
+	public void orderedQueryWithMaxResults() {
+		when(query.getFirstResult()).thenReturn(10);
+		when(query.getMaxResults()).thenReturn(3);
+		when(query.getResultList()).thenReturn(Arrays.asList("a", "b"), Arrays.asList("c"));
+		
+		final List<String> result;
+		try(Stream<String> stream = queryStreamer.stream(query, 2, 0, true)) {
+			result = stream.collect(Collectors.toList());
+		}
+		
+		assertEquals(Arrays.asList("a", "b", "c"), result);
+		verify(query).setFirstResult(10);
+		verify(query).setMaxResults(2);
+		verify(query).setFirstResult(12);
+		verify(query).setMaxResults(1);
+		verify(query, times(2)).getResultList();
+	}
+	
+	@Test
+	public void unorderedQueryIsFetchedAtOnce() {
+		when(query.getResultList()).thenReturn(Arrays.asList("a", "b", "c", "d", "e"));
+		
+		final List<String> result;
+		try(Stream<String> stream = queryStreamer.stream(query, 2, 0)) {
+			result = stream.collect(Collectors.toList());
+		}
+		
+		assertEquals(Arrays.asList("a", "b", "c", "d", "e"), result);
+		verify(query, never()).setFirstResult(anyInt());
+		verify(query, never()).setMaxResults(anyInt());
+		verify(query, times(1)).getResultList();
+	}
+
+	@Test
+	public void entityManagerIsCleared() {
+		when(query.getResultList()).thenReturn(Arrays.asList("a", "b", "c", "d", "e"), Collections.emptyList());
+		
+		try(Stream<String> stream = queryStreamer.stream(query, 10, 2, true)) {
+			assertEquals(5, stream.count());
+		}
+		
+		verify(entityManager, times(2)).clear();
+	}
+	
+	@Test
+	public void exhaustedIteratorHasNoNext() {
+		when(query.getResultList()).thenReturn(Arrays.asList("a"));
+		
+		try(Stream<String> stream = queryStreamer.stream(query, 2, 0, true)) {
+			final Iterator<String> iterator = stream.iterator();
+			assertEquals("a", iterator.next());
+			assertFalse(iterator.hasNext());
+			assertFalse(iterator.hasNext());
+			try {
+				iterator.next();
+				fail();
+			} catch (NoSuchElementException e) {
+			}
+		}
+		assertEquals(0, queryStreamer.getOpenStreamsCount());
+	}
+	
+	@Test
+	public void transactionStreamsAreClosed() {
+		when(query.getResultList()).thenReturn(Arrays.asList("a", "b"), Arrays.asList("c"));
+		when(transaction.isActive()).thenReturn(true);
+		final Stream<String> transactionStream = queryStreamer.stream(query, 2, 0, true);
+		when(transaction.isActive()).thenReturn(false);
+		final Stream<String> stream = queryStreamer.stream(query, 2, 0, true);
+		assertEquals(2, queryStreamer.getOpenStreamsCount());
+		
+		queryStreamer.closeTransactionStreams();
+		
+		assertEquals(1, queryStreamer.getOpenStreamsCount());
+		try {
+			transactionStream.iterator().hasNext();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		
+		queryStreamer.closeAll();
+		
+		assertEquals(0, queryStreamer.getOpenStreamsCount());
+		stream.close();
+	}
+}
@@ -0,0 +1,169 @@
+package com.expanset.hk2.persistence.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class JpaBulkWriterTest {
+	
+	private EntityManager entityManager;
+	
+	private TransactionManager transactionManager;
+	
+	private Session session;
+	
+	@Before
+	public void init() 
+			throws Exception {
+		session = new Session();
+		session.setJdbcBatchSize(5);
+		
+		entityManager = mock(EntityManager.class);
+		when(entityManager.getFlushMode()).thenReturn(FlushModeType.AUTO);
+		when(entityManager.getDelegate()).thenReturn(session);
+		
+		transactionManager = mock(TransactionManager.class);
+		when(transactionManager.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+	}
+	
+	@Test
+	public void persistByBatches() {
+		final List<Object> entities = createEntities(25);
+		
+		final long count = new JpaBulkWriter(entityManager)
+			.setBatchSize(10)
+			.persist(entities);
+		
+		assertEquals(25, count);
+		for(Object entity : entities) {
+			verify(entityManager).persist(entity);
+		}
+		verify(entityManager, times(3)).flush();
+		verify(entityManager, times(3)).clear();
+		verify(entityManager).setFlushMode(FlushModeType.COMMIT);
+		verify(entityManager).setFlushMode(FlushModeType.AUTO);
+		verify(entityManager, never()).getTransaction();
+	}
+
+	@Test
+	public void mergeByBatches() {
+		final List<Object> entities = createEntities(20);
+		
+		final long count = new JpaBulkWriter(entityManager)
+			.setBatchSize(10)
+			.merge(entities.stream());
+		
+		assertEquals(20, count);
+		verify(entityManager, times(20)).merge(any());
+		verify(entityManager, times(2)).flush();
+	}
+	
+	@Test
+	public void jdbcBatchSizeOfSession() {
+		final List<Integer> batchSizes = new ArrayList<>();
+		doAnswer(invocation -> batchSizes.add(session.getJdbcBatchSize()))
+			.when(entityManager).flush();
+		
+		new JpaBulkWriter(entityManager)
+			.setBatchSize(10)
+			.persist(createEntities(10));
+		
+		assertEquals(Collections.singletonList(10), batchSizes);
+		assertEquals(Integer.valueOf(5), session.getJdbcBatchSize());
+	}
+
+	@Test
+	public void hintsAreRestored() {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put("hint1", "value1");
+		when(entityManager.getProperties()).thenReturn(properties);
+		
+		new JpaBulkWriter(entityManager)
+			.setHint("hint1", "value2")
+			.setHint("hint2", "value3")
+			.persist(createEntities(1));
+		
+		verify(entityManager).setProperty("hint1", "value2");
+		verify(entityManager).setProperty("hint2", "value3");
+		verify(entityManager).setProperty("hint1", "value1");
+	}
+	
+	@Test
+	public void commitByChunks() 
+			throws Exception {
+		new JpaBulkWriter(entityManager)
+			.setBatchSize(10)
+			.setCommitInterval(20, transactionManager)
+			.persist(createEntities(50));
+		
+		verify(transactionManager, times(2)).commit();
+		verify(transactionManager, times(2)).begin();
+		verify(entityManager, times(5)).flush();
+		verify(entityManager, never()).getTransaction();
+	}
+
+	@Test
+	public void commitByChunksWithoutTransaction() 
+			throws Exception {
+		when(transactionManager.getStatus()).thenReturn(Status.STATUS_NO_TRANSACTION);
+		
+		new JpaBulkWriter(entityManager)
+			.setBatchSize(10)
+			.setCommitInterval(20, transactionManager)
+			.persist(createEntities(20));
+		
+		verify(transactionManager, never()).commit();
+		verify(transactionManager, never()).begin();
+		verify(entityManager, times(2)).flush();
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void commitByChunksOfRollbackOnlyTransaction() 
+			throws Exception {
+		when(transactionManager.getStatus()).thenReturn(Status.STATUS_MARKED_ROLLBACK);
+		
+		try {
+			new JpaBulkWriter(entityManager)
+				.setCommitInterval(10, transactionManager)
+				.persist(createEntities(10));
+		} finally {
+			verify(transactionManager, never()).commit();
+			verify(entityManager).setFlushMode(FlushModeType.AUTO);
+		}
+	}
+	
+	private static List<Object> createEntities(int count) {
+		final Object[] result = new Object[count];
+		for(int i = 0; i < count; i++) {
+			result[i] = new Object();
+		}
+		return Arrays.asList(result);
+	}
+	
+	public static class Session {
+		
+		private Integer jdbcBatchSize;
+		
+		public Integer getJdbcBatchSize() {
+			return jdbcBatchSize;
+		}
+		
+		public void setJdbcBatchSize(Integer jdbcBatchSize) {
+			this.jdbcBatchSize = jdbcBatchSize;
+		}
+	}
+}
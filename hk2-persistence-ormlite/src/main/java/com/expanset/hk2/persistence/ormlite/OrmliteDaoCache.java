@@ -0,0 +1,139 @@
+package com.expanset.hk2.persistence.ormlite;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang.Validate;
+
+import com.expanset.common.errors.ExceptionAdapter;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.field.DatabaseFieldConfig;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.DatabaseTableConfig;
+
+/**
+ * Cache of DAOs and table configurations of the persistence factory. 
+ * It is cleared when the persistence factory is closed (configuration reloaded in example).
+ * DAOs of entities with identifier use object cache of the factory, if it is enabled.
+ */
+@ThreadSafe
+public class OrmliteDaoCache implements OrmliteDaoProvider, AutoCloseable {
+
+	protected final ConnectionSource connectionSource;
+
+	protected final ConcurrentMap<Class<?>, DatabaseTableConfig<?>> tableConfigs = new ConcurrentHashMap<>();
+
+	protected final ConcurrentMap<Class<?>, Dao<?, ?>> daos = new ConcurrentHashMap<>();
+
+	protected final OrmliteObjectCache objectCache;
+
+	/**
+	 * @param connectionSource Connection source of the persistence factory.
+	 */
+	public OrmliteDaoCache(@Nonnull ConnectionSource connectionSource) {
+		this(connectionSource, null);
+	}
+
+	/**
+	 * @param connectionSource Connection source of the persistence factory.
+	 * @param objectCache Entity object cache of the persistence factory, null - disabled.
+	 */
+	public OrmliteDaoCache(@Nonnull ConnectionSource connectionSource, @Nullable OrmliteObjectCache objectCache) {
+		Validate.notNull(connectionSource, "connectionSource");
+
+		this.connectionSource = connectionSource;
+		this.objectCache = objectCache;
+	}
+
+	/**
+	 * @return Entity object cache of the persistence factory, null if disabled.
+	 */
+	@Nullable
+	public OrmliteObjectCache getObjectCache() {
+		return objectCache;
+	}
+
+	/**
+	 * Creates table configurations of entities before first using.
+	 * @param entityClasses Classes of entities.
+	 * @throws SQLException Error of table configuration.
+	 */
+	public void prepare(@Nonnull Collection<Class<?>> entityClasses) 
+			throws SQLException {
+		Validate.notNull(entityClasses, "entityClasses");
+
+		for(Class<?> entityClass : entityClasses) {
+			tableConfigs.put(entityClass, DatabaseTableConfig.fromClass(connectionSource, entityClass));
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T, ID> Dao<T, ID> getDao(@Nonnull Class<T> entityClass) {
+		Dao<?, ?> dao = daos.get(entityClass);
+		if(dao == null) {
+			Validate.notNull(entityClass, "entityClass");
+
+			dao = daos.computeIfAbsent(entityClass, key -> ExceptionAdapter.get(() -> createDao(key)));
+		}
+		return (Dao<T, ID>)dao;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> DatabaseTableConfig<T> getTableConfig(@Nonnull Class<T> entityClass) {
+		DatabaseTableConfig<?> tableConfig = tableConfigs.get(entityClass);
+		if(tableConfig == null) {
+			Validate.notNull(entityClass, "entityClass");
+
+			tableConfig = tableConfigs.computeIfAbsent(entityClass, 
+					key -> ExceptionAdapter.get(() -> DatabaseTableConfig.fromClass(connectionSource, key)));
+		}
+		return (DatabaseTableConfig<T>)tableConfig;
+	}
+
+	/**
+	 * Removes all DAOs and table configurations.
+	 */
+	@Override
+	public void close() {
+		for(Dao<?, ?> dao : daos.values()) {
+			DaoManager.unregisterDao(connectionSource, dao);
+		}
+		daos.clear();
+		tableConfigs.clear();
+		if(objectCache != null) {
+			objectCache.clearAll();
+		}
+	}
+
+	protected <T> Dao<T, ?> createDao(Class<T> entityClass) 
+			throws SQLException {
+		final DatabaseTableConfig<T> tableConfig = getTableConfig(entityClass);
+		final Dao<T, ?> dao = DaoManager.createDao(connectionSource, tableConfig);
+		if(objectCache != null && hasId(tableConfig)) {
+			dao.setObjectCache(objectCache);
+			return objectCache.trackWrites(dao);
+		}
+		return dao;
+	}
+
+	private static boolean hasId(DatabaseTableConfig<?> tableConfig) {
+		if(tableConfig.getFieldConfigs() == null) {
+			return false;
+		}
+		for(DatabaseFieldConfig fieldConfig : tableConfig.getFieldConfigs()) {
+			if(fieldConfig.isId() || fieldConfig.isGeneratedId() || fieldConfig.getGeneratedIdSequence() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
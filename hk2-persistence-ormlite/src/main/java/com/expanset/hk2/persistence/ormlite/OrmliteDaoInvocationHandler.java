@@ -0,0 +1,59 @@
+package com.expanset.hk2.persistence.ormlite;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang.Validate;
+
+import com.expanset.hk2.persistence.PersistenceContextInvocationHandler;
+import com.expanset.hk2.persistence.PersistenceContextKey;
+import com.expanset.hk2.persistence.PersistenceSession;
+import com.expanset.hk2.persistence.PersistenceSessionManager;
+import com.j256.ormlite.dao.Dao;
+
+/**
+ * Proxy handler, that redirects calls to the DAO of the current persistence session.
+ */
+@ThreadSafe
+public class OrmliteDaoInvocationHandler extends PersistenceContextInvocationHandler {
+
+	protected final Class<?> entityClass;
+
+	/**
+	 * @param persistenceSessionManager Session manager to get the current session.
+	 * @param key Persistence context identifier.
+	 * @param entityClass Class of the entity.
+	 */
+	public OrmliteDaoInvocationHandler(
+			@Nonnull PersistenceSessionManager persistenceSessionManager,
+			@Nonnull PersistenceContextKey key,
+			@Nonnull Class<?> entityClass) {
+		super(persistenceSessionManager, key, Dao.class);
+		Validate.notNull(entityClass, "entityClass");
+
+		this.entityClass = entityClass;
+	}
+
+	/**
+	 * Creates proxy for the DAO of the current session.
+	 * @param persistenceSessionManager Session manager to get the current session.
+	 * @param key Persistence context identifier.
+	 * @param entityClass Class of the entity.
+	 * @return Proxy object for the DAO.
+	 */
+	public static Dao<?, ?> createDaoProxy(
+			@Nonnull PersistenceSessionManager persistenceSessionManager,
+			@Nonnull PersistenceContextKey key,
+			@Nonnull Class<?> entityClass) {
+		final OrmliteDaoInvocationHandler handler =
+				new OrmliteDaoInvocationHandler(persistenceSessionManager, key, entityClass);
+		return (Dao<?, ?>)handler.proxyType.newInstance(handler);
+	}
+
+	@Override
+	protected Object resolvePersistenceContext(PersistenceSession persistenceSession) {
+		final OrmliteDaoProvider daoProvider = 
+				persistenceSession.lookupPersistenceContext(key, OrmliteDaoProvider.class);
+		return daoProvider.getDao(entityClass);
+	}
+}
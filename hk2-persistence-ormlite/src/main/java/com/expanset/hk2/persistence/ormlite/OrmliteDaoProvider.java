@@ -0,0 +1,30 @@
+package com.expanset.hk2.persistence.ormlite;
+
+import javax.annotation.Nonnull;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.table.DatabaseTableConfig;
+
+/**
+ * Provides DAOs of the persistence factory. It can be obtained from persistence context as
+ * {@link com.j256.ormlite.support.ConnectionSource}.
+ */
+public interface OrmliteDaoProvider {
+
+	/**
+	 * Returns DAO, that is created once for the persistence factory.
+	 * @param entityClass Class of the entity.
+	 * @return DAO for the entity.
+	 * @param <T> Type of the entity.
+	 * @param <ID> Type of the entity identifier.
+	 */
+	<T, ID> Dao<T, ID> getDao(@Nonnull Class<T> entityClass);
+
+	/**
+	 * Returns table configuration, that is created once for the persistence factory.
+	 * @param entityClass Class of the entity.
+	 * @return Table configuration for the entity.
+	 * @param <T> Type of the entity.
+	 */
+	<T> DatabaseTableConfig<T> getTableConfig(@Nonnull Class<T> entityClass);
+}
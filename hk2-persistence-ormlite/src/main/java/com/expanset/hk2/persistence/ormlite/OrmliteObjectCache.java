@@ -0,0 +1,374 @@
+package com.expanset.hk2.persistence.ormlite;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.lang3.ClassUtils;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.LruObjectCache;
+import com.j256.ormlite.dao.ObjectCache;
+import com.j256.ormlite.dao.ReferenceObjectCache;
+
+/**
+ * Entity object cache of the persistence factory, that is shared by DAOs of the factory.
+ * <p>Entries, that were written in a transaction by DAOs (see {@link #trackWrites(Dao)}), are tracked and 
+ * removed from the cache when {@link OrmliteTransaction} is rolled back, so uncommitted changes of cached objects 
+ * are not kept. Entries of committed nested transactions are removed when the enclosing transaction is 
+ * rolled back. Reading of cached objects is not tracked. Only DAO calls from the thread, that began 
+ * the transaction, are tracked. Raw statements and statement builders bypass the cache.</p>
+ */
+@ThreadSafe
+public class OrmliteObjectCache implements ObjectCache {
+
+	/**
+	 * How cached objects are kept.
+	 */
+	public enum Type {
+
+		/**
+		 * Bounded count of least recently used objects for each entity class.
+		 */
+		LRU,
+
+		/**
+		 * Objects are kept while they are weakly reachable.
+		 */
+		WEAK,
+
+		/**
+		 * Objects are kept while they are softly reachable.
+		 */
+		SOFT
+	}
+
+	protected final ObjectCache objectCache;
+
+	private final ThreadLocal<Tracking> tracking = new ThreadLocal<>();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * DAO methods, that change entities.
+	 */
+	protected final static Set<String> WRITE_METHODS = new HashSet<>(Arrays.asList(
+			"create", "createIfNotExists", "createOrUpdate", "update", "updateId", 
+			"delete", "deleteById", "deleteIds", "refresh", "callBatchTasks"));
+
+	/**
+	 * @param objectCache Cache, that keeps objects.
+	 */
+	public OrmliteObjectCache(@Nonnull ObjectCache objectCache) {
+		Validate.notNull(objectCache, "objectCache");
+
+		this.objectCache = objectCache;
+	}
+
+	/**
+	 * Creates object cache.
+	 * @param type How cached objects are kept.
+	 * @param capacity Maximum count of objects for each entity class, used for {@link Type#LRU}.
+	 * @return New object cache.
+	 */
+	public static OrmliteObjectCache create(@Nonnull Type type, int capacity) {
+		Validate.notNull(type, "type");
+
+		switch(type) {
+			case LRU:
+				Validate.isTrue(capacity > 0, "capacity");
+				return new OrmliteObjectCache(new LruObjectCache(capacity));
+			case WEAK:
+				return new OrmliteObjectCache(ReferenceObjectCache.makeWeakCache());
+			case SOFT:
+				return new OrmliteObjectCache(ReferenceObjectCache.makeSoftCache());
+			default:
+				throw new IllegalArgumentException(type.toString());
+		}
+	}
+
+	/**
+	 * Starts tracking of entries, that are written in the current thread.
+	 * @return Tracking, that should be closed when the transaction is completed.
+	 */
+	public Tracking beginTracking() {
+		final Tracking result = new Tracking(tracking.get());
+		tracking.set(result);
+		return result;
+	}
+
+	/**
+	 * Wraps the DAO, so cache entries, that are changed by its writing methods, are tracked.
+	 * @param dao DAO, that uses this cache.
+	 * @return DAO, that tracks writes.
+	 * @param <T> Entity type.
+	 * @param <ID> Entity identifier type.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, ID> Dao<T, ID> trackWrites(@Nonnull Dao<T, ID> dao) {
+		Validate.notNull(dao, "dao");
+
+		// Custom DAO interfaces are kept.
+		final List<Class<?>> interfaces = ClassUtils.getAllInterfaces(dao.getClass());
+		return (Dao<T, ID>)Proxy.newProxyInstance(
+				dao.getClass().getClassLoader(), 
+				interfaces.toArray(new Class<?>[interfaces.size()]), 
+				(proxy, method, args) -> invoke(dao, method, args));
+	}
+
+	@Override
+	public <T> void registerClass(Class<T> clazz) {
+		objectCache.registerClass(clazz);
+	}
+
+	@Override
+	public <T, ID> T get(Class<T> clazz, ID id) {
+		final T result = objectCache.get(clazz, id);
+		if(result != null) {
+			hits.increment();
+			// Cached object is changed in place by update.
+			touchWritten(clazz, id);
+		} else {
+			misses.increment();
+		}
+		return result;
+	}
+
+	@Override
+	public <T, ID> void put(Class<T> clazz, ID id, T data) {
+		objectCache.put(clazz, id, data);
+		touchWritten(clazz, id);
+	}
+
+	@Override
+	public <T> void clear(Class<T> clazz) {
+		objectCache.clear(clazz);
+	}
+
+	@Override
+	public void clearAll() {
+		objectCache.clearAll();
+	}
+
+	@Override
+	public <T, ID> void remove(Class<T> clazz, ID id) {
+		objectCache.remove(clazz, id);
+		touchWritten(clazz, id);
+	}
+
+	@Override
+	public <T, ID> T updateId(Class<T> clazz, ID oldId, ID newId) {
+		final T result = objectCache.updateId(clazz, oldId, newId);
+		touchWritten(clazz, oldId);
+		if(result != null) {
+			touchWritten(clazz, newId);
+		}
+		return result;
+	}
+
+	@Override
+	public <T> int size(Class<T> clazz) {
+		return objectCache.size(clazz);
+	}
+
+	@Override
+	public int sizeAll() {
+		return objectCache.sizeAll();
+	}
+
+	/**
+	 * @return Statistics of the cache.
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(objectCache.sizeAll(), hits.sum(), misses.sum(), invalidations.sum());
+	}
+
+	private Object invoke(Dao<?, ?> dao, Method method, Object[] args) 
+			throws Throwable {
+		final Tracking current = WRITE_METHODS.contains(method.getName()) ? getTracking() : null;
+		if(current != null) {
+			current.writes++;
+		}
+		try {
+			return method.invoke(dao, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		} finally {
+			if(current != null) {
+				current.writes--;
+			}
+		}
+	}
+
+	private Tracking getTracking() {
+		Tracking current = tracking.get();
+		while(current != null && current.closed) {
+			current = current.previous;
+			tracking.set(current);
+		}
+		return current;
+	}
+
+	private void touchWritten(Class<?> clazz, Object id) {
+		final Tracking current = getTracking();
+		if(current != null && current.writes > 0) {
+			current.add(clazz, id);
+		}
+	}
+
+	/**
+	 * Entries, that were written in the transaction.
+	 */
+	public final class Tracking implements AutoCloseable {
+
+		private final Tracking previous;
+
+		private final Thread thread = Thread.currentThread();
+
+		private final List<Class<?>> classes = new ArrayList<>();
+
+		private final List<Object> ids = new ArrayList<>();
+
+		private volatile boolean closed;
+
+		/**
+		 * Depth of DAO writing calls in the owner thread.
+		 */
+		private int writes;
+
+		private Tracking(Tracking previous) {
+			this.previous = previous;
+		}
+
+		/**
+		 * Removes written entries from the cache.
+		 */
+		public void invalidate() {
+			final int count;
+			synchronized (this) {
+				count = classes.size();
+				for(int i = 0; i < count; i++) {
+					objectCache.remove(classes.get(i), ids.get(i));
+				}
+				classes.clear();
+				ids.clear();
+			}
+			invalidations.add(count);
+		}
+
+		/**
+		 * Keeps written entries in the cache, they are committed. Entries of the nested transaction are 
+		 * passed to the enclosing one, so they are removed when the enclosing transaction is rolled back.
+		 */
+		public void commit() {
+			final Tracking enclosing = previous;
+			synchronized (this) {
+				if(enclosing != null && !enclosing.closed) {
+					enclosing.addAll(classes, ids);
+				}
+				classes.clear();
+				ids.clear();
+			}
+		}
+
+		/**
+		 * Removes not committed entries from the cache and stops tracking.
+		 */
+		@Override
+		public void close() {
+			closed = true;
+			invalidate();
+			if(Thread.currentThread() == thread && tracking.get() == this) {
+				tracking.set(previous);
+			}
+		}
+
+		private synchronized void add(Class<?> clazz, Object id) {
+			classes.add(clazz);
+			ids.add(id);
+		}
+
+		private synchronized void addAll(List<Class<?>> otherClasses, List<Object> otherIds) {
+			classes.addAll(otherClasses);
+			ids.addAll(otherIds);
+		}
+	}
+
+	/**
+	 * Statistics of the cache.
+	 */
+	public static final class Statistics {
+
+		private final int size;
+
+		private final long hits;
+
+		private final long misses;
+
+		private final long invalidations;
+
+		private Statistics(int size, long hits, long misses, long invalidations) {
+			this.size = size;
+			this.hits = hits;
+			this.misses = misses;
+			this.invalidations = invalidations;
+		}
+
+		/**
+		 * @return Count of cached objects.
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return Count of objects, that were found in the cache.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return Count of objects, that were not found in the cache.
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * @return Count of entries, that were removed after transactions.
+		 */
+		public long getInvalidations() {
+			return invalidations;
+		}
+
+		/**
+		 * @return Part of found objects, from 0 to 1.
+		 */
+		public double getHitRatio() {
+			final long total = hits + misses;
+			return total == 0 ? 0 : (double)hits / total;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"size: %d, hits: %d, misses: %d, hit ratio: %.2f, invalidations: %d",
+					size, hits, misses, getHitRatio(), invalidations);
+		}
+	}
+}
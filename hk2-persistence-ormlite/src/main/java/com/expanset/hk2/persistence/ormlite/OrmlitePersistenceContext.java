@@ -9,11 +9,15 @@ import java.lang.annotation.Target;
 import org.glassfish.hk2.api.InjectionPointIndicator;
 
 /**
- * Injection point annotation for {@link com.j256.ormlite.support.ConnectionSource}.
+ * Injection point annotation for {@link com.j256.ormlite.support.ConnectionSource} 
+ * and {@link com.j256.ormlite.dao.Dao}. DAOs are created once for each persistence factory.
  * <p>Example:</p>
  * <pre>
  * {@literal @}OrmlitePersistenceContext
  * private ConnectionSource connectionSource;
+ * 
+ * {@literal @}OrmlitePersistenceContext
+ * private Dao&lt;User, Long&gt; userDao;
  * </pre>
  */
 @Inherited
@@ -1,7 +1,15 @@
 package com.expanset.hk2.persistence.ormlite;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.lang.Validate;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.text.StrSubstitutor;
 import org.jvnet.hk2.annotations.Service;
 
@@ -14,6 +22,7 @@ import com.j256.ormlite.support.ConnectionSource;
 
 /**
  * Implementation of {@link PersistenceContextFactoryCreator} for Ormlite persistence engine.
+ * Connection source uses single connection, or the pool of connections if {@link #POOL_PROPERTY} is true.
  */
 @Service
 public class OrmlitePersistenceContextFactoryCreator implements PersistenceContextFactoryCreator {
@@ -32,6 +41,67 @@ public class OrmlitePersistenceContextFactoryCreator implements PersistenceConte
 	 * Configuration property: database password.
 	 */
 	public final static String PASSWORD_PROPERTY = "password";
+
+	/**
+	 * Configuration property: use pool of connections ({@link OrmlitePooledConnectionSource}), true or false.
+	 */
+	public final static String POOL_PROPERTY = "pool";
+
+	/**
+	 * Configuration property: count of connections, that are kept open, default 0.
+	 */
+	public final static String POOL_MIN_SIZE_PROPERTY = "pool.minSize";
+
+	/**
+	 * Configuration property: maximum count of open connections, default 10.
+	 */
+	public final static String POOL_MAX_SIZE_PROPERTY = "pool.maxSize";
+
+	/**
+	 * Configuration property: age in milliseconds, after that connection is closed, default 0 - not limited.
+	 */
+	public final static String POOL_MAX_AGE_PROPERTY = "pool.maxAge";
+
+	/**
+	 * Configuration property: time in milliseconds, after that idle connection is closed, default 10 minutes.
+	 */
+	public final static String POOL_MAX_IDLE_TIME_PROPERTY = "pool.maxIdleTime";
+
+	/**
+	 * Configuration property: time in milliseconds to wait for connection, default 30 seconds.
+	 */
+	public final static String POOL_ACQUIRE_TIMEOUT_PROPERTY = "pool.acquireTimeout";
+
+	/**
+	 * Configuration property: interval in milliseconds of closing idle connections, default 30 seconds.
+	 */
+	public final static String POOL_EVICTION_INTERVAL_PROPERTY = "pool.evictionInterval";
+
+	/**
+	 * Configuration property: query to check idle connection before using.
+	 */
+	public final static String POOL_VALIDATION_QUERY_PROPERTY = "pool.validationQuery";
+
+	/**
+	 * Configuration property: comma separated entity classes, table configurations of them are created 
+	 * with the factory (see {@link OrmliteDaoProvider}).
+	 */
+	public final static String ENTITIES_PROPERTY = "entities";
+
+	/**
+	 * Configuration property: entity object cache of DAOs, lru, weak or soft. Default - disabled.
+	 */
+	public final static String OBJECT_CACHE_PROPERTY = "objectCache";
+
+	/**
+	 * Configuration property: maximum count of cached objects for each entity class, used by lru cache, default 1000.
+	 */
+	public final static String OBJECT_CACHE_CAPACITY_PROPERTY = "objectCache.capacity";
+
+	/**
+	 * Default value of {@link #OBJECT_CACHE_CAPACITY_PROPERTY}.
+	 */
+	public final static int DEFAULT_OBJECT_CACHE_CAPACITY = 1000;
 		
 	@Override
 	public PersistenceContextFactoryWrapper create(
@@ -50,9 +120,95 @@ public class OrmlitePersistenceContextFactoryCreator implements PersistenceConte
 		final String username = (String)factoryProperties.get(USERNAME_PROPERTY);		
 		final String password = (String)factoryProperties.get(PASSWORD_PROPERTY);
 
-		final ConnectionSource connectionSource = 
-				ExceptionAdapter.get(() -> new JdbcConnectionSource(finalUrl, username, password));
+		final ConnectionSource connectionSource;
+		if(BooleanUtils.toBoolean(factoryProperties.get(POOL_PROPERTY))) {
+			connectionSource = ExceptionAdapter.get(() -> createPool(finalUrl, username, password, factoryProperties));
+		} else {
+			connectionSource = ExceptionAdapter.get(() -> new JdbcConnectionSource(finalUrl, username, password));
+		}
+		
+		final OrmliteDaoCache daoCache = 
+				ExceptionAdapter.get(() -> createDaoCache(connectionSource, factoryProperties));
+		
+		return new OrmlitePersistenceContextFactoryWrapper(connectionSource, daoCache);
+	}
+
+	protected OrmliteDaoCache createDaoCache(
+			ConnectionSource connectionSource, 
+			Map<String, String> factoryProperties) 
+					throws Exception {
+		try {
+			final OrmliteDaoCache daoCache = new OrmliteDaoCache(connectionSource, createObjectCache(factoryProperties));
+			daoCache.prepare(getEntityClasses(factoryProperties));
+			return daoCache;
+		} catch (Throwable e) {
+			connectionSource.close();
+			throw e;
+		}
+	}
+
+	protected OrmliteObjectCache createObjectCache(Map<String, String> factoryProperties) {
+		final String type = factoryProperties.get(OBJECT_CACHE_PROPERTY);
+		if(StringUtils.isBlank(type)) {
+			return null;
+		}
+		
+		final String capacity = factoryProperties.get(OBJECT_CACHE_CAPACITY_PROPERTY);
+		return OrmliteObjectCache.create(
+				OrmliteObjectCache.Type.valueOf(type.trim().toUpperCase()), 
+				capacity != null ? Integer.parseInt(capacity) : DEFAULT_OBJECT_CACHE_CAPACITY);
+	}
+
+	protected List<Class<?>> getEntityClasses(Map<String, String> factoryProperties) 
+			throws ClassNotFoundException {
+		final List<Class<?>> result = new ArrayList<>();
+		final String entities = factoryProperties.get(ENTITIES_PROPERTY);
+		if(entities != null) {
+			for(String entity : StringUtils.split(entities, ',')) {
+				if(StringUtils.isNotBlank(entity)) {
+					result.add(ClassUtils.getClass(entity.trim()));
+				}
+			}
+		}
+		return result;
+	}
+
+	protected OrmlitePooledConnectionSource createPool(
+			String url, 
+			String username, 
+			String password, 
+			Map<String, String> factoryProperties) 
+					throws SQLException {
+		final OrmlitePooledConnectionSource pool = new OrmlitePooledConnectionSource(url, username, password);
+		try {
+			if(factoryProperties.containsKey(POOL_MIN_SIZE_PROPERTY)) {
+				pool.setMinSize(Integer.parseInt(factoryProperties.get(POOL_MIN_SIZE_PROPERTY)));
+			}
+			if(factoryProperties.containsKey(POOL_MAX_SIZE_PROPERTY)) {
+				pool.setMaxSize(Integer.parseInt(factoryProperties.get(POOL_MAX_SIZE_PROPERTY)));
+			}
+			if(factoryProperties.containsKey(POOL_MAX_AGE_PROPERTY)) {
+				pool.setMaxAge(Long.parseLong(factoryProperties.get(POOL_MAX_AGE_PROPERTY)), TimeUnit.MILLISECONDS);
+			}
+			if(factoryProperties.containsKey(POOL_MAX_IDLE_TIME_PROPERTY)) {
+				pool.setMaxIdleTime(
+						Long.parseLong(factoryProperties.get(POOL_MAX_IDLE_TIME_PROPERTY)), TimeUnit.MILLISECONDS);
+			}
+			if(factoryProperties.containsKey(POOL_ACQUIRE_TIMEOUT_PROPERTY)) {
+				pool.setAcquireTimeout(
+						Long.parseLong(factoryProperties.get(POOL_ACQUIRE_TIMEOUT_PROPERTY)), TimeUnit.MILLISECONDS);
+			}
+			if(factoryProperties.containsKey(POOL_EVICTION_INTERVAL_PROPERTY)) {
+				pool.setEvictionInterval(
+						Long.parseLong(factoryProperties.get(POOL_EVICTION_INTERVAL_PROPERTY)), TimeUnit.MILLISECONDS);
+			}
+			pool.setValidationQuery(factoryProperties.get(POOL_VALIDATION_QUERY_PROPERTY));
+			pool.initialize();
+		} catch (Throwable e) {
+			pool.close();
+			throw e;
+		}
 		
-		return new OrmlitePersistenceContextFactoryWrapper(connectionSource);
+		return pool;
 	}
 }
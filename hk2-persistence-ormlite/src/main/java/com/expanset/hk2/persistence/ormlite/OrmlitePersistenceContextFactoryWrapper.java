@@ -16,25 +16,57 @@ public class OrmlitePersistenceContextFactoryWrapper implements PersistenceConte
 
 	protected final ConnectionSource connectionSource;
 
+	protected final OrmliteDaoCache daoCache;
+
 	/**
 	 * @param connectionSource Wrapped connection source.
 	 */
 	public OrmlitePersistenceContextFactoryWrapper(@Nonnull ConnectionSource connectionSource) {
+		this(connectionSource, new OrmliteDaoCache(connectionSource));
+	}
+
+	/**
+	 * @param connectionSource Wrapped connection source.
+	 * @param daoCache DAOs of the connection source.
+	 */
+	public OrmlitePersistenceContextFactoryWrapper(
+			@Nonnull ConnectionSource connectionSource, 
+			@Nonnull OrmliteDaoCache daoCache) {
 		Validate.notNull(connectionSource, "connectionSource");
+		Validate.notNull(daoCache, "daoCache");
 		
 		this.connectionSource = connectionSource;
+		this.daoCache = daoCache;
+	}
+
+	/**
+	 * @return Wrapped connection source ({@link OrmlitePooledConnectionSource} provides statistics of the pool).
+	 */
+	public ConnectionSource getConnectionSource() {
+		return connectionSource;
+	}
+
+	/**
+	 * @return DAOs of the connection source.
+	 */
+	public OrmliteDaoCache getDaoCache() {
+		return daoCache;
 	}
 
 	@Override
 	public PersistenceContextWrapper create(PersistenceContextKey key) {
 		Validate.notNull(key, "key");
 		
-		return new OrmlitePersistenceContextWrapper(connectionSource);
+		return new OrmlitePersistenceContextWrapper(connectionSource, daoCache, daoCache.getObjectCache());
 	}
 
 	@Override
 	public void close() 
 			throws Exception {
-		connectionSource.close();
+		try {
+			daoCache.close();
+		} finally {
+			connectionSource.close();
+		}
 	}
 }
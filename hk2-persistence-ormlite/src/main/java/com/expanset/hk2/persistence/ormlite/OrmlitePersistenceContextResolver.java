@@ -1,5 +1,11 @@
 package com.expanset.hk2.persistence.ormlite;
 
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.AbstractMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import javax.inject.Inject;
 import javax.inject.Provider;
 
@@ -9,29 +15,46 @@ import org.glassfish.hk2.api.ServiceHandle;
 import org.glassfish.hk2.utilities.reflection.ReflectionHelper;
 import org.jvnet.hk2.annotations.Service;
 
+import com.expanset.hk2.persistence.PersistenceContextFactoryAccessor;
 import com.expanset.hk2.persistence.PersistenceContextFactoryKey;
 import com.expanset.hk2.persistence.PersistenceContextKey;
 import com.expanset.hk2.persistence.PersistenceSessionManager;
+import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.support.ConnectionSource;
 
 /**
- * Support of {@link OrmlitePersistenceContext} annotation for {@link ConnectionSource} injecting.
+ * Support of {@link OrmlitePersistenceContext} annotation for {@link ConnectionSource} and {@link Dao} injecting.
+ * Persistence context keys are created once for each injection point.
  */
 @Service
 public class OrmlitePersistenceContextResolver implements InjectionResolver<OrmlitePersistenceContext> {
 
 	@Inject
 	protected Provider<PersistenceSessionManager> persistenceSessionManager;
+
+	@Inject
+	protected Provider<PersistenceContextFactoryAccessor> persistenceContextFactoryAccessor; 
+
+	/**
+	 * Keys of the fields and parameters of the methods, that were injected.
+	 */
+	protected final ConcurrentMap<Object, PersistenceContextKey> injectionPointKeys = 
+			new ConcurrentHashMap<>();
 					
 	@Override
 	public Object resolve(Injectee injectee, ServiceHandle<?> root) {
-		final String factoryName = ReflectionHelper.getNameFromAllQualifiers(
-				injectee.getRequiredQualifiers(), injectee.getParent());
+		final PersistenceContextKey key = 
+				injectionPointKeys.computeIfAbsent(getInjectionPoint(injectee), injectionPoint -> createKey(injectee));
+		
+		final String scope = injectee.getInjecteeDescriptor().getScope();
+		if(ReflectionHelper.getRawClass(injectee.getRequiredType()) == Dao.class) {
+			return resolveDao(injectee, key, scope);
+		}
 		
 		final ConnectionSource connectionSource = persistenceSessionManager.get().getPersistenceContext(
-				new PersistenceContextKey(new PersistenceContextFactoryKey(factoryName)), 
+				key, 
 				ConnectionSource.class, 
-				injectee.getInjecteeDescriptor().getScope());
+				scope);
 		return connectionSource;
 	}
 
@@ -44,4 +67,45 @@ public class OrmlitePersistenceContextResolver implements InjectionResolver<Orml
 	public boolean isMethodParameterIndicator() {
 		return false;
 	}
+
+	protected Dao<?, ?> resolveDao(Injectee injectee, PersistenceContextKey key, String scope) {
+		final Type requiredType = injectee.getRequiredType();
+		if(!(requiredType instanceof ParameterizedType)) {
+			throw new IllegalStateException("Entity class of DAO must be specified: " + injectee);
+		}
+		final Class<?> entityClass = 
+				ReflectionHelper.getRawClass(((ParameterizedType)requiredType).getActualTypeArguments()[0]);
+		if(entityClass == null) {
+			throw new IllegalStateException("Entity class of DAO must be specified: " + injectee);
+		}
+		
+		final PersistenceSessionManager sessionManager = persistenceSessionManager.get();
+		if(sessionManager.getScopes() != null && scope != null && !sessionManager.getScopes().contains(scope)) {
+			// Need to create proxy for other scopes.
+			return OrmliteDaoInvocationHandler.createDaoProxy(sessionManager, key, entityClass);
+		}
+		
+		final OrmliteDaoProvider daoProvider = 
+				sessionManager.getPersistenceContext(key, OrmliteDaoProvider.class, scope);
+		return daoProvider.getDao(entityClass);
+	}
+
+	protected PersistenceContextKey createKey(Injectee injectee) {
+		final String factoryName = ReflectionHelper.getNameFromAllQualifiers(
+				injectee.getRequiredQualifiers(), injectee.getParent());
+		
+		return persistenceContextFactoryAccessor.get().internKey(
+				new PersistenceContextKey(new PersistenceContextFactoryKey(factoryName)));
+	}
+
+	/**
+	 * @param injectee Injection point.
+	 * @return Field or pair of method and parameter position.
+	 */
+	protected static Object getInjectionPoint(Injectee injectee) {
+		if(injectee.getPosition() <= 0) {
+			return injectee.getParent();
+		}
+		return new AbstractMap.SimpleImmutableEntry<>(injectee.getParent(), injectee.getPosition());
+	}
 }
@@ -1,8 +1,10 @@
 package com.expanset.hk2.persistence.ormlite;
 
 import java.sql.Connection;
+import java.util.function.LongSupplier;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.transaction.Transaction;
 
 import org.apache.commons.lang.Validate;
@@ -19,21 +21,74 @@ public class OrmlitePersistenceContextWrapper implements PersistenceContextWrapp
 
 	protected final ConnectionSource connectionSource;
 
+	protected final OrmliteDaoProvider daoProvider;
+
+	protected final OrmliteObjectCache objectCache;
+
+	/**
+	 * Time before the deadline of statements in milliseconds or null.
+	 */
+	protected volatile LongSupplier remainingTime;
+
 	/**
 	 * @param connectionSource Wrapped connection source.
 	 */
 	public OrmlitePersistenceContextWrapper(@Nonnull ConnectionSource connectionSource) {
+		this(connectionSource, new OrmliteDaoCache(connectionSource));
+	}
+
+	/**
+	 * @param connectionSource Wrapped connection source.
+	 * @param daoProvider DAOs of the connection source.
+	 */
+	public OrmlitePersistenceContextWrapper(
+			@Nonnull ConnectionSource connectionSource, 
+			@Nonnull OrmliteDaoProvider daoProvider) {
+		this(connectionSource, daoProvider, null);
+	}
+
+	/**
+	 * @param connectionSource Wrapped connection source.
+	 * @param daoProvider DAOs of the connection source.
+	 * @param objectCache Entity object cache, that is cleaned after transactions, null - disabled.
+	 */
+	public OrmlitePersistenceContextWrapper(
+			@Nonnull ConnectionSource connectionSource, 
+			@Nonnull OrmliteDaoProvider daoProvider,
+			@Nullable OrmliteObjectCache objectCache) {
 		Validate.notNull(connectionSource, "connectionSource");
+		Validate.notNull(daoProvider, "daoProvider");
 		
 		this.connectionSource = connectionSource;
+		this.daoProvider = daoProvider;
+		this.objectCache = objectCache;
 	}
 	
 	@Override
 	public Transaction beginTransaction() 
 			throws Exception {
-		return new OrmliteTransaction(connectionSource);
+		return beginTransaction(false);
+	}
+
+	@Override
+	public Transaction beginTransaction(boolean readOnly) 
+			throws Exception {
+		return new OrmliteTransaction(connectionSource, objectCache, readOnly, () -> {
+			final LongSupplier currentRemainingTime = remainingTime;
+			return currentRemainingTime != null ? currentRemainingTime.getAsLong() : Long.MAX_VALUE;
+		});
 	}	
 	
+	/**
+	 * Remaining time is set as timeout to JDBC statements of transactions, that were begun by this 
+	 * persistence context, it is rounded up to seconds. Statements of other connections are not limited.
+	 */
+	@Override
+	public void setDeadline(@Nullable LongSupplier remainingTime) 
+			throws Exception {
+		this.remainingTime = remainingTime;
+	}
+	
 	@Override
 	@SuppressWarnings("unchecked")
 	public <T> T unwrap(Class<T> iface) 
@@ -43,6 +98,9 @@ public class OrmlitePersistenceContextWrapper implements PersistenceContextWrapp
 		if(iface.equals(ConnectionSource.class)) {
 			return (T)connectionSource;
 		}
+		if(iface.equals(OrmliteDaoProvider.class)) {
+			return (T)daoProvider;
+		}
 		if(iface.equals(ConnectionProvider.class)) {
 			return (T) new ConnectionProvider () {
 				private final JdbcDatabaseConnection connection = 
@@ -65,6 +123,7 @@ public class OrmlitePersistenceContextWrapper implements PersistenceContextWrapp
 		Validate.notNull(iface, "iface");
 		
 		return iface.equals(ConnectionSource.class) || 
+				iface.equals(OrmliteDaoProvider.class) ||
 				iface.equals(ConnectionProvider.class);
 	}	
 
@@ -0,0 +1,716 @@
+package com.expanset.hk2.persistence.ormlite;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.jdbc.DatabaseTypeUtils;
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.support.BaseConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+/**
+ * Connection source with the pool of JDBC connections for Ormlite persistence engine.
+ * <p>Pool keeps at least minimum count of connections and opens new connections up to maximum count,
+ * other threads wait for released connection during acquisition timeout. Connections are closed,
+ * when they are older than maximum age or idle longer than maximum idle time.</p>
+ * <p>Special connection of the transaction (see {@link OrmliteTransaction}) is returned to the thread,
+ * that saved it, and it is not returned to the pool until the transaction is completed.</p>
+ * <p>Unlike {@link com.j256.ormlite.jdbc.JdbcPooledConnectionSource}, the count of open connections is limited
+ * and threads wait for a connection when the limit is reached.</p>
+ * <p>Settings must be changed before {@link #initialize()}.</p>
+ */
+@ThreadSafe
+public class OrmlitePooledConnectionSource extends BaseConnectionSource {
+
+	protected final String url;
+
+	protected final String username;
+
+	protected final String password;
+
+	protected final DatabaseType databaseType;
+
+	protected int minSize;
+
+	protected int maxSize = 10;
+
+	protected long maxAge;
+
+	protected long maxIdleTime = TimeUnit.MINUTES.toNanos(10);
+
+	protected long acquireTimeout = TimeUnit.SECONDS.toNanos(30);
+
+	protected long evictionInterval = TimeUnit.SECONDS.toMillis(30);
+
+	protected String validationQuery;
+
+	/**
+	 * Idle connection is validated before using, if it was not used during this time.
+	 */
+	protected long validationIdleTime = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Guards the pool state.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	protected final Condition released = lock.newCondition();
+
+	/**
+	 * Idle connections, recently used connections are first.
+	 */
+	protected final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+	protected final Map<DatabaseConnection, PooledConnection> leased = new IdentityHashMap<>();
+
+	/**
+	 * Count of opened and opening connections (guarded by the lock).
+	 */
+	protected int size;
+
+	/**
+	 * Count of threads, that wait for connection (guarded by the lock).
+	 */
+	protected int waiting;
+
+	protected boolean open = true;
+
+	protected ScheduledFuture<?> eviction;
+
+	protected final LongAdder opened = new LongAdder();
+
+	protected final LongAdder closed = new LongAdder();
+
+	protected final LongAdder acquired = new LongAdder();
+
+	protected final LongAdder timeouts = new LongAdder();
+
+	protected final LongAdder validationFailures = new LongAdder();
+
+	private final static ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, OrmlitePooledConnectionSource.class.getSimpleName() + "-maintenance");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final static Logger log = LoggerFactory.getLogger(OrmlitePooledConnectionSource.class);
+
+	private final static com.j256.ormlite.logger.Logger ormliteLog =
+			com.j256.ormlite.logger.LoggerFactory.getLogger(OrmlitePooledConnectionSource.class);
+
+	/**
+	 * @param url Database URL.
+	 * @param username Database login.
+	 * @param password Database password.
+	 * @throws SQLException Database driver error.
+	 */
+	public OrmlitePooledConnectionSource(
+			@Nonnull String url,
+			@Nullable String username,
+			@Nullable String password)
+			throws SQLException {
+		this(url, username, password, DatabaseTypeUtils.createDatabaseType(url));
+	}
+
+	/**
+	 * @param url Database URL.
+	 * @param username Database login.
+	 * @param password Database password.
+	 * @param databaseType Type of the database.
+	 * @throws SQLException Database driver error.
+	 */
+	public OrmlitePooledConnectionSource(
+			@Nonnull String url,
+			@Nullable String username,
+			@Nullable String password,
+			@Nonnull DatabaseType databaseType)
+			throws SQLException {
+		Validate.notEmpty(url, "url");
+		Validate.notNull(databaseType, "databaseType");
+
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.databaseType = databaseType;
+		this.databaseType.loadDriver();
+	}
+
+	/**
+	 * @param minSize Count of connections, that are kept open even if they are idle.
+	 */
+	public void setMinSize(int minSize) {
+		Validate.isTrue(minSize >= 0, "minSize");
+
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @param maxSize Maximum count of open connections.
+	 */
+	public void setMaxSize(int maxSize) {
+		Validate.isTrue(maxSize > 0, "maxSize");
+
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param maxAge Age, after that connection is closed, 0 - not limited.
+	 * @param unit Unit of the age.
+	 */
+	public void setMaxAge(long maxAge, @Nonnull TimeUnit unit) {
+		Validate.isTrue(maxAge >= 0, "maxAge");
+		Validate.notNull(unit, "unit");
+
+		this.maxAge = unit.toNanos(maxAge);
+	}
+
+	/**
+	 * @param maxIdleTime Time, after that idle connection is closed, 0 - not limited.
+	 * @param unit Unit of the time.
+	 */
+	public void setMaxIdleTime(long maxIdleTime, @Nonnull TimeUnit unit) {
+		Validate.isTrue(maxIdleTime >= 0, "maxIdleTime");
+		Validate.notNull(unit, "unit");
+
+		this.maxIdleTime = unit.toNanos(maxIdleTime);
+	}
+
+	/**
+	 * @param acquireTimeout Time to wait for the connection, when all connections are used.
+	 * @param unit Unit of the timeout.
+	 */
+	public void setAcquireTimeout(long acquireTimeout, @Nonnull TimeUnit unit) {
+		Validate.isTrue(acquireTimeout >= 0, "acquireTimeout");
+		Validate.notNull(unit, "unit");
+
+		this.acquireTimeout = unit.toNanos(acquireTimeout);
+	}
+
+	/**
+	 * @param evictionInterval Interval of closing idle and old connections, 0 - they are closed only on release.
+	 * @param unit Unit of the interval.
+	 */
+	public void setEvictionInterval(long evictionInterval, @Nonnull TimeUnit unit) {
+		Validate.isTrue(evictionInterval >= 0, "evictionInterval");
+		Validate.notNull(unit, "unit");
+
+		this.evictionInterval = unit.toMillis(evictionInterval);
+	}
+
+	/**
+	 * @param validationQuery Query to check idle connection before using (SELECT 1 in example) or null.
+	 */
+	public void setValidationQuery(@Nullable String validationQuery) {
+		this.validationQuery = validationQuery;
+	}
+
+	/**
+	 * @param validationIdleTime Idle time, after that connection is validated before using, 0 - always validated.
+	 * @param unit Unit of the time.
+	 */
+	public void setValidationIdleTime(long validationIdleTime, @Nonnull TimeUnit unit) {
+		Validate.isTrue(validationIdleTime >= 0, "validationIdleTime");
+		Validate.notNull(unit, "unit");
+
+		this.validationIdleTime = unit.toNanos(validationIdleTime);
+	}
+
+	/**
+	 * Opens minimum count of connections and starts eviction of idle connections.
+	 * @throws SQLException Connection error.
+	 */
+	public void initialize()
+			throws SQLException {
+		Validate.isTrue(minSize <= maxSize, "minSize must not be greater than maxSize");
+
+		fill();
+		if(evictionInterval > 0) {
+			eviction = maintenanceExecutor.scheduleWithFixedDelay(
+					this::evict, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public DatabaseConnection getReadOnlyConnection()
+			throws SQLException {
+		return getReadWriteConnection();
+	}
+
+	@Override
+	public DatabaseConnection getReadWriteConnection()
+			throws SQLException {
+		final DatabaseConnection savedConnection = getSavedConnection();
+		if(savedConnection != null) {
+			return savedConnection;
+		}
+
+		return acquire().connection;
+	}
+
+	@Override
+	public void releaseConnection(DatabaseConnection connection)
+			throws SQLException {
+		if(connection == null || isSavedConnection(connection)) {
+			// Connection is used by the transaction.
+			return;
+		}
+
+		final boolean broken = isBroken(connection);
+		final long now = System.nanoTime();
+		PooledConnection pooled;
+		boolean discard = true;
+		lock.lock();
+		try {
+			pooled = leased.remove(connection);
+			if(pooled != null && open && !broken && !isExpired(pooled, now)) {
+				pooled.lastUsed = now;
+				idle.addFirst(pooled);
+				released.signal();
+				discard = false;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if(pooled == null) {
+			log.warn("Released connection does not belong to the pool, it is closed");
+			connection.closeQuietly();
+		} else if(discard) {
+			discard(pooled);
+		}
+	}
+
+	@Override
+	public boolean saveSpecialConnection(DatabaseConnection connection)
+			throws SQLException {
+		return saveSpecial(connection);
+	}
+
+	@Override
+	public void clearSpecialConnection(DatabaseConnection connection) {
+		clearSpecial(connection, ormliteLog);
+	}
+
+	@Override
+	public DatabaseType getDatabaseType() {
+		return databaseType;
+	}
+
+	@Override
+	public boolean isOpen() {
+		lock.lock();
+		try {
+			return open;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes idle connections, used connections are closed when they are released.
+	 */
+	@Override
+	public void close() {
+		final List<PooledConnection> connections = new ArrayList<>();
+		lock.lock();
+		try {
+			if(!open) {
+				return;
+			}
+			open = false;
+			if(eviction != null) {
+				eviction.cancel(false);
+				eviction = null;
+			}
+			connections.addAll(idle);
+			idle.clear();
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		for(PooledConnection pooled : connections) {
+			discard(pooled);
+		}
+	}
+
+	@Override
+	public void closeQuietly() {
+		close();
+	}
+
+	/**
+	 * @return Statistics of the pool.
+	 */
+	public Statistics getStatistics() {
+		lock.lock();
+		try {
+			return new Statistics(
+					size, idle.size(), leased.size(), waiting,
+					opened.sum(), closed.sum(), acquired.sum(), timeouts.sum(), validationFailures.sum());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private PooledConnection acquire()
+			throws SQLException {
+		final long deadline = System.nanoTime() + acquireTimeout;
+		for(;;) {
+			PooledConnection pooled;
+			lock.lock();
+			try {
+				if(!open) {
+					throw new SQLException("Connection source is closed");
+				}
+
+				pooled = idle.pollFirst();
+				if(pooled == null) {
+					if(size >= maxSize) {
+						final long timeout = deadline - System.nanoTime();
+						if(timeout <= 0) {
+							timeouts.increment();
+							throw new SQLException(String.format(
+									"Connection is not acquired during %d ms, all %d connections are used",
+									TimeUnit.NANOSECONDS.toMillis(acquireTimeout), size));
+						}
+						waiting++;
+						try {
+							released.awaitNanos(timeout);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new SQLException("Waiting for connection is interrupted", e);
+						} finally {
+							waiting--;
+						}
+						continue;
+					}
+					size++;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if(pooled == null) {
+				pooled = openConnection();
+			} else if(!isValid(pooled)) {
+				discard(pooled);
+				continue;
+			}
+
+			lock.lock();
+			try {
+				if(open) {
+					leased.put(pooled.connection, pooled);
+					acquired.increment();
+					return pooled;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			discard(pooled);
+			throw new SQLException("Connection source is closed");
+		}
+	}
+
+	private PooledConnection openConnection()
+			throws SQLException {
+		try {
+			final DatabaseConnection connection = connect();
+			opened.increment();
+
+			return new PooledConnection(connection);
+		} catch (SQLException | RuntimeException e) {
+			lock.lock();
+			try {
+				size--;
+				released.signal();
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens new connection of the pool.
+	 * @return Opened connection in auto-commit mode.
+	 * @throws SQLException Connection error.
+	 */
+	protected DatabaseConnection connect()
+			throws SQLException {
+		final Properties properties = new Properties();
+		if(username != null) {
+			properties.setProperty("user", username);
+		}
+		if(password != null) {
+			properties.setProperty("password", password);
+		}
+		final DatabaseConnection connection =
+				new JdbcDatabaseConnection(DriverManager.getConnection(url, properties));
+		try {
+			connection.setAutoCommit(true);
+		} catch (SQLException | RuntimeException e) {
+			connection.closeQuietly();
+			throw e;
+		}
+		return connection;
+	}
+
+	private void discard(PooledConnection pooled) {
+		pooled.connection.closeQuietly();
+		closed.increment();
+
+		lock.lock();
+		try {
+			size--;
+			released.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isValid(PooledConnection pooled) {
+		final long now = System.nanoTime();
+		if(isExpired(pooled, now)) {
+			return false;
+		}
+		if(validationQuery == null || now - pooled.lastUsed < validationIdleTime) {
+			return true;
+		}
+
+		try {
+			pooled.connection.queryForLong(validationQuery);
+			return true;
+		} catch (SQLException | RuntimeException e) {
+			validationFailures.increment();
+			log.debug("Connection validation is failed", e);
+			return false;
+		}
+	}
+
+	private boolean isExpired(PooledConnection pooled, long now) {
+		return maxAge > 0 && now - pooled.created > maxAge;
+	}
+
+	private static boolean isBroken(DatabaseConnection connection) {
+		try {
+			// Connection of not completed transaction should not be reused.
+			return connection.isClosed() || !connection.isAutoCommit();
+		} catch (SQLException | RuntimeException e) {
+			return true;
+		}
+	}
+
+	private void fill() {
+		for(;;) {
+			lock.lock();
+			try {
+				if(!open || size >= minSize) {
+					return;
+				}
+				size++;
+			} finally {
+				lock.unlock();
+			}
+
+			final PooledConnection pooled;
+			try {
+				pooled = openConnection();
+			} catch (SQLException | RuntimeException e) {
+				log.warn("Connection of the pool is not opened", e);
+				return;
+			}
+
+			lock.lock();
+			try {
+				if(open) {
+					idle.addLast(pooled);
+					released.signal();
+					continue;
+				}
+			} finally {
+				lock.unlock();
+			}
+			discard(pooled);
+		}
+	}
+
+	private void evict() {
+		final List<PooledConnection> expired = new ArrayList<>();
+		final long now = System.nanoTime();
+		lock.lock();
+		try {
+			// Least recently used connections are last.
+			final Iterator<PooledConnection> iterator = idle.descendingIterator();
+			while(iterator.hasNext()) {
+				final PooledConnection pooled = iterator.next();
+				if(isExpired(pooled, now) ||
+						(maxIdleTime > 0 && now - pooled.lastUsed > maxIdleTime && size - expired.size() > minSize)) {
+					iterator.remove();
+					expired.add(pooled);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		for(PooledConnection pooled : expired) {
+			discard(pooled);
+		}
+		if(!expired.isEmpty()) {
+			log.debug("{} idle connections are closed", expired.size());
+		}
+
+		fill();
+	}
+
+	/**
+	 * Connection of the pool.
+	 */
+	protected static final class PooledConnection {
+
+		private final DatabaseConnection connection;
+
+		private final long created = System.nanoTime();
+
+		private long lastUsed = created;
+
+		public PooledConnection(DatabaseConnection connection) {
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * Statistics of the pool.
+	 */
+	public static final class Statistics {
+
+		private final int size;
+
+		private final int idle;
+
+		private final int leased;
+
+		private final int waiting;
+
+		private final long opened;
+
+		private final long closed;
+
+		private final long acquired;
+
+		private final long timeouts;
+
+		private final long validationFailures;
+
+		private Statistics(
+				int size, int idle, int leased, int waiting,
+				long opened, long closed, long acquired, long timeouts, long validationFailures) {
+			this.size = size;
+			this.idle = idle;
+			this.leased = leased;
+			this.waiting = waiting;
+			this.opened = opened;
+			this.closed = closed;
+			this.acquired = acquired;
+			this.timeouts = timeouts;
+			this.validationFailures = validationFailures;
+		}
+
+		/**
+		 * @return Count of open connections.
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return Count of idle connections.
+		 */
+		public int getIdle() {
+			return idle;
+		}
+
+		/**
+		 * @return Count of used connections.
+		 */
+		public int getLeased() {
+			return leased;
+		}
+
+		/**
+		 * @return Count of threads, that wait for connection.
+		 */
+		public int getWaiting() {
+			return waiting;
+		}
+
+		/**
+		 * @return Count of opened connections.
+		 */
+		public long getOpened() {
+			return opened;
+		}
+
+		/**
+		 * @return Count of closed connections.
+		 */
+		public long getClosed() {
+			return closed;
+		}
+
+		/**
+		 * @return Count of acquired connections.
+		 */
+		public long getAcquired() {
+			return acquired;
+		}
+
+		/**
+		 * @return Count of failed acquisitions because of timeout.
+		 */
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		/**
+		 * @return Count of failed validations of idle connections.
+		 */
+		public long getValidationFailures() {
+			return validationFailures;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"size: %d, idle: %d, leased: %d, waiting: %d, opened: %d, closed: %d, acquired: %d, timeouts: %d, validation failures: %d",
+					size, idle, leased, waiting, opened, closed, acquired, timeouts, validationFailures);
+		}
+	}
+}
@@ -1,10 +1,17 @@
 package com.expanset.hk2.persistence.ormlite;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Savepoint;
+import java.sql.Statement;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.RollbackException;
@@ -17,11 +24,15 @@ import javax.transaction.xa.XAResource;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.lang.Validate;
 
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
 import com.j256.ormlite.support.ConnectionSource;
 import com.j256.ormlite.support.DatabaseConnection;
 
 /**
  * Implementation of {@link Transaction} for Ormlite persistence engine.
+ * <p>Read-only transaction marks JDBC connection as read-only and is completed by rollback.</p>
+ * <p>When query timeout is supplied, it is set to each JDBC statement, that is created on the connection
+ * of the transaction.</p>
  */
 public class OrmliteTransaction implements Transaction, AutoCloseable {
 
@@ -30,10 +41,24 @@ public class OrmliteTransaction implements Transaction, AutoCloseable {
 	protected final ConnectionSource connectionSource;
 	
 	protected final DatabaseConnection connection;
+
+	/**
+	 * Connection, that was leased from the connection source.
+	 */
+	protected final DatabaseConnection leasedConnection;
 			
 	protected final Savepoint savepoint;
 	
 	protected final boolean autoCommitAtStart;	
+
+	protected final OrmliteObjectCache.Tracking cacheTracking;
+
+	protected final boolean readOnly;
+
+	/**
+	 * JDBC connection, that was marked as read-only by this transaction.
+	 */
+	protected final Connection readOnlyConnection;
 		
 	protected final static String SAVE_POINT_PREFIX = "ORMLITE";
 	
@@ -45,12 +70,68 @@ public class OrmliteTransaction implements Transaction, AutoCloseable {
 	 */
 	public OrmliteTransaction(@Nonnull ConnectionSource connectionSource) 
 			throws SQLException {
+		this(connectionSource, null);
+	}
+
+	/**
+	 * @param connectionSource {@link ConnectionSource} for transaction.
+	 * @param objectCache Entity object cache, entries touched in the transaction are removed after it.
+	 * @throws SQLException Connection error.
+	 */
+	public OrmliteTransaction(@Nonnull ConnectionSource connectionSource, @Nullable OrmliteObjectCache objectCache) 
+			throws SQLException {
+		this(connectionSource, objectCache, false);
+	}
+
+	/**
+	 * @param connectionSource {@link ConnectionSource} for transaction.
+	 * @param objectCache Entity object cache, entries touched in the transaction are removed after it.
+	 * @param readOnly true if the transaction does not change data.
+	 * @throws SQLException Connection error.
+	 */
+	public OrmliteTransaction(
+			@Nonnull ConnectionSource connectionSource, 
+			@Nullable OrmliteObjectCache objectCache, 
+			boolean readOnly) 
+					throws SQLException {
+		this(connectionSource, objectCache, readOnly, null);
+	}
+
+	/**
+	 * @param connectionSource {@link ConnectionSource} for transaction.
+	 * @param objectCache Entity object cache, entries touched in the transaction are removed after it.
+	 * @param readOnly true if the transaction does not change data.
+	 * @param remainingTime Time before the deadline of statements in milliseconds, 
+	 * {@link Long#MAX_VALUE} - not limited, null - not used.
+	 * @throws SQLException Connection error.
+	 */
+	public OrmliteTransaction(
+			@Nonnull ConnectionSource connectionSource, 
+			@Nullable OrmliteObjectCache objectCache, 
+			boolean readOnly,
+			@Nullable LongSupplier remainingTime) 
+					throws SQLException {
 		Validate.notNull(connectionSource, "connectionSource");
 		
 		this.connectionSource = connectionSource;	
-		this.connection = this.connectionSource.getReadWriteConnection();
+		this.readOnly = readOnly;
+		this.leasedConnection = this.connectionSource.getReadWriteConnection();
+		// Nested transaction uses statements of the outer one.
+		this.connection = remainingTime != null && leasedConnection instanceof JdbcDatabaseConnection && 
+				this.connectionSource.getSpecialConnection() == null ?
+						new JdbcDatabaseConnection(withDeadline(
+								((JdbcDatabaseConnection)leasedConnection).getInternalConnection(), remainingTime)) :
+						leasedConnection;
 		
 		final boolean saved = this.connectionSource.saveSpecialConnection(connection);	
+		// Read-only mode can be changed only outside of the transaction.
+		if (readOnly && saved && connection instanceof JdbcDatabaseConnection &&
+				!((JdbcDatabaseConnection)connection).getInternalConnection().isReadOnly()) {
+			readOnlyConnection = ((JdbcDatabaseConnection)connection).getInternalConnection();
+			readOnlyConnection.setReadOnly(true);
+		} else {
+			readOnlyConnection = null;
+		}
 		if (saved || connectionSource.getDatabaseType().isNestedSavePointsSupported()) {
 			if (connection.isAutoCommitSupported()) {
 				autoCommitAtStart = connection.isAutoCommit();
@@ -65,6 +146,7 @@ public class OrmliteTransaction implements Transaction, AutoCloseable {
 			savepoint = null;
 			autoCommitAtStart = false;
 		}		
+		this.cacheTracking = objectCache != null ? objectCache.beginTracking() : null;
 	} 
 	
 	@Override
@@ -96,12 +178,23 @@ public class OrmliteTransaction implements Transaction, AutoCloseable {
 		}
 		
 		status = Status.STATUS_COMMITTING;
+		boolean committed = false;
 		try {
-			connection.commit(savepoint);
+			if(readOnly) {
+				connection.rollback(savepoint);
+			} else {
+				connection.commit(savepoint);
+				committed = true;
+			}
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		} finally {
 			status = Status.STATUS_COMMITTED;
+			if(committed) {
+				commitCache();
+			} else {
+				invalidateCache();
+			}
 		}
 	}
 
@@ -121,6 +214,7 @@ public class OrmliteTransaction implements Transaction, AutoCloseable {
 			}
 		} finally {
 			status = Status.STATUS_ROLLEDBACK;
+			invalidateCache();
 		}
 	}
 	
@@ -143,9 +237,65 @@ public class OrmliteTransaction implements Transaction, AutoCloseable {
 			if (autoCommitAtStart) {
 				connection.setAutoCommit(true);
 			}			
+			if (readOnlyConnection != null) {
+				readOnlyConnection.setReadOnly(false);
+			}
 		} finally {
+			if(cacheTracking != null) {
+				cacheTracking.close();
+			}
 			connectionSource.clearSpecialConnection(connection);
-			connectionSource.releaseConnection(connection);
+			connectionSource.releaseConnection(leasedConnection);
+		}
+	}
+
+	/**
+	 * Sets remaining time before the deadline as timeout to statements, that are created by the connection. 
+	 * Statements are not created, when the deadline is passed.
+	 * @param connection JDBC connection.
+	 * @param remainingTime Time before the deadline in milliseconds, {@link Long#MAX_VALUE} - not limited.
+	 * @return Connection, that sets timeout to statements.
+	 */
+	protected static Connection withDeadline(Connection connection, LongSupplier remainingTime) {
+		return (Connection)Proxy.newProxyInstance(
+				Connection.class.getClassLoader(), 
+				new Class<?>[] { Connection.class }, 
+				(proxy, method, args) -> {
+					if(!Statement.class.isAssignableFrom(method.getReturnType())) {
+						try {
+							return method.invoke(connection, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+
+					final long milliseconds = remainingTime.getAsLong();
+					if(milliseconds <= 0) {
+						throw new SQLTimeoutException("Deadline of the transaction is passed");
+					}
+					final Statement result;
+					try {
+						result = (Statement)method.invoke(connection, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+					if(result != null && milliseconds != Long.MAX_VALUE) {
+						// JDBC timeout is in seconds, 0 is no limit.
+						result.setQueryTimeout((int)Math.min((milliseconds + 999) / 1000, Integer.MAX_VALUE));
+					}
+					return result;
+				});
+	}
+
+	protected void commitCache() {
+		if(cacheTracking != null) {
+			cacheTracking.commit();
+		}
+	}
+
+	protected void invalidateCache() {
+		if(cacheTracking != null) {
+			cacheTracking.invalidate();
 		}
 	}
 }
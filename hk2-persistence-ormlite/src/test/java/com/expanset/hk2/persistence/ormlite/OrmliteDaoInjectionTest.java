@@ -0,0 +1,234 @@
+package com.expanset.hk2.persistence.ormlite;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.glassfish.hk2.api.PerLookup;
+import org.glassfish.hk2.api.ServiceLocator;
+import org.glassfish.hk2.api.ServiceLocatorFactory;
+import org.glassfish.hk2.utilities.ServiceLocatorUtilities;
+import org.glassfish.hk2.utilities.binding.AbstractBinder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.expanset.hk2.persistence.PersistenceContextFactoryAccessor;
+import com.expanset.hk2.persistence.PersistenceContextFactoryCreator;
+import com.expanset.hk2.persistence.PersistenceContextFactoryKey;
+import com.expanset.hk2.persistence.PersistenceContextFactoryWrapper;
+import com.expanset.hk2.persistence.PersistenceContextKey;
+import com.expanset.hk2.persistence.PersistenceSessionManager;
+import com.expanset.hk2.persistence.ThreadScopePersistenceSessionManager;
+import com.expanset.hk2.persistence.transactions.LocalTransactionsBinder;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.support.ConnectionSource;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class OrmliteDaoInjectionTest {
+
+	private ServiceLocator serviceLocator;
+	
+	private PersistenceSessionManager sessionManager;
+	
+	private TestDaoCache daoCache1;
+
+	private TestDaoCache daoCache2;
+	
+	private PersistenceContextFactoryWrapper factoryWrapper1;
+	
+	@Before
+	public void init() 
+			throws Exception {
+		serviceLocator = ServiceLocatorUtilities.bind(new OrmlitePersistenceBinder() {
+			@Override
+			protected void configure() {
+				super.configure();
+				
+				install(new LocalTransactionsBinder());
+
+				addActiveDescriptor(ThreadScopePersistenceSessionManager.class);
+				addActiveDescriptor(LookupService.class);
+				addActiveDescriptor(SingletonService.class);
+			}
+		});
+		
+		final ConnectionSource connectionSource = mock(ConnectionSource.class);
+		daoCache1 = new TestDaoCache(connectionSource, new Entity());
+		daoCache2 = new TestDaoCache(connectionSource, new Entity());
+		factoryWrapper1 = createFactoryWrapper(connectionSource, daoCache1);
+		final PersistenceContextFactoryWrapper factoryWrapper2 = createFactoryWrapper(connectionSource, daoCache2);
+
+		final Map<String, String> factoryProperties1 = Collections.singletonMap("key1", "value1");
+		final Map<String, String> factoryProperties2 = Collections.singletonMap("key2", "value2");
+		
+		final PersistenceContextFactoryCreator factoryCreator = mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(eq(new PersistenceContextFactoryKey("test1")), eq(factoryProperties1), any()))
+			.thenReturn(factoryWrapper1);
+		when(factoryCreator.create(eq(new PersistenceContextFactoryKey("test2")), eq(factoryProperties2), any()))
+			.thenReturn(factoryWrapper2);
+		
+		ServiceLocatorUtilities.bind(serviceLocator, new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class)
+					.ranked(1);
+			}
+		});
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test1", factoryProperties1);
+		accessor.setFactoryProperties("test2", factoryProperties2);
+		
+		sessionManager = serviceLocator.getService(PersistenceSessionManager.class);
+	}
+
+	@After
+	public void done() {
+		ServiceLocatorFactory.getInstance().destroy(serviceLocator);
+	}	
+	
+	@Test
+	public void daoIdentityInSession() 
+			throws Exception {
+		try(AutoCloseable scope = sessionManager.beginSession()) {
+			final Dao<Entity, Long> dao1 = serviceLocator.getService(LookupService.class).dao;
+			final Dao<Entity, Long> dao2 = serviceLocator.getService(LookupService.class).dao;
+			
+			assertNotNull(dao1);
+			assertSame(dao1, dao2);
+			assertSame(daoCache1.entity, dao1.queryForId(1L));
+		}
+		
+		assertEquals(1, daoCache1.created.get());
+		verify(factoryWrapper1, times(1)).create(any(PersistenceContextKey.class));
+	}
+
+	@Test
+	public void daoReuseAcrossSessions() 
+			throws Exception {
+		final Dao<Entity, Long> dao1;
+		try(AutoCloseable scope = sessionManager.beginSession()) {
+			dao1 = serviceLocator.getService(LookupService.class).dao;
+		}
+		final Dao<Entity, Long> dao2;
+		try(AutoCloseable scope = sessionManager.beginSession()) {
+			dao2 = serviceLocator.getService(LookupService.class).dao;
+		}
+		
+		assertSame(dao1, dao2);
+		assertEquals(1, daoCache1.created.get());
+		verify(factoryWrapper1, times(2)).create(any(PersistenceContextKey.class));
+	}
+
+	@Test
+	public void daoOfOverriddenFactory() 
+			throws Exception {
+		final Map<String, String> nameOverrides = new HashMap<>();
+		nameOverrides.put("test1", "test2");
+		
+		try(AutoCloseable scope = sessionManager.beginSession(nameOverrides)) {
+			final Dao<Entity, Long> dao = serviceLocator.getService(LookupService.class).dao;
+			
+			assertSame(daoCache2.entity, dao.queryForId(1L));
+		}
+		
+		assertEquals(0, daoCache1.created.get());
+		assertEquals(1, daoCache2.created.get());
+	}
+
+	@Test
+	public void proxyDispatchAfterSessionChange() 
+			throws Exception {
+		final SingletonService service;
+		try(AutoCloseable scope = sessionManager.beginSession()) {
+			service = serviceLocator.getService(SingletonService.class);
+			
+			assertNotSame(daoCache1.dao, service.dao);
+			assertSame(daoCache1.entity, service.dao.queryForId(1L));
+		}
+		
+		final Map<String, String> nameOverrides = new HashMap<>();
+		nameOverrides.put("test1", "test2");
+		try(AutoCloseable scope = sessionManager.beginSession(nameOverrides)) {
+			assertSame(service, serviceLocator.getService(SingletonService.class));
+			assertSame(daoCache2.entity, service.dao.queryForId(1L));
+		}
+		
+		try(AutoCloseable scope = sessionManager.beginSession()) {
+			assertSame(daoCache1.entity, service.dao.queryForId(1L));
+		}
+		
+		try {
+			service.dao.queryForId(1L);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		
+		assertEquals(1, daoCache1.created.get());
+		assertEquals(1, daoCache2.created.get());
+	}
+	
+	private static PersistenceContextFactoryWrapper createFactoryWrapper(
+			ConnectionSource connectionSource, OrmliteDaoProvider daoProvider) {
+		final PersistenceContextFactoryWrapper factoryWrapper = mock(PersistenceContextFactoryWrapper.class);
+		when(factoryWrapper.create(any(PersistenceContextKey.class)))
+			.thenAnswer(invocation -> new OrmlitePersistenceContextWrapper(connectionSource, daoProvider));
+		return factoryWrapper;
+	}
+	
+	public static class Entity {
+	}
+
+	@PerLookup
+	public static class LookupService {
+		
+		@OrmlitePersistenceContext
+		@Named("test1")
+		private Dao<Entity, Long> dao;
+	}
+
+	@Singleton
+	public static class SingletonService {
+		
+		@OrmlitePersistenceContext
+		@Named("test1")
+		private Dao<Entity, Long> dao;
+	}
+	
+	private static class TestDaoCache extends OrmliteDaoCache {
+		
+		private final AtomicInteger created = new AtomicInteger();
+		
+		private final Entity entity;
+		
+		private final Dao<Entity, Long> dao;
+
+		@SuppressWarnings("unchecked")
+		public TestDaoCache(ConnectionSource connectionSource, Entity entity) 
+				throws SQLException {
+			super(connectionSource);
+			
+			this.entity = entity;
+			this.dao = mock(Dao.class);
+			when(dao.queryForId(1L)).thenReturn(entity);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected <T> Dao<T, ?> createDao(Class<T> entityClass) 
+				throws SQLException {
+			created.incrementAndGet();
+			return (Dao<T, ?>)dao;
+		}
+	}
+}
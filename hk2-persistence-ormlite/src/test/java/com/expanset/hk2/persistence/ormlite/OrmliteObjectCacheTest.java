@@ -0,0 +1,166 @@
+package com.expanset.hk2.persistence.ormlite;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.ObjectCache;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class OrmliteObjectCacheTest {
+
+	private ObjectCache delegate;
+	
+	private OrmliteObjectCache objectCache;
+	
+	private Dao<Entity, Integer> dao;
+	
+	private Entity entity;
+	
+	@Before
+	@SuppressWarnings("unchecked")
+	public void init() 
+			throws Exception {
+		delegate = mock(ObjectCache.class);
+		objectCache = new OrmliteObjectCache(delegate);
+		entity = new Entity();
+		
+		final Dao<Entity, Integer> rawDao = mock(Dao.class);
+		when(rawDao.queryForId(1)).thenAnswer(invocation -> objectCache.get(Entity.class, 1));
+		when(rawDao.create(entity)).thenAnswer(invocation -> {
+			objectCache.put(Entity.class, 1, entity);
+			return 1;
+		});
+		when(rawDao.update(entity)).thenAnswer(invocation -> {
+			objectCache.get(Entity.class, 1);
+			return 1;
+		});
+		when(rawDao.delete(entity)).thenAnswer(invocation -> {
+			objectCache.remove(Entity.class, 1);
+			return 1;
+		});
+		dao = objectCache.trackWrites(rawDao);
+	}
+	
+	@Test
+	public void readsAreNotTracked() 
+			throws Exception {
+		when(delegate.get(Entity.class, 1)).thenReturn(entity);
+		
+		try(OrmliteObjectCache.Tracking tracking = objectCache.beginTracking()) {
+			assertSame(entity, dao.queryForId(1));
+			assertSame(entity, dao.queryForId(1));
+			tracking.invalidate();
+		}
+		
+		verify(delegate, never()).remove(Entity.class, 1);
+		assertEquals(0, objectCache.getStatistics().getInvalidations());
+		assertEquals(2, objectCache.getStatistics().getHits());
+	}
+
+	@Test
+	public void writesAreInvalidatedOnRollback() 
+			throws Exception {
+		when(delegate.get(Entity.class, 1)).thenReturn(entity);
+
+		try(OrmliteObjectCache.Tracking tracking = objectCache.beginTracking()) {
+			dao.create(entity);
+			dao.update(entity);
+			dao.queryForId(1);
+			tracking.invalidate();
+		}
+		
+		verify(delegate, times(2)).remove(Entity.class, 1);
+		assertEquals(2, objectCache.getStatistics().getInvalidations());
+	}
+
+	@Test
+	public void writesAreKeptOnCommit() 
+			throws Exception {
+		try(OrmliteObjectCache.Tracking tracking = objectCache.beginTracking()) {
+			dao.create(entity);
+			tracking.commit();
+		}
+		
+		verify(delegate).put(Entity.class, 1, entity);
+		verify(delegate, never()).remove(Entity.class, 1);
+		assertEquals(0, objectCache.getStatistics().getInvalidations());
+	}
+
+	@Test
+	public void nestedWritesAreInvalidatedOnRollback() 
+			throws Exception {
+		try(OrmliteObjectCache.Tracking tracking = objectCache.beginTracking()) {
+			try(OrmliteObjectCache.Tracking nestedTracking = objectCache.beginTracking()) {
+				dao.create(entity);
+				nestedTracking.commit();
+			}
+			verify(delegate, never()).remove(Entity.class, 1);
+			
+			tracking.invalidate();
+		}
+		
+		verify(delegate).remove(Entity.class, 1);
+		assertEquals(1, objectCache.getStatistics().getInvalidations());
+	}
+
+	@Test
+	public void nestedWritesAreKeptOnCommit() 
+			throws Exception {
+		try(OrmliteObjectCache.Tracking tracking = objectCache.beginTracking()) {
+			try(OrmliteObjectCache.Tracking nestedTracking = objectCache.beginTracking()) {
+				dao.create(entity);
+				nestedTracking.commit();
+			}
+			tracking.commit();
+		}
+		
+		verify(delegate, never()).remove(Entity.class, 1);
+		assertEquals(0, objectCache.getStatistics().getInvalidations());
+	}
+
+	@Test
+	public void removalIsTracked() 
+			throws Exception {
+		try(OrmliteObjectCache.Tracking tracking = objectCache.beginTracking()) {
+			dao.delete(entity);
+		}
+		
+		verify(delegate, times(2)).remove(Entity.class, 1);
+		assertEquals(1, objectCache.getStatistics().getInvalidations());
+	}
+
+	@Test
+	public void writesOutOfTransactionAreNotTracked() 
+			throws Exception {
+		dao.create(entity);
+
+		try(OrmliteObjectCache.Tracking tracking = objectCache.beginTracking()) {
+		}
+		
+		verify(delegate, never()).remove(Entity.class, 1);
+	}
+	
+	@Test
+	public void writesOfOtherThreadAreNotTracked() 
+			throws Exception {
+		try(OrmliteObjectCache.Tracking tracking = objectCache.beginTracking()) {
+			final Thread thread = new Thread(() -> {
+				try {
+					dao.create(entity);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			thread.start();
+			thread.join();
+		}
+		
+		verify(delegate, never()).remove(Entity.class, 1);
+	}
+	
+	public static class Entity {
+	}
+}
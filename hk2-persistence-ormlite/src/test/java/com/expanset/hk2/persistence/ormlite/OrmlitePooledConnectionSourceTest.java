@@ -0,0 +1,230 @@
+package com.expanset.hk2.persistence.ormlite;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.support.DatabaseConnection;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class OrmlitePooledConnectionSourceTest {
+	
+	private TestPool pool;
+	
+	@Before
+	public void init() 
+			throws Exception {
+		pool = new TestPool();
+		pool.setEvictionInterval(0, TimeUnit.MILLISECONDS);
+	}
+	
+	@After
+	public void done() {
+		pool.close();
+	}
+	
+	@Test
+	public void connectionIsReused() 
+			throws Exception {
+		pool.initialize();
+		
+		final DatabaseConnection connection1 = pool.getReadWriteConnection();
+		pool.releaseConnection(connection1);
+		final DatabaseConnection connection2 = pool.getReadWriteConnection();
+		pool.releaseConnection(connection2);
+		
+		assertSame(connection1, connection2);
+		assertEquals(1, pool.connections.size());
+		assertEquals(1, pool.getStatistics().getSize());
+		assertEquals(1, pool.getStatistics().getIdle());
+		assertEquals(0, pool.getStatistics().getLeased());
+		assertEquals(2, pool.getStatistics().getAcquired());
+	}
+	
+	@Test
+	public void minSize() 
+			throws Exception {
+		pool.setMinSize(2);
+		pool.initialize();
+		
+		assertEquals(2, pool.connections.size());
+		assertEquals(2, pool.getStatistics().getIdle());
+	}
+	
+	@Test
+	public void maxSize() 
+			throws Exception {
+		pool.setMaxSize(2);
+		pool.setAcquireTimeout(50, TimeUnit.MILLISECONDS);
+		pool.initialize();
+		
+		final DatabaseConnection connection1 = pool.getReadWriteConnection();
+		final DatabaseConnection connection2 = pool.getReadWriteConnection();
+		assertNotSame(connection1, connection2);
+		try {
+			pool.getReadWriteConnection();
+			fail();
+		} catch (SQLException e) {
+		}
+		assertEquals(1, pool.getStatistics().getTimeouts());
+		assertEquals(2, pool.connections.size());
+		
+		pool.releaseConnection(connection1);
+		assertSame(connection1, pool.getReadWriteConnection());
+	}
+
+	@Test
+	public void waitForReleasedConnection() 
+			throws Exception {
+		pool.setMaxSize(1);
+		pool.initialize();
+		
+		final DatabaseConnection connection = pool.getReadWriteConnection();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<DatabaseConnection> future = executor.submit(() -> pool.getReadWriteConnection());
+			while(pool.getStatistics().getWaiting() == 0) {
+				Thread.sleep(1);
+			}
+			pool.releaseConnection(connection);
+			
+			assertSame(connection, future.get(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void failedOpeningIsNotLeaked() 
+			throws Exception {
+		pool.setMaxSize(1);
+		pool.initialize();
+		
+		pool.failure = new SQLException();
+		try {
+			pool.getReadWriteConnection();
+			fail();
+		} catch (SQLException e) {
+		}
+		assertEquals(0, pool.getStatistics().getSize());
+		
+		pool.failure = null;
+		assertNotNull(pool.getReadWriteConnection());
+		assertEquals(1, pool.getStatistics().getSize());
+	}
+
+	@Test
+	public void invalidConnectionIsReplaced() 
+			throws Exception {
+		pool.setValidationQuery("SELECT 1");
+		pool.setValidationIdleTime(0, TimeUnit.MILLISECONDS);
+		pool.initialize();
+		
+		final DatabaseConnection connection1 = pool.getReadWriteConnection();
+		pool.releaseConnection(connection1);
+		when(connection1.queryForLong("SELECT 1")).thenThrow(new SQLException());
+		
+		final DatabaseConnection connection2 = pool.getReadWriteConnection();
+		
+		assertNotSame(connection1, connection2);
+		verify(connection1).closeQuietly();
+		verify(connection2, never()).closeQuietly();
+		assertEquals(1, pool.getStatistics().getValidationFailures());
+		assertEquals(1, pool.getStatistics().getSize());
+	}
+	
+	@Test
+	public void connectionOfNotCompletedTransactionIsClosed() 
+			throws Exception {
+		pool.initialize();
+		
+		final DatabaseConnection connection1 = pool.getReadWriteConnection();
+		when(connection1.isAutoCommit()).thenReturn(false);
+		pool.releaseConnection(connection1);
+		
+		verify(connection1).closeQuietly();
+		assertNotSame(connection1, pool.getReadWriteConnection());
+	}
+	
+	@Test
+	public void closeWhileLeased() 
+			throws Exception {
+		pool.initialize();
+		
+		final DatabaseConnection leased = pool.getReadWriteConnection();
+		final DatabaseConnection idle = pool.getReadWriteConnection();
+		pool.releaseConnection(idle);
+		
+		pool.close();
+		
+		assertFalse(pool.isOpen());
+		verify(idle).closeQuietly();
+		verify(leased, never()).closeQuietly();
+		try {
+			pool.getReadWriteConnection();
+			fail();
+		} catch (SQLException e) {
+		}
+		
+		pool.releaseConnection(leased);
+		
+		verify(leased).closeQuietly();
+		assertEquals(0, pool.getStatistics().getSize());
+	}
+
+	@Test
+	public void specialConnection() 
+			throws Exception {
+		pool.initialize();
+		
+		final DatabaseConnection connection = pool.getReadWriteConnection();
+		assertTrue(pool.saveSpecialConnection(connection));
+		
+		assertSame(connection, pool.getReadWriteConnection());
+		pool.releaseConnection(connection);
+		assertEquals(1, pool.getStatistics().getLeased());
+		
+		pool.clearSpecialConnection(connection);
+		pool.releaseConnection(connection);
+		assertEquals(0, pool.getStatistics().getLeased());
+		assertEquals(1, pool.getStatistics().getIdle());
+	}
+	
+	private static class TestPool extends OrmlitePooledConnectionSource {
+
+		private final List<DatabaseConnection> connections = new ArrayList<>();
+		
+		private volatile SQLException failure;
+		
+		public TestPool() 
+				throws SQLException {
+			super("jdbc:test", null, null, mock(DatabaseType.class));
+		}
+
+		@Override
+		protected DatabaseConnection connect() 
+				throws SQLException {
+			if(failure != null) {
+				throw failure;
+			}
+			
+			final DatabaseConnection connection = mock(DatabaseConnection.class);
+			when(connection.isAutoCommit()).thenReturn(true);
+			synchronized (connections) {
+				connections.add(connection);
+			}
+			return connection;
+		}
+	}
+}
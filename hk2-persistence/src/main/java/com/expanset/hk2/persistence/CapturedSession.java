@@ -0,0 +1,92 @@
+package com.expanset.hk2.persistence;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Persistence session, that was captured to continue work in other thread.
+ * <p>Ownership rules: the session is closed by the code, that has started it; the captured session 
+ * holds the session open until it is completed. Captured session must be restored once 
+ * or closed, if the work was cancelled.</p>
+ * <pre>
+ * final CapturedSession session = sessionManager.captureSession();
+ * executor.execute(() -> {
+ *	try(AutoCloseable scope = session.restore()) {
+ *		userDao.save(user);
+ *	}
+ * });
+ * </pre>
+ */
+@ThreadSafe
+public class CapturedSession implements AutoCloseable {
+
+	protected final PersistenceSessionManager persistenceSessionManager;
+
+	protected final PersistenceSession persistenceSession;
+
+	private final AtomicBoolean restored = new AtomicBoolean();
+
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	/**
+	 * @param persistenceSessionManager Session manager to bind the session to the other thread.
+	 * @param persistenceSession Captured session.
+	 */
+	public CapturedSession(
+			@Nonnull PersistenceSessionManager persistenceSessionManager,
+			@Nonnull PersistenceSession persistenceSession) {
+		Validate.notNull(persistenceSessionManager, "persistenceSessionManager");
+		Validate.notNull(persistenceSession, "persistenceSession");
+
+		this.persistenceSessionManager = persistenceSessionManager;
+		this.persistenceSession = persistenceSession;
+
+		persistenceSession.acquire();
+	}
+
+	/**
+	 * @return Captured session.
+	 */
+	public PersistenceSession getPersistenceSession() {
+		return persistenceSession;
+	}
+
+	/**
+	 * Binds the captured session to the current thread (see {@link PersistenceSessionManager#beginWorker(PersistenceSession)}).
+	 * @return Object, that should be closed when the work is completed.
+	 */
+	public AutoCloseable restore() {
+		Validate.validState(restored.compareAndSet(false, true), "Captured session is already restored");
+		Validate.validState(!released.get(), "Captured session is closed");
+
+		final AutoCloseable worker;
+		try {
+			worker = persistenceSessionManager.beginWorker(persistenceSession);
+		} catch (Throwable e) {
+			close();
+			throw e;
+		}
+
+		return () -> {
+			try {
+				worker.close();
+			} finally {
+				close();
+			}
+		};
+	}
+
+	/**
+	 * Releases the captured session, session is closed if its owner has already closed it.
+	 */
+	@Override
+	public void close() {
+		if(released.compareAndSet(false, true)) {
+			persistenceSession.release();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.expanset.hk2.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.jvnet.hk2.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of {@link FactoryNameResolver}, that distributes shard keys between factories by 
+ * consistent hashing. Shards of the factory are listed in {@link #SHARDS_PROPERTY} property 
+ * (users.shards=users1,users2,users3 in example), they must be configured as other factories.
+ * <p>Rings are rebuilt when the configuration is reloaded, adding or removing of a shard moves only
+ * keys of that shard. Lookup of the ring does not allocate memory.</p>
+ */
+@Service
+@ThreadSafe
+public class ConsistentHashFactoryNameResolver implements FactoryNameResolver {
+
+	/**
+	 * Factory property, that contains comma separated names of shard factories.
+	 */
+	public final static String SHARDS_PROPERTY = "shards";
+
+	public final static int DEFAULT_VIRTUAL_NODES = 160;
+
+	protected final int virtualNodes;
+
+	/**
+	 * Immutable snapshot of rings by factory names, replaced as a whole on every change.
+	 */
+	protected volatile Map<String, Ring> rings = Collections.emptyMap();
+
+	private final static Logger log = LoggerFactory.getLogger(ConsistentHashFactoryNameResolver.class);
+
+	public ConsistentHashFactoryNameResolver() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * @param virtualNodes Count of ring points for each shard, more points give more even distribution.
+	 */
+	public ConsistentHashFactoryNameResolver(int virtualNodes) {
+		Validate.isTrue(virtualNodes > 0, "virtualNodes");
+
+		this.virtualNodes = virtualNodes;
+	}
+
+	@Override
+	public String resolveFactoryName(@Nonnull String factoryName, @Nonnull Object shardKey) {
+		final Ring ring = rings.get(factoryName);
+		if(ring == null) {
+			return factoryName;
+		}
+
+		return ring.get(mix(shardKey.hashCode()));
+	}
+
+	@Override
+	public void factoriesChanged(@Nonnull Map<String, Map<String, String>> factoryProperties) {
+		Validate.notNull(factoryProperties, "factoryProperties");
+
+		final Map<String, Ring> oldRings = rings;
+		final Map<String, Ring> newRings = new HashMap<>();
+		for(Entry<String, Map<String, String>> entry : factoryProperties.entrySet()) {
+			final String[] shards = StringUtils.split(entry.getValue().get(SHARDS_PROPERTY), ", ");
+			if(shards == null || shards.length == 0) {
+				continue;
+			}
+
+			final Ring oldRing = oldRings.get(entry.getKey());
+			if(oldRing != null && oldRing.hasShards(shards)) {
+				newRings.put(entry.getKey(), oldRing);
+			} else {
+				newRings.put(entry.getKey(), new Ring(shards, virtualNodes));
+				log.info("Shards of factory {} are rebalanced: {}", entry.getKey(), Arrays.asList(shards));
+			}
+		}
+
+		rings = Collections.unmodifiableMap(newRings);
+	}
+
+	/**
+	 * @param factoryName Name of the factory.
+	 * @return Shards of the factory.
+	 */
+	public List<String> getShards(@Nonnull String factoryName) {
+		Validate.notNull(factoryName, "factoryName");
+
+		final Ring ring = rings.get(factoryName);
+		return ring != null ? Collections.unmodifiableList(Arrays.asList(ring.shards)) : Collections.emptyList();
+	}
+
+	private static long mix(long hash) {
+		// Finalizer of MurmurHash3.
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Points of shards, sorted by hash.
+	 */
+	protected static final class Ring {
+
+		private final String[] shards;
+
+		private final long[] points;
+
+		private final String[] owners;
+
+		public Ring(String[] shards, int virtualNodes) {
+			this.shards = shards.clone();
+
+			final TreeMap<Long, String> ring = new TreeMap<>();
+			for(String shard : shards) {
+				for(int i = 0; i < virtualNodes; i++) {
+					ring.put(hash(shard + "#" + i), shard);
+				}
+			}
+
+			this.points = new long[ring.size()];
+			this.owners = new String[ring.size()];
+			int i = 0;
+			for(Entry<Long, String> point : ring.entrySet()) {
+				points[i] = point.getKey();
+				owners[i] = point.getValue();
+				i++;
+			}
+		}
+
+		public String get(long hash) {
+			int index = Arrays.binarySearch(points, hash);
+			if(index < 0) {
+				index = -index - 1;
+				if(index == points.length) {
+					index = 0;
+				}
+			}
+			return owners[index];
+		}
+
+		public boolean hasShards(String[] otherShards) {
+			return Arrays.equals(shards, otherShards);
+		}
+
+		private static long hash(String value) {
+			// FNV-1a.
+			long hash = 0xcbf29ce484222325L;
+			for(byte b : value.getBytes(StandardCharsets.UTF_8)) {
+				hash ^= b & 0xff;
+				hash *= 0x100000001b3L;
+			}
+			return mix(hash);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.expanset.hk2.persistence;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.jvnet.hk2.annotations.Contract;
+
+/**
+ * Selects the factory (shard) by the shard key of persistence session 
+ * (see {@link PersistenceSessionManager#beginShardSession(Object)}).
+ * Resolver is applied after factory name overrides and before read-only replicas.
+ */
+@Contract
+public interface FactoryNameResolver {
+
+	/**
+	 * Selects the factory for the shard key.
+	 * @param factoryName Name of the factory, that is requested by persistence context.
+	 * @param shardKey Shard key of the session.
+	 * @return Name of the factory to use.
+	 */
+	String resolveFactoryName(@Nonnull String factoryName, @Nonnull Object shardKey);
+
+	/**
+	 * Called when properties of factories are changed (configuration reloaded in example).
+	 * @param factoryProperties Properties of all factories.
+	 */
+	default void factoriesChanged(@Nonnull Map<String, Map<String, String>> factoryProperties) {
+	}
+}
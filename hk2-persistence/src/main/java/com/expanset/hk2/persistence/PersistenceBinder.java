@@ -9,7 +9,7 @@ import com.expanset.hk2.utils.PerCallScope;
 
 /**
  * Registration of base services for support entity persistence.
- * Also it registers support of {@link javax.transaction.Transactional} annotation, 
+ * Also it registers support of {@link javax.transaction.Transactional} and {@link ReadOnly} annotations, 
  * injection of {@link javax.transaction.Transaction}.
  */
 public abstract class PersistenceBinder extends AbstractBinder {
@@ -17,6 +17,7 @@ public abstract class PersistenceBinder extends AbstractBinder {
 	@Override
 	protected void configure() {		
 		addActiveDescriptor(TransactionalInterceptor.class);
+		addActiveDescriptor(ReadOnlyInterceptor.class);
 		addActiveDescriptor(TransactionalInterceptorService.class);
 		addActiveDescriptor(PersistenceContextFactoryAccessor.class);
 		
@@ -1,10 +1,29 @@
 package com.expanset.hk2.persistence;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
@@ -13,6 +32,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.glassfish.hk2.api.PreDestroy;
 import org.jvnet.hk2.annotations.Contract;
+import org.jvnet.hk2.annotations.Optional;
 import org.jvnet.hk2.annotations.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,60 +40,348 @@ import org.slf4j.LoggerFactory;
 import com.expanset.common.errors.ExceptionAdapter;
 
 /**
- * Service is intended for getting factories for persistence contexts creation. 
+ * Service is intended for getting factories for persistence contexts creation.
  * Each factory is named by a unique name which corresponds with a set of settings for this factory.
+ * <p>Cached factories are read without locking. A factory is created only once for each key,
+ * other threads that request the same key wait for it, threads that request other keys are not blocked.</p>
+ * <p>Evicted factory is closed when it is released by all persistence sessions, that use it 
+ * (see {@link #acquireFactory(PersistenceContextFactoryKey)}), so new sessions use a new factory
+ * and opened sessions complete their work with the old one.</p>
+ * <p>Count of cached factories can be limited ({@link #setMaxFactories(int)}), also factories can be evicted
+ * after idle timeout ({@link #setFactoryIdleTimeout(long, TimeUnit)}). Factories used by sessions are not evicted.</p>
+ * <p>Factory may have read-only replicas, that are listed in {@link #REPLICAS_PROPERTY} property 
+ * (db1.replicas=db1r1,db1r2 in example). Replicas must be configured as other factories.
+ * Read-only sessions use the replica with least count of sessions (each session serves one request and keeps 
+ * its replica until it is closed), failed replicas are not used
+ * during retry interval ({@link #setReplicaRetryInterval(long, TimeUnit)}).</p>
+ * <p>Sessions with shard key select factories by {@link FactoryNameResolver}, it is notified 
+ * when factory properties are changed.</p>
  */
 @Service
 @Contract
 @ThreadSafe
 public class PersistenceContextFactoryAccessor implements PreDestroy {
 
+	/**
+	 * Factory property, that contains comma separated names of read-only replica factories.
+	 */
+	public final static String REPLICAS_PROPERTY = "replicas";
+
 	@Inject
 	protected PersistenceContextFactoryCreator factoryCreator;
-	
-	protected final Map<String, Map<String, String>> factoryProperties = new HashMap<>();
-			
-	protected Map<String, String> commonProperties = new HashMap<>();	
 
-	protected final Map<PersistenceContextFactoryKey, PersistenceContextFactoryWrapper> factories = new HashMap<>();
-	
+	@Inject
+	@Optional
+	protected volatile FactoryNameResolver factoryNameResolver;
+
+	/**
+	 * Immutable snapshot of factory properties, replaced as a whole on every change.
+	 */
+	protected volatile Map<String, Map<String, String>> factoryProperties = Collections.emptyMap();
+
+	/**
+	 * Immutable snapshot of common properties, replaced as a whole on every change.
+	 */
+	protected volatile Map<String, String> commonProperties = Collections.emptyMap();
+
+	protected final ConcurrentMap<PersistenceContextFactoryKey, CompletableFuture<FactoryReference>> factories =
+			new ConcurrentHashMap<>();
+
+	/**
+	 * Immutable snapshot of replicas by primary factory names, replaced as a whole on every change.
+	 */
+	protected volatile Map<String, Replica[]> replicas = Collections.emptyMap();
+
+	protected final AtomicInteger replicaCursor = new AtomicInteger();
+
+	/**
+	 * Canonical instances of persistence context keys, they are removed when their factory is evicted.
+	 */
+	protected final ConcurrentMap<PersistenceContextKey, PersistenceContextKey> internedKeys = 
+			new ConcurrentHashMap<>();
+
+	protected volatile long replicaRetryInterval = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * Closes factories, released by the last session, and evicts idle factories out of the request thread.
+	 */
+	protected final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, PersistenceContextFactoryAccessor.class.getSimpleName() + "-maintenance");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	protected volatile int maxFactories;
+
+	protected volatile long factoryIdleTimeout;
+
+	protected ScheduledFuture<?> idleEviction;
+
+	protected final LongAdder hits = new LongAdder();
+
+	protected final LongAdder misses = new LongAdder();
+
+	protected final LongAdder evictions = new LongAdder();
+
+	protected volatile CompletableFuture<Void> warmUp = CompletableFuture.completedFuture(null);
+
+	/**
+	 * Guards changes of the settings.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+
 	private final static Logger log = LoggerFactory.getLogger(PersistenceContextFactoryAccessor.class);
-		
+
 	/**
-	 * Returns the persistence factory wrapper (cached or created). 
+	 * Returns the persistence factory wrapper (cached or created).
 	 * @param key Factory unique key (based on factory name and other data in key).
 	 * @return Persistence factory wrapper.
 	 */
-	public synchronized PersistenceContextFactoryWrapper getFactory(@Nonnull PersistenceContextFactoryKey key) {
+	public PersistenceContextFactoryWrapper getFactory(@Nonnull PersistenceContextFactoryKey key) {
 		Validate.notNull(key, "key");
 
-		PersistenceContextFactoryWrapper factory = factories.get(key);
-		if(factory == null) {
-			Map<String, String> properties = factoryProperties.get(key.getFactoryName());
-			if(properties == null) {
-				throw new IllegalStateException(String.format(
-						"Factory properties with name %s not found. Properties must be registered before using", 
-						StringUtils.isEmpty(key.getFactoryName()) ? "(default)" : key.getFactoryName()));
+		return getReference(key, true).getFactory();
+	}
+
+	/**
+	 * Returns the persistence factory (cached or created) and holds it open until the reference is closed,
+	 * even if the factory is evicted from cache.
+	 * @param key Factory unique key (based on factory name and other data in key).
+	 * @return Reference to the persistence factory, that must be closed after using.
+	 */
+	public FactoryReference acquireFactory(@Nonnull PersistenceContextFactoryKey key) {
+		Validate.notNull(key, "key");
+
+		FactoryReference reference = getReference(key, true);
+		while(!reference.tryAcquire()) {
+			// Factory may be evicted and closed just now, take a new one. The request is already counted.
+			reference = getReference(key, false);
+		}
+
+		return reference;
+	}
+
+	/**
+	 * Creates all known persistence factories in parallel, so first requests do not wait for them. 
+	 * Keys of factories are provided by {@link PersistenceContextFactoryCreator#createKey(String, Map, Map)}.
+	 * @param executor Executor to create factories.
+	 * @return Future, that is completed when all factories are created.
+	 */
+	public CompletableFuture<Void> warmUp(@Nonnull Executor executor) {
+		Validate.notNull(executor, "executor");
+
+		final Map<String, String> currentCommonProperties = commonProperties;
+		final List<CompletableFuture<Void>> results = new ArrayList<>();
+		for(Entry<String, Map<String, String>> entry : factoryProperties.entrySet()) {
+			final PersistenceContextFactoryKey key = 
+					factoryCreator.createKey(entry.getKey(), entry.getValue(), currentCommonProperties);
+			if(key != null) {
+				results.add(CompletableFuture.runAsync(() -> getFactory(key), executor)
+					.whenComplete((result, e) -> {
+						if(e != null) {
+							log.warn(String.format("Factory %s warm-up failed", 
+									StringUtils.isEmpty(key.getFactoryName()) ? "(default)" : key.getFactoryName()), e);
+						}
+					}));
+			}
+		}
+
+		final CompletableFuture<Void> result = 
+				CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]));
+		warmUp = result;
+
+		return result;
+	}
+
+	/**
+	 * @return Future of the last warm-up, that is completed when all factories are created. 
+	 * It can be used to check readiness of the persistence environment.
+	 */
+	public CompletableFuture<Void> getWarmUp() {
+		return warmUp;
+	}
+
+	/**
+	 * @param key Factory unique key (based on factory name and other data in key).
+	 * @return true if the factory is created and cached.
+	 */
+	public boolean isFactoryReady(@Nonnull PersistenceContextFactoryKey key) {
+		Validate.notNull(key, "key");
+
+		final CompletableFuture<FactoryReference> factory = factories.get(key);
+		return factory != null && factory.isDone() && !factory.isCompletedExceptionally();
+	}
+
+	/**
+	 * Selects the healthy replica of the factory, that is used by least count of sessions. 
+	 * @param factoryName Name of the primary factory.
+	 * @return Replica, that must be released after using, or null if the primary factory should be used.
+	 */
+	public Replica acquireReplica(@Nonnull String factoryName) {
+		Validate.notNull(factoryName, "factoryName");
+
+		final Replica[] candidates = replicas.get(factoryName);
+		if(candidates == null) {
+			return null;
+		}
+
+		// Start from the next replica each time, so idle replicas are used in turn.
+		final int start = replicaCursor.getAndIncrement() & Integer.MAX_VALUE;
+		final long now = System.nanoTime();
+		Replica result = null;
+		int minOutstanding = Integer.MAX_VALUE;
+		for(int i = 0; i < candidates.length; i++) {
+			final Replica candidate = candidates[(start + i) % candidates.length];
+			final int outstanding = candidate.getOutstanding();
+			if(outstanding < minOutstanding && candidate.isHealthy(now)) {
+				result = candidate;
+				minOutstanding = outstanding;
 			}
-			
-			factory = factoryCreator.create(
-					key, 
-					Collections.unmodifiableMap(properties), 
-					Collections.unmodifiableMap(commonProperties));
-			factories.put(key, factory);
 		}
+		if(result != null) {
+			result.outstanding.incrementAndGet();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Excludes the replica from using during retry interval, sessions use the primary factory instead. 
+	 * @param replicaName Name of the replica factory.
+	 */
+	public void markReplicaFailed(@Nonnull String replicaName) {
+		Validate.notNull(replicaName, "replicaName");
+
+		final long retryTime = System.nanoTime() + replicaRetryInterval;
+		for(Replica[] factoryReplicas : replicas.values()) {
+			for(Replica replica : factoryReplicas) {
+				if(replica.name.equals(replicaName)) {
+					replica.retryTime = retryTime;
+					replica.failed = true;
+				}
+			}
+		}
+		log.warn("Replica {} is failed, primary factory is used", replicaName);
+	}
+
+	/**
+	 * Sets interval, during that failed replica is not used.
+	 * @param interval Retry interval.
+	 * @param unit Unit of the interval.
+	 */
+	public void setReplicaRetryInterval(long interval, @Nonnull TimeUnit unit) {
+		Validate.isTrue(interval >= 0, "interval");
+		Validate.notNull(unit, "unit");
+
+		replicaRetryInterval = unit.toNanos(interval);
+	}
+
+	/**
+	 * @param factoryName Name of the primary factory.
+	 * @return Replicas of the factory.
+	 */
+	public List<Replica> getReplicas(@Nonnull String factoryName) {
+		Validate.notNull(factoryName, "factoryName");
+
+		final Replica[] result = replicas.get(factoryName);
+		return result != null ? Collections.unmodifiableList(Arrays.asList(result)) : Collections.emptyList();
+	}
 
-		return factory;
+	/**
+	 * Returns canonical instance of the key. Keys are interned once for each injection point and factory name 
+	 * override, canonical instances are released when their factory is evicted from the cache, so the number of 
+	 * them is limited by cached factories. Released keys are still equal to new canonical instances.
+	 * @param key Persistence context key.
+	 * @return Canonical instance of the key, that equals to the key.
+	 * @param <T> Type of the key.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends PersistenceContextKey> T internKey(@Nonnull T key) {
+		Validate.notNull(key, "key");
+
+		final PersistenceContextKey result = internedKeys.putIfAbsent(key, key);
+		return result != null ? (T)result : key;
+	}
+
+	/**
+	 * @return Resolver of factory names by shard keys of sessions or null.
+	 */
+	public FactoryNameResolver getFactoryNameResolver() {
+		return factoryNameResolver;
+	}
+
+	/**
+	 * Sets resolver of factory names by shard keys of sessions. 
+	 * @param factoryNameResolver Resolver or null.
+	 */
+	public void setFactoryNameResolver(@Nullable FactoryNameResolver factoryNameResolver) {
+		lock.lock();
+		try {
+			this.factoryNameResolver = factoryNameResolver;
+			if(factoryNameResolver != null) {
+				factoryNameResolver.factoriesChanged(factoryProperties);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets maximum count of cached factories. Least recently used factory is evicted, when count is exceeded.
+	 * @param maxFactories Maximum count of cached factories, 0 - not limited.
+	 */
+	public void setMaxFactories(int maxFactories) {
+		Validate.isTrue(maxFactories >= 0, "maxFactories");
+
+		this.maxFactories = maxFactories;
+	}
+
+	/**
+	 * Sets timeout, after that unused factory is evicted from the cache. 
+	 * Factories are checked periodically with the same interval.
+	 * @param timeout Idle timeout, 0 - factories are not evicted.
+	 * @param unit Unit of the timeout.
+	 */
+	public void setFactoryIdleTimeout(long timeout, @Nonnull TimeUnit unit) {
+		lock.lock();
+		try {
+			Validate.isTrue(timeout >= 0, "timeout");
+			Validate.notNull(unit, "unit");
+
+			final long newTimeout = unit.toMillis(timeout);
+			if(newTimeout == factoryIdleTimeout) {
+				return;
+			}
+
+			factoryIdleTimeout = newTimeout;
+			if(idleEviction != null) {
+				idleEviction.cancel(false);
+				idleEviction = null;
+			}
+			if(newTimeout > 0) {
+				idleEviction = maintenanceExecutor.scheduleWithFixedDelay(
+						this::evictIdleFactories, newTimeout, newTimeout, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Statistics of the factory cache.
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(hits.sum(), misses.sum(), evictions.sum(), factories.size());
 	}
 
 	/**
 	 * Gets the property value.
 	 * @param key Property key.
-	 * @return Property value or null. 
+	 * @return Property value or null.
 	 */
-	public synchronized String getCommonProperty(@Nonnull String key) {
+	public String getCommonProperty(@Nonnull String key) {
 		Validate.notNull(key, "key");
-		
+
 		return commonProperties.get(key);
 	}
 
@@ -82,12 +390,19 @@ public class PersistenceContextFactoryAccessor implements PreDestroy {
 	 * @param key Property key.
 	 * @param value Property value.
 	 */
-	public synchronized void setCommonProperty(
-			@Nonnull String key, 
+	public void setCommonProperty(
+			@Nonnull String key,
 			@Nullable String value) {
-		Validate.notNull(key, "key");
-		
-		commonProperties.put(key, value);
+		lock.lock();
+		try {
+			Validate.notNull(key, "key");
+
+			final Map<String, String> newCommonProperties = new HashMap<>(commonProperties);
+			newCommonProperties.put(key, value);
+			commonProperties = Collections.unmodifiableMap(newCommonProperties);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -95,103 +410,489 @@ public class PersistenceContextFactoryAccessor implements PreDestroy {
 	 * @param factoryName Factory name to search they properties.
 	 * @return Factory properties or null if not found.
 	 */
-	public synchronized Map<String, String> getFactoryProperties(@Nonnull String factoryName) {
+	public Map<String, String> getFactoryProperties(@Nonnull String factoryName) {
 		Validate.notNull(factoryName, "factoryName");
 
-		final Map<String, String> properties = factoryProperties.get(factoryName);
-		if(properties == null) {
-			return null;
-		}
-		
-		return Collections.unmodifiableMap(properties);
+		return factoryProperties.get(factoryName);
 	}
-	
+
 	/**
 	 * Sets named persistence the factory properties.
 	 * @param factoryName Name of the factory.
 	 * @param properties New properties for the factory.
 	 */
-	public synchronized void setFactoryProperties(
-			@Nonnull String factoryName, 
+	public void setFactoryProperties(
+			@Nonnull String factoryName,
 			@Nonnull Map<String, String> properties) {
-		Validate.notNull(factoryName, "factoryName");
-		Validate.notNull(properties, "properties");
+		lock.lock();
+		try {
+			Validate.notNull(factoryName, "factoryName");
+			Validate.notNull(properties, "properties");
 
-		closeCachedFactory(factoryName);
-		factoryProperties.put(factoryName, new HashMap<>(properties));
+			final Map<String, Map<String, String>> newFactoryProperties = new HashMap<>(factoryProperties);
+			newFactoryProperties.put(factoryName, Collections.unmodifiableMap(new HashMap<>(properties)));
+			factoryProperties = Collections.unmodifiableMap(newFactoryProperties);
+			factoriesChanged();
+
+			closeCachedFactory(factoryName);
+		} finally {
+			lock.unlock();
+		}
 	}
-	
+
 	/**
 	 * Removes persistence factory by the factory name.
 	 * @param factoryName Name of unnecessary factory.
 	 */
-	public synchronized void removeFactoryProperties(@Nonnull String factoryName) {
-		Validate.notNull(factoryName, "factoryName");
-		
-		closeCachedFactory(factoryName);
-		factoryProperties.remove(factoryName);
+	public void removeFactoryProperties(@Nonnull String factoryName) {
+		lock.lock();
+		try {
+			Validate.notNull(factoryName, "factoryName");
+
+			final Map<String, Map<String, String>> newFactoryProperties = new HashMap<>(factoryProperties);
+			newFactoryProperties.remove(factoryName);
+			factoryProperties = Collections.unmodifiableMap(newFactoryProperties);
+			factoriesChanged();
+
+			closeCachedFactory(factoryName);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
 	 * Resets settings of all persistence factories (configuration reloaded in example).
+	 * Only factories with changed settings are evicted from cache. If common properties are changed, all 
+	 * factories are evicted.
 	 * @param newProperties Collection of the factory names and their properties.
 	 * @param commonProperties Properties, that can be used by persistence engines.
+	 * @return Names of evicted factories, that will be created again.
 	 */
-	public synchronized void resetFactoriesProperties(
-			@Nullable Map<String, Map<String, String>> newProperties, 
+	public Set<String> resetFactoriesProperties(
+			@Nullable Map<String, Map<String, String>> newProperties,
 			@Nullable Map<String, String> commonProperties) {
-		if(newProperties != null) {
-			factoryProperties.clear();
-			for(Entry<String, Map<String, String>> entry : newProperties.entrySet()) {
-				factoryProperties.put(entry.getKey(), new HashMap<>(entry.getValue()));
+		lock.lock();
+		try {
+			final Map<String, Map<String, String>> oldFactoryProperties = factoryProperties;
+			final Map<String, String> oldCommonProperties = this.commonProperties;
+		
+			if(newProperties != null) {
+				final Map<String, Map<String, String>> newFactoryProperties = new HashMap<>();
+				for(Entry<String, Map<String, String>> entry : newProperties.entrySet()) {
+					newFactoryProperties.put(entry.getKey(), Collections.unmodifiableMap(new HashMap<>(entry.getValue())));
+				}
+				factoryProperties = Collections.unmodifiableMap(newFactoryProperties);
+				factoriesChanged();
+			}
+
+			if(commonProperties != null) {
+				this.commonProperties = Collections.unmodifiableMap(new HashMap<>(commonProperties));
+			}
+
+			final boolean commonPropertiesChanged = !oldCommonProperties.equals(this.commonProperties);
+			final Set<String> evicted = new HashSet<>();
+			for(Entry<PersistenceContextFactoryKey, CompletableFuture<FactoryReference>> entry : factories.entrySet()) {
+				final String factoryName = entry.getKey().getFactoryName();
+				if(commonPropertiesChanged || 
+						!Objects.equals(oldFactoryProperties.get(factoryName), factoryProperties.get(factoryName))) {
+					if(closeCachedFactory(entry)) {
+						evicted.add(factoryName);
+					}
+				}
+			}
+			if(!evicted.isEmpty()) {
+				log.info("Persistence factories settings are changed: {}", evicted);
 			}
-		}
 		
-		if(commonProperties != null) {
-			this.commonProperties.clear();
-			this.commonProperties.putAll(commonProperties);
+			return Collections.unmodifiableSet(evicted);
+		} finally {
+			lock.unlock();
 		}
-
-		for(PersistenceContextFactoryWrapper factory : factories.values()) {
-			ExceptionAdapter.closeQuitely(factory, log);
-		}		
-		factories.clear();	
 	}
-	
+
 	/**
 	 * Removes factory from cache.
 	 * @param factoryName Factory to remove from cache.
 	 */
-	public synchronized void evict(@Nonnull String factoryName) {
+	public void evict(@Nonnull String factoryName) {
 		Validate.notNull(factoryName, "factoryName");
-		
+
 		closeCachedFactory(factoryName);
 	}
-	
+
 	/**
 	 * Removes all cached factories.
 	 */
-	public synchronized void evictAll() {
-		for(PersistenceContextFactoryWrapper factory : factories.values()) {
-			ExceptionAdapter.closeQuitely(factory, log);
-		}		
-		factories.clear();
-	}	
-	
+	public void evictAll() {
+		for(Entry<PersistenceContextFactoryKey, CompletableFuture<FactoryReference>> entry : factories.entrySet()) {
+			closeCachedFactory(entry);
+		}
+	}
+
 	@Override
 	@javax.annotation.PreDestroy
 	public void preDestroy() {
 		evictAll();
+		maintenanceExecutor.shutdown();
+	}
+
+	private void factoriesChanged() {
+		updateReplicas();
+
+		final FactoryNameResolver resolver = factoryNameResolver;
+		if(resolver != null) {
+			resolver.factoriesChanged(factoryProperties);
+		}
+	}
+
+	private void updateReplicas() {
+		final Map<String, Replica> oldReplicas = new HashMap<>();
+		for(Replica[] factoryReplicas : replicas.values()) {
+			for(Replica replica : factoryReplicas) {
+				oldReplicas.put(replica.name, replica);
+			}
+		}
+
+		final Map<String, Replica[]> newReplicas = new HashMap<>();
+		for(Entry<String, Map<String, String>> entry : factoryProperties.entrySet()) {
+			final String[] replicaNames = StringUtils.split(entry.getValue().get(REPLICAS_PROPERTY), ", ");
+			if(replicaNames == null || replicaNames.length == 0) {
+				continue;
+			}
+
+			final Replica[] factoryReplicas = new Replica[replicaNames.length];
+			for(int i = 0; i < replicaNames.length; i++) {
+				// Keep counters of replicas, that are used by opened sessions.
+				final Replica replica = oldReplicas.get(replicaNames[i]);
+				factoryReplicas[i] = replica != null ? replica : new Replica(replicaNames[i]);
+				oldReplicas.put(replicaNames[i], factoryReplicas[i]);
+			}
+			newReplicas.put(entry.getKey(), factoryReplicas);
+		}
+
+		replicas = Collections.unmodifiableMap(newReplicas);
+	}
+
+	private FactoryReference getReference(PersistenceContextFactoryKey key, boolean counted) {
+		CompletableFuture<FactoryReference> factory = factories.get(key);
+		if(factory == null) {
+			final CompletableFuture<FactoryReference> newFactory = new CompletableFuture<>();
+			factory = factories.putIfAbsent(key, newFactory);
+			if(factory == null) {
+				if(counted) {
+					misses.increment();
+				}
+				final FactoryReference result = createFactory(key, newFactory);
+				evictOverLimit(key);
+				return result;
+			}
+		}
+
+		if(counted) {
+			hits.increment();
+		}
+		final FactoryReference result = waitFactory(factory);
+		result.touch();
+		return result;
+	}
+
+	private void evictOverLimit(PersistenceContextFactoryKey createdKey) {
+		final int limit = maxFactories;
+		while(limit > 0 && factories.size() > limit) {
+			Entry<PersistenceContextFactoryKey, CompletableFuture<FactoryReference>> eldest = null;
+			long eldestAccess = 0;
+			for(Entry<PersistenceContextFactoryKey, CompletableFuture<FactoryReference>> entry : factories.entrySet()) {
+				final FactoryReference reference = getCreated(entry.getValue());
+				if(reference != null && !reference.isUsed() && !entry.getKey().equals(createdKey)) {
+					if(eldest == null || reference.lastAccess - eldestAccess < 0) {
+						eldest = entry;
+						eldestAccess = reference.lastAccess;
+					}
+				}
+			}
+			if(eldest == null) {
+				// All factories are used now.
+				return;
+			}
+			if(closeCachedFactory(eldest)) {
+				evictions.increment();
+			}
+		}
+	}
+
+	private void evictIdleFactories() {
+		final long timeout = TimeUnit.MILLISECONDS.toNanos(factoryIdleTimeout);
+		if(timeout <= 0) {
+			return;
+		}
+
+		final long now = System.nanoTime();
+		for(Entry<PersistenceContextFactoryKey, CompletableFuture<FactoryReference>> entry : factories.entrySet()) {
+			final FactoryReference reference = getCreated(entry.getValue());
+			if(reference != null && !reference.isUsed() && now - reference.lastAccess > timeout) {
+				if(closeCachedFactory(entry)) {
+					evictions.increment();
+					log.debug("Idle persistence factory {} is evicted", entry.getKey().getFactoryName());
+				}
+			}
+		}
+	}
+
+	private static FactoryReference getCreated(CompletableFuture<FactoryReference> factory) {
+		if(factory.isDone() && !factory.isCompletedExceptionally()) {
+			return factory.join();
+		}
+		return null;
+	}
+
+	private FactoryReference createFactory(
+			PersistenceContextFactoryKey key,
+			CompletableFuture<FactoryReference> factory) {
+		try {
+			final Map<String, String> properties = factoryProperties.get(key.getFactoryName());
+			if(properties == null) {
+				throw new IllegalStateException(String.format(
+						"Factory properties with name %s not found. Properties must be registered before using",
+						StringUtils.isEmpty(key.getFactoryName()) ? "(default)" : key.getFactoryName()));
+			}
+
+			final FactoryReference result = new FactoryReference(
+					factoryCreator.create(key, properties, commonProperties), maintenanceExecutor);
+			factory.complete(result);
+
+			return result;
+		} catch (Throwable e) {
+			if(factories.remove(key, factory)) {
+				releaseKeys(key);
+			}
+			factory.completeExceptionally(e);
+
+			throw e;
+		}
+	}
+
+	private static FactoryReference waitFactory(CompletableFuture<FactoryReference> factory) {
+		try {
+			return factory.join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			if(e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+			throw e;
+		}
 	}
 
 	private void closeCachedFactory(String factoryName) {
-		for (Iterator<Entry<PersistenceContextFactoryKey, PersistenceContextFactoryWrapper>> it = 
-				factories.entrySet().iterator(); it.hasNext(); ) {
-		    Entry<PersistenceContextFactoryKey, PersistenceContextFactoryWrapper> entry = it.next();
+		for(Entry<PersistenceContextFactoryKey, CompletableFuture<FactoryReference>> entry : factories.entrySet()) {
 			if(StringUtils.equals(entry.getKey().getFactoryName(), factoryName)) {
-				ExceptionAdapter.closeQuitely(entry.getValue(), log);
-				it.remove();
+				closeCachedFactory(entry);
+			}
+		}
+	}
+
+	private boolean closeCachedFactory(Entry<PersistenceContextFactoryKey, CompletableFuture<FactoryReference>> entry) {
+		if(factories.remove(entry.getKey(), entry.getValue())) {
+			releaseKeys(entry.getKey());
+			// Factory that is still being created is released as soon as it is ready.
+			entry.getValue().thenAccept(FactoryReference::evict);
+			return true;
+		}
+		
+		return false;
+	}
+
+	private void releaseKeys(PersistenceContextFactoryKey factoryKey) {
+		internedKeys.keySet().removeIf(key -> factoryKey.equals(key.getFactoryKey()));
+	}
+
+	/**
+	 * Reference to the cached persistence factory. The factory is closed when it is evicted from the cache 
+	 * and all references are closed.
+	 */
+	public static final class FactoryReference implements AutoCloseable {
+
+		private final static long ACCESS_PRECISION = TimeUnit.MILLISECONDS.toNanos(100);
+
+		private final PersistenceContextFactoryWrapper factory;
+
+		private final Executor closeExecutor;
+
+		// One reference is held by the cache.
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private volatile long lastAccess = System.nanoTime();
+
+		private FactoryReference(PersistenceContextFactoryWrapper factory, Executor closeExecutor) {
+			this.factory = factory;
+			this.closeExecutor = closeExecutor;
+		}
+
+		/**
+		 * @return Persistence factory wrapper.
+		 */
+		public PersistenceContextFactoryWrapper getFactory() {
+			return factory;
+		}
+
+		/**
+		 * Releases the factory. Factory is closed in background, if it was evicted from the cache.
+		 */
+		@Override
+		public void close() {
+			if(references.decrementAndGet() == 0) {
+				try {
+					closeExecutor.execute(this::closeFactory);
+				} catch (RejectedExecutionException e) {
+					closeFactory();
+				}
 			}
 		}
+
+		private void touch() {
+			final long now = System.nanoTime();
+			// Reduce writes of the shared field on the hot path.
+			if(now - lastAccess > ACCESS_PRECISION) {
+				lastAccess = now;
+			}
+		}
+
+		private boolean isUsed() {
+			return references.get() > 1;
+		}
+
+		private boolean tryAcquire() {
+			for(;;) {
+				final int count = references.get();
+				if(count == 0) {
+					return false;
+				}
+				if(references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		private void evict() {
+			// Factory that isn't used by sessions is closed immediately.
+			if(references.decrementAndGet() == 0) {
+				closeFactory();
+			}
+		}
+
+		private void closeFactory() {
+			ExceptionAdapter.closeQuitely(factory, log);
+		}
+	}
+
+	/**
+	 * Read-only replica of the factory.
+	 */
+	public static final class Replica {
+
+		private final String name;
+
+		private final AtomicInteger outstanding = new AtomicInteger();
+
+		private volatile boolean failed;
+
+		private volatile long retryTime;
+
+		private Replica(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return Name of the replica factory.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return Count of sessions, that use the replica.
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		/**
+		 * @return true if the replica can be used.
+		 */
+		public boolean isHealthy() {
+			return isHealthy(System.nanoTime());
+		}
+
+		/**
+		 * Releases the replica, that was acquired by {@link PersistenceContextFactoryAccessor#acquireReplica(String)}.
+		 */
+		public void release() {
+			outstanding.decrementAndGet();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s (outstanding: %d%s)", name, outstanding.get(), isHealthy() ? "" : ", failed");
+		}
+
+		private boolean isHealthy(long now) {
+			return !failed || now - retryTime >= 0;
+		}
+	}
+
+	/**
+	 * Statistics of the factory cache.
+	 */
+	public static final class Statistics {
+
+		private final long hits;
+
+		private final long misses;
+
+		private final long evictions;
+
+		private final int size;
+
+		private Statistics(long hits, long misses, long evictions, int size) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+		}
+
+		/**
+		 * @return Count of requests, that returned cached factory.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return Count of requests, that created new factory.
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * @return Count of factories, evicted because of count limit or idle timeout.
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * @return Count of cached factories.
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hits: %d, misses: %d, evictions: %d, size: %d", hits, misses, evictions, size);
+		}
 	}
 }
@@ -24,4 +24,18 @@ public interface PersistenceContextFactoryCreator {
 			@Nonnull PersistenceContextFactoryKey key, 
 			@Nonnull Map<String, String> factoryProperties, 
 			@Nullable Map<String, String> commonProperties);
+
+	/**
+	 * Returns the key of the persistence factory, that can be created before first using (warm-up).
+	 * @param factoryName Name of persistence factory.
+	 * @param factoryProperties Persistence factory properties.
+	 * @param commonProperties Common persistence engine properties (like path to databases).
+	 * @return Key of the persistence factory or null, if the key cannot be determined by properties.
+	 */
+	default PersistenceContextFactoryKey createKey(
+			@Nonnull String factoryName, 
+			@Nonnull Map<String, String> factoryProperties, 
+			@Nullable Map<String, String> commonProperties) {
+		return new PersistenceContextFactoryKey(factoryName);
+	}
 }
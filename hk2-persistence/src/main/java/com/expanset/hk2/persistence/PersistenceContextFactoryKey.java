@@ -6,11 +6,14 @@ import org.apache.commons.lang3.StringUtils;
 
 /**
  * Persistence factory key for using to create or search factories. 
+ * Keys are immutable, hash code is calculated once.
  */
 public class PersistenceContextFactoryKey {
 
 	protected final String factoryName;
 
+	private int hash;
+
 	/**
 	 * Default constructor.
 	 */
@@ -43,6 +46,18 @@ public class PersistenceContextFactoryKey {
 	
 	@Override
 	public int hashCode() {
+		int result = hash;
+		if(result == 0) {
+			result = computeHashCode();
+			hash = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return Hash code of the key, it is called once for the key instance. 
+	 */
+	protected int computeHashCode() {
 		return factoryName.hashCode();
 	}
 
@@ -55,6 +70,6 @@ public class PersistenceContextFactoryKey {
 			return false;
 		}
 		PersistenceContextFactoryKey other = (PersistenceContextFactoryKey) obj;
-		return StringUtils.equals(factoryName, other.factoryName);
+		return hashCode() == other.hashCode() && StringUtils.equals(factoryName, other.factoryName);
 	}
 }
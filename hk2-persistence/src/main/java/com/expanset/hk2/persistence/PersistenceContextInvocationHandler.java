@@ -0,0 +1,192 @@
+package com.expanset.hk2.persistence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang3.Validate;
+
+import com.expanset.common.errors.ExceptionAdapter;
+
+/**
+ * Proxy handler, that redirects calls to the persistence context of the current persistence session.
+ * <p>Proxy class is cached by {@link Proxy} for each persistence context interface, methods are called by
+ * method handles. Persistence context of the last used session is cached for the thread, that has resolved it, 
+ * until the session closes any persistence context or adds a listener, so other threads resolve their persistence 
+ * contexts themselves and their listeners receive them. The cache does not keep the session and 
+ * the persistence context reachable, they are released when the session is closed.</p>
+ */
+@ThreadSafe
+public class PersistenceContextInvocationHandler implements InvocationHandler {
+
+	private final static Object[] EMPTY_ARGS = new Object[0];
+
+	private final static MethodType INVOKER_TYPE =
+			MethodType.methodType(Object.class, Object.class, Object[].class);
+
+	private final static ClassValue<ProxyType> proxyTypes = new ClassValue<ProxyType>() {
+		@Override
+		protected ProxyType computeValue(Class<?> type) {
+			return new ProxyType(type);
+		}
+	};
+
+	protected final PersistenceSessionManager persistenceSessionManager;
+
+	protected final PersistenceContextKey key;
+
+	protected final Class<?> persistenceContextClass;
+
+	protected final ProxyType proxyType;
+
+	private volatile CachedPersistenceContext cachedPersistenceContext;
+
+	/**
+	 * @param persistenceSessionManager Session manager to get the current session.
+	 * @param key Persistence context identifier.
+	 * @param persistenceContextClass Interface of persistence context, that depend on persistence engine.
+	 */
+	public PersistenceContextInvocationHandler(
+			@Nonnull PersistenceSessionManager persistenceSessionManager,
+			@Nonnull PersistenceContextKey key,
+			@Nonnull Class<?> persistenceContextClass) {
+		Validate.notNull(persistenceSessionManager, "persistenceSessionManager");
+		Validate.notNull(key, "key");
+		Validate.notNull(persistenceContextClass, "persistenceContextClass");
+
+		this.persistenceSessionManager = persistenceSessionManager;
+		this.key = key;
+		this.persistenceContextClass = persistenceContextClass;
+		this.proxyType = proxyTypes.get(persistenceContextClass);
+	}
+
+	/**
+	 * Creates proxy for the persistence context of the current session.
+	 * @param persistenceSessionManager Session manager to get the current session.
+	 * @param key Persistence context identifier.
+	 * @param persistenceContextClass Interface of persistence context, that depend on persistence engine.
+	 * @return Proxy object for the persistence context.
+	 * @param <T> Type of returning value.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T createProxy(
+			@Nonnull PersistenceSessionManager persistenceSessionManager,
+			@Nonnull PersistenceContextKey key,
+			@Nonnull Class<T> persistenceContextClass) {
+		final PersistenceContextInvocationHandler handler =
+				new PersistenceContextInvocationHandler(persistenceSessionManager, key, persistenceContextClass);
+		return (T)handler.proxyType.newInstance(handler);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		final Object persistenceContext = getPersistenceContext();
+		final Object[] arguments = args != null ? args : EMPTY_ARGS;
+		return (Object)proxyType.getInvoker(method).invokeExact(persistenceContext, arguments);
+	}
+
+	/**
+	 * @return Persistence context of the current session.
+	 */
+	protected Object getPersistenceContext() {
+		final PersistenceSession persistenceSession = persistenceSessionManager.getCurrentSession();
+		if(persistenceSession == null) {
+			throw new IllegalStateException("Must begin persistence scope by PersistenceContextRequestScopeManager.beginScope()");
+		}
+
+		final CachedPersistenceContext cached = cachedPersistenceContext;
+		final long threadId = Thread.currentThread().getId();
+		final int version = persistenceSession.getVersion();
+		if(cached != null && cached.threadId == threadId && cached.version == version && 
+				cached.session.get() == persistenceSession) {
+			final Object persistenceContext = cached.persistenceContext.get();
+			if(persistenceContext != null) {
+				return persistenceContext;
+			}
+		}
+
+		final Object persistenceContext = resolvePersistenceContext(persistenceSession);
+		if(!persistenceSession.isPartitioned()) {
+			cachedPersistenceContext = 
+					new CachedPersistenceContext(persistenceSession, threadId, version, persistenceContext);
+		} else if(cached != null) {
+			cachedPersistenceContext = null;
+		}
+
+		return persistenceContext;
+	}
+
+	/**
+	 * Gets persistence context from the session, result is cached until the session is changed.
+	 * @param persistenceSession The current session.
+	 * @return Persistence context of the session.
+	 */
+	protected Object resolvePersistenceContext(PersistenceSession persistenceSession) {
+		return persistenceSession.lookupPersistenceContext(key, persistenceContextClass);
+	}
+
+	private static final class CachedPersistenceContext {
+
+		private final WeakReference<PersistenceSession> session;
+
+		/**
+		 * Thread, that has resolved the persistence context, so its listener has received it.
+		 */
+		private final long threadId;
+
+		private final int version;
+
+		private final WeakReference<Object> persistenceContext;
+
+		public CachedPersistenceContext(
+				PersistenceSession session, long threadId, int version, Object persistenceContext) {
+			this.session = new WeakReference<>(session);
+			this.threadId = threadId;
+			this.version = version;
+			this.persistenceContext = new WeakReference<>(persistenceContext);
+		}
+	}
+
+	/**
+	 * Proxy class and method invokers for the persistence context interface.
+	 */
+	protected static final class ProxyType {
+
+		private final ClassLoader classLoader;
+
+		private final Class<?>[] interfaces;
+
+		private final ConcurrentMap<Method, MethodHandle> invokers = new ConcurrentHashMap<>();
+
+		public ProxyType(Class<?> persistenceContextClass) {
+			this.classLoader = persistenceContextClass.getClassLoader();
+			this.interfaces = new Class<?>[] { persistenceContextClass };
+		}
+
+		public Object newInstance(InvocationHandler handler) {
+			return Proxy.newProxyInstance(classLoader, interfaces, handler);
+		}
+
+		public MethodHandle getInvoker(Method method) {
+			MethodHandle invoker = invokers.get(method);
+			if(invoker == null) {
+				invoker = ExceptionAdapter.get(() -> MethodHandles.publicLookup()
+						.unreflect(method)
+						.asSpreader(Object[].class, method.getParameterCount())
+						.asType(INVOKER_TYPE));
+				invokers.putIfAbsent(method, invoker);
+			}
+			return invoker;
+		}
+	}
+}
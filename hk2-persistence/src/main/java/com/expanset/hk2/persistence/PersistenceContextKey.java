@@ -8,11 +8,15 @@ import org.apache.commons.lang3.Validate;
 
 /**
  * Persistence context key for using to create or search persistence contexts.
+ * Keys are immutable, hash code is calculated once. Canonical instances of the keys 
+ * (see {@link PersistenceContextFactoryAccessor#internKey(PersistenceContextKey)}) are compared by reference.
  */
 public class PersistenceContextKey {
 	
 	protected final PersistenceContextFactoryKey factoryKey;
 
+	private int hash;
+
 	/**
 	 * Default constructor.
 	 */
@@ -47,6 +51,18 @@ public class PersistenceContextKey {
 
 	@Override
 	public int hashCode() {
+		int result = hash;
+		if(result == 0) {
+			result = computeHashCode();
+			hash = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return Hash code of the key, it is called once for the key instance. 
+	 */
+	protected int computeHashCode() {
 		return factoryKey.hashCode();
 	}
 
@@ -59,6 +75,6 @@ public class PersistenceContextKey {
 			return false;
 		}
 		PersistenceContextKey other = (PersistenceContextKey) obj;
-		return Objects.equals(factoryKey, other.factoryKey);
+		return hashCode() == other.hashCode() && Objects.equals(factoryKey, other.factoryKey);
 	}	
 }
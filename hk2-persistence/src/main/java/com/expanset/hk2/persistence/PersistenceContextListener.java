@@ -0,0 +1,17 @@
+package com.expanset.hk2.persistence;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives persistence contexts, that are used by the thread (see {@link PersistenceSession#addListener(PersistenceContextListener)}).
+ * It is used to enlist persistence contexts in the transaction lazily.
+ */
+@FunctionalInterface
+public interface PersistenceContextListener {
+
+	/**
+	 * Called every time, when the persistence context is requested from the session by the listening thread.
+	 * @param persistenceContext Requested persistence context.
+	 */
+	void persistenceContextUsed(@Nonnull PersistenceContextWrapper persistenceContext);
+}
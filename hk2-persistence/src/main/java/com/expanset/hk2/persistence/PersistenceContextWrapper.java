@@ -1,5 +1,8 @@
 package com.expanset.hk2.persistence;
 
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nullable;
 import javax.transaction.Transaction;
 
 import org.jvnet.hk2.annotations.Contract;
@@ -18,4 +21,24 @@ public interface PersistenceContextWrapper extends Wrapper, AutoCloseable {
 	 * @throws Exception Error when start transaction.
 	 */
 	Transaction beginTransaction() throws Exception;
+
+	/**
+	 * Starts database transaction for this persistence context.
+	 * Read-only transaction does not write changes, its commit may be done as rollback.
+	 * @param readOnly true if the transaction does not change data.
+	 * @return New transaction for this persistence context.
+	 * @throws Exception Error when start transaction.
+	 */
+	default Transaction beginTransaction(boolean readOnly) throws Exception {
+		return beginTransaction();
+	}
+
+	/**
+	 * Limits execution time of database statements by the deadline of the transaction. Remaining time 
+	 * is requested when each statement is created, statements fail at once when the deadline is passed.
+	 * @param remainingTime Time before the deadline in milliseconds, null - restore the default.
+	 * @throws Exception Error when set deadline.
+	 */
+	default void setDeadline(@Nullable LongSupplier remainingTime) throws Exception {
+	}
 }
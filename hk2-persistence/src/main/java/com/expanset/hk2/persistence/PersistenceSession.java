@@ -1,155 +1,834 @@
 package com.expanset.hk2.persistence;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.expanset.common.errors.ExceptionAdapter;
+import com.expanset.hk2.persistence.PersistenceContextFactoryAccessor.FactoryReference;
+import com.expanset.hk2.persistence.PersistenceContextFactoryAccessor.Replica;
 
 /**
  * Holder for the persistence contexts that bounds to persistence session (current thread, web request etc).
+ * Persistence factories, that are used by the session, are not closed until the session is cleared,
+ * even if they are evicted (configuration reloaded in example).
+ * <p>Cached persistence contexts are read without locking, the session is locked only
+ * when persistence context is created or closed. The lock does not pin carrier threads of virtual threads.</p>
+ * <p>Partitioned session creates separate persistence contexts for each thread or worker 
+ * (see {@link #beginWorker()}), so the work of one request may be done in parallel.
+ * Contexts of each partition are enlisted in transactions of the thread, that uses them.</p>
+ * <p>Session with shard key (see {@link #setShardKey(Object)}) selects factories by 
+ * {@link FactoryNameResolver}.</p>
+ * <p>Read-only session routes persistence contexts to replicas of their factories 
+ * (see {@link PersistenceContextFactoryAccessor#acquireReplica(String)}). One replica is used for each factory 
+ * during the session, the primary factory is used if replica is failed.</p>
+ * <p>Session is closed by its owner (code, that has started it). If the session is used by other threads
+ * (see {@link PersistenceSessionManager#captureSession()}), it is closed when the last of them releases it.</p>
+ * <p>Maps of the session are created when they are needed first, so a session, that uses no persistence 
+ * contexts, is cheap to begin and close.</p>
  */
 @ThreadSafe
 public class PersistenceSession implements AutoCloseable {
 
 	protected final Map<String, String> factoryNameOverrides;
-		
-	protected final Map<PersistenceContextKey, PersistenceContextHolder> persistenceContexts = new HashMap<>();
-	
+
+	/**
+	 * Persistence context keys with applied factory name overrides, shards and replicas, 
+	 * created by the lock when needed.
+	 */
+	protected volatile ConcurrentMap<PersistenceContextKey, PersistenceContextKey> resolvedKeys;
+
+	protected final boolean partitioned;
+
+	protected final boolean readOnly;
+
+	protected volatile Object shardKey;
+
+	/**
+	 * Replicas of read-only session by primary factory names, null value - primary factory is used 
+	 * (guarded by the lock).
+	 */
+	protected final Map<String, Replica> replicas;
+
+	/**
+	 * Persistence contexts of not partitioned session, created by the lock when needed.
+	 */
+	protected volatile ConcurrentMap<PersistenceContextKey, PersistenceContextHolder> persistenceContexts;
+
+	/**
+	 * Persistence contexts of partitioned session by thread identifier or worker.
+	 */
+	protected final ConcurrentMap<Object, ConcurrentMap<PersistenceContextKey, PersistenceContextHolder>> partitions;
+
+	protected final ThreadLocal<Object> workers;
+
+	/**
+	 * Partitions, that are kept open after their workers are completed (see {@link #holdPartition()}), 
+	 * guarded by the lock.
+	 */
+	protected final Map<Object, PartitionHold> partitionHolds;
+
+	/**
+	 * Persistence contexts by the thread, that created them, created by the lock when needed. 
+	 * Lists are replaced as a whole on every change.
+	 */
+	protected volatile ConcurrentMap<Long, List<PersistenceContextHolder>> threadPersistenceContexts;
+
+	/**
+	 * Listeners of used persistence contexts by thread identifier, created by the lock when needed.
+	 */
+	protected volatile ConcurrentMap<Long, PersistenceContextListener> listeners;
+
+	/**
+	 * Used factories, guarded by the lock and created when needed.
+	 */
+	protected Map<PersistenceContextFactoryKey, FactoryReference> factories;
+
+	/**
+	 * Guards creation and closing of persistence contexts.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Incremented when any persistence context of the session is closed or a listener is added.
+	 */
+	protected volatile int version;
+
+	/**
+	 * Count of the session users except the owner (guarded by the lock).
+	 */
+	protected int leases;
+
+	/**
+	 * The owner has closed the session, it is waiting for other users (guarded by the lock).
+	 */
+	protected boolean closePending;
+
 	@Inject
 	protected PersistenceContextFactoryAccessor persistenceContextFactoryAccessor;
-	
+
 	private final static Logger log = LoggerFactory.getLogger(PersistenceSession.class);
-	
+
 	/**
-	 * @param factoryNameOverrides Factory name replacements for using in multi database environment. 
+	 * @param factoryNameOverrides Factory name replacements for using in multi database environment.
 	 */
 	public PersistenceSession(@Nullable Map<String, String> factoryNameOverrides) {
+		this(factoryNameOverrides, false);
+	}
+
+	/**
+	 * @param factoryNameOverrides Factory name replacements for using in multi database environment.
+	 * @param partitioned Create separate persistence contexts for each thread or worker.
+	 */
+	public PersistenceSession(@Nullable Map<String, String> factoryNameOverrides, boolean partitioned) {
+		this(factoryNameOverrides, partitioned, null);
+	}
+
+	/**
+	 * @param factoryNameOverrides Factory name replacements for using in multi database environment.
+	 * @param partitioned Create separate persistence contexts for each thread or worker.
+	 * @param persistenceContextFactoryAccessor Persistence factories accessor, if null it must be injected.
+	 */
+	public PersistenceSession(
+			@Nullable Map<String, String> factoryNameOverrides, 
+			boolean partitioned, 
+			@Nullable PersistenceContextFactoryAccessor persistenceContextFactoryAccessor) {
+		this(factoryNameOverrides, partitioned, false, persistenceContextFactoryAccessor);
+	}
+
+	/**
+	 * @param factoryNameOverrides Factory name replacements for using in multi database environment.
+	 * @param partitioned Create separate persistence contexts for each thread or worker.
+	 * @param readOnly Use read-only replicas of factories.
+	 * @param persistenceContextFactoryAccessor Persistence factories accessor, if null it must be injected.
+	 */
+	public PersistenceSession(
+			@Nullable Map<String, String> factoryNameOverrides, 
+			boolean partitioned, 
+			boolean readOnly,
+			@Nullable PersistenceContextFactoryAccessor persistenceContextFactoryAccessor) {
+		this.persistenceContextFactoryAccessor = persistenceContextFactoryAccessor;
 		this.factoryNameOverrides = factoryNameOverrides;
+		this.partitioned = partitioned;
+		this.readOnly = readOnly;
+		this.replicas = readOnly ? new HashMap<>() : null;
+		this.partitions = partitioned ? new ConcurrentHashMap<>() : null;
+		this.workers = partitioned ? new ThreadLocal<>() : null;
+		this.partitionHolds = partitioned ? new HashMap<>() : null;
 	}
-	
+
+	/**
+	 * @return Factory name replacements of the session or null.
+	 */
+	public Map<String, String> getFactoryNameOverrides() {
+		return factoryNameOverrides;
+	}
+
+	/**
+	 * @return true if the session creates separate persistence contexts for each thread or worker.
+	 */
+	public boolean isPartitioned() {
+		return partitioned;
+	}
+
+	/**
+	 * @return true if the session uses read-only replicas of factories.
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * @return Shard key of the session or null.
+	 */
+	public Object getShardKey() {
+		return shardKey;
+	}
+
+	/**
+	 * Sets the shard key, that is used by {@link FactoryNameResolver} to select factories.
+	 * It should be set before persistence contexts are used, already created persistence contexts are 
+	 * not closed until the session is cleared.
+	 * @param shardKey Shard key or null.
+	 */
+	public void setShardKey(@Nullable Object shardKey) {
+		lock.lock();
+		try {
+			this.shardKey = shardKey;
+			clearResolvedKeys();
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	/**
 	 * Returns the persistence context, that cached in this session. It is created if necessary.
-	 * @param key Persistence context identifier. 
+	 * The caller may keep the result, so the persistence context is enlisted in transactions eagerly 
+	 * (see {@link #getReferencedPersistenceContextsInCurrentThread()}).
+	 * @param key Persistence context identifier.
 	 * @param persistenceContextClass Class of persistence context, that depends on persistence engine.
-	 * @return Holder of the persistence context, which holds the persistence context of selected persistence engine. 
+	 * @return Holder of the persistence context, which holds the persistence context of selected persistence engine.
 	 * @param <T> Type of returning value.
 	 */
-	public synchronized <T> T getPersistenceContext(
-			@Nonnull PersistenceContextKey key, 
+	public <T> T getPersistenceContext(
+			@Nonnull PersistenceContextKey key,
 			@Nonnull Class<T> persistenceContextClass) {
+		return getPersistenceContext(key, persistenceContextClass, true);
+	}
+
+	/**
+	 * Returns the persistence context for the single call, the caller requests it again when
+	 * the session version is changed (proxies in example).
+	 * @param key Persistence context identifier.
+	 * @param persistenceContextClass Class of persistence context, that depends on persistence engine.
+	 * @return Holder of the persistence context, which holds the persistence context of selected persistence engine.
+	 * @param <T> Type of returning value.
+	 */
+	public <T> T lookupPersistenceContext(
+			@Nonnull PersistenceContextKey key,
+			@Nonnull Class<T> persistenceContextClass) {
+		return getPersistenceContext(key, persistenceContextClass, false);
+	}
+
+	private <T> T getPersistenceContext(
+			PersistenceContextKey key,
+			Class<T> persistenceContextClass,
+			boolean referenced) {
 		Validate.notNull(key, "key");
 		Validate.notNull(persistenceContextClass, "persistenceContextClass");
-		
-		key = resolveFactoryKey(key);
-		
-		PersistenceContextHolder result = persistenceContexts.get(key);
+
+		final PersistenceContextKey resolvedKey = resolveFactoryKey(key);
+
+		final Map<PersistenceContextKey, PersistenceContextHolder> partition = getPartition();
+		PersistenceContextHolder result = partition != null ? partition.get(resolvedKey) : null;
 		if(result == null) {
-			final PersistenceContextFactoryWrapper factory = 
-					persistenceContextFactoryAccessor.getFactory(key.getFactoryKey());
-			final PersistenceContextWrapper persistenceContext = 
-					factory.create(key);
-			
-			result = new PersistenceContextHolder(persistenceContext);
-			persistenceContexts.put(key, result);
-		}
-		
+			result = createPersistenceContext(key, resolvedKey);
+		}
+
+		if(referenced && !result.referenced) {
+			result.referenced = true;
+		}
+
 		final PersistenceContextWrapper wrapper = result.getPersistenceContext();
+		final Map<Long, PersistenceContextListener> currentListeners = listeners;
+		if(currentListeners != null && !currentListeners.isEmpty()) {
+			final PersistenceContextListener listener = currentListeners.get(Thread.currentThread().getId());
+			if(listener != null) {
+				listener.persistenceContextUsed(wrapper);
+			}
+		}
 		final T persistenceCotext = (T)ExceptionAdapter.get(() -> wrapper.unwrap(persistenceContextClass));
-		
+
 		return persistenceCotext;
 	}
-	
+
 	/**
-	 * @return List of the persistence contexts, that was created in calling thread. 
+	 * @return List of the persistence contexts, that was created in calling thread.
 	 */
-	public synchronized List<PersistenceContextWrapper> getAllPersistenceContextsInCurrentThread() {
-		final long threadId = Thread.currentThread().getId();
-		final List<PersistenceContextWrapper> result = persistenceContexts.values().stream()
-			.filter((PersistenceContextHolder holder) -> holder.getThreadId() == threadId)
-			.map((PersistenceContextHolder holder) -> holder.getPersistenceContext())
-			.collect(Collectors.toList());
+	public List<PersistenceContextWrapper> getAllPersistenceContextsInCurrentThread() {
+		final List<PersistenceContextHolder> holders = getThreadPersistenceContexts();
+		if(holders == null) {
+			return Collections.emptyList();
+		}
+
+		final List<PersistenceContextWrapper> result = new ArrayList<>(holders.size());
+		for(PersistenceContextHolder holder : holders) {
+			result.add(holder.getPersistenceContext());
+		}
+
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * @return List of the persistence contexts, that was created in calling thread and returned 
+	 * by {@link #getPersistenceContext(PersistenceContextKey, Class)} (injected directly in example).
+	 */
+	public List<PersistenceContextWrapper> getReferencedPersistenceContextsInCurrentThread() {
+		final List<PersistenceContextHolder> holders = getThreadPersistenceContexts();
+		if(holders == null) {
+			return Collections.emptyList();
+		}
+
+		final List<PersistenceContextWrapper> result = new ArrayList<>(holders.size());
+		for(PersistenceContextHolder holder : holders) {
+			if(holder.referenced) {
+				result.add(holder.getPersistenceContext());
+			}
+		}
 
 		return Collections.unmodifiableList(result);
 	}
-	
+
 	/**
-	 * Clear session, close all persistence contexts.
+	 * @param persistenceContext Persistence context, that was created in calling thread.
+	 * @return Key of the persistence context with applied factory name overrides, shards and replicas 
+	 * or null if the persistence context is not found.
 	 */
-	public synchronized void evict() {
-		for(PersistenceContextHolder persistenceContextHolder : persistenceContexts.values()) {
-			ExceptionAdapter.closeQuitely(
-					persistenceContextHolder.getPersistenceContext(), log);
+	public PersistenceContextKey getPersistenceContextKey(@Nonnull PersistenceContextWrapper persistenceContext) {
+		Validate.notNull(persistenceContext, "persistenceContext");
+
+		final List<PersistenceContextHolder> holders = getThreadPersistenceContexts();
+		if(holders != null) {
+			for(PersistenceContextHolder holder : holders) {
+				if(holder.getPersistenceContext() == persistenceContext) {
+					return holder.getKey();
+				}
+			}
 		}
-		persistenceContexts.clear();
-	}	
+		return null;
+	}
 
 	/**
-	 * Clear session, close all persistence contexts, that were created in calling thread. 
+	 * Prevents closing of the session until {@link #release()} is called. 
+	 * Used when the session is passed to other threads.
 	 */
-	public synchronized void evictInCurrentThread() {
-		final long threadId = Thread.currentThread().getId();
-		for (Iterator<Entry<PersistenceContextKey, PersistenceContextHolder>> it = 
-				persistenceContexts.entrySet().iterator(); it.hasNext(); ) {
-		    Entry<PersistenceContextKey, PersistenceContextHolder> entry = it.next();
-			if(entry.getValue().getThreadId() == threadId) {
-				ExceptionAdapter.closeQuitely(entry.getValue().getPersistenceContext(), log);
-				it.remove();
+	public void acquire() {
+		lock.lock();
+		try {
+			Validate.validState(!closePending, "Persistence session is closed");
+			leases++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the session, that was acquired by {@link #acquire()}. Session is closed if its owner 
+	 * has already closed it.
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			Validate.validState(leases > 0, "Persistence session is not acquired");
+			leases--;
+			if(leases == 0 && closePending) {
+				closePending = false;
+				evict();
 			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the session is used by other threads (see {@link #acquire()}).
+	 */
+	public boolean isAcquired() {
+		lock.lock();
+		try {
+			return leases > 0;
+		} finally {
+			lock.unlock();
 		}
 	}
-	
+
+	/**
+	 * Starts listening of persistence contexts, that are used by the calling thread.
+	 * Cached persistence contexts (see {@link #getVersion()}) are requested again, so the listener receives them.
+	 * The previous listener of the thread is suspended until the returned object is closed.
+	 * @param listener Listener of used persistence contexts.
+	 * @return Object, that should be closed to stop listening.
+	 */
+	public AutoCloseable addListener(@Nonnull PersistenceContextListener listener) {
+		Validate.notNull(listener, "listener");
+
+		final Long threadId = Thread.currentThread().getId();
+		final ConcurrentMap<Long, PersistenceContextListener> currentListeners;
+		final PersistenceContextListener previous;
+		lock.lock();
+		try {
+			if(listeners == null) {
+				listeners = new ConcurrentHashMap<>();
+			}
+			currentListeners = listeners;
+			previous = currentListeners.put(threadId, listener);
+			version++;
+		} finally {
+			lock.unlock();
+		}
+
+		return () -> {
+			if(previous != null) {
+				currentListeners.replace(threadId, listener, previous);
+			} else {
+				currentListeners.remove(threadId, listener);
+			}
+		};
+	}
+
+	/**
+	 * Returns the version of the session, that is changed when any persistence context of the session is closed
+	 * or a listener is added.
+	 * Persistence context, that was returned by {@link #getPersistenceContext(PersistenceContextKey, Class)},
+	 * may be cached by the caller until the version is changed (the session should not be partitioned).
+	 * @return Version of the session.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Binds new partition of persistence contexts to the calling thread, until returned object is closed.
+	 * It can be used when threads of a pool are reused by several tasks. Partition persistence contexts
+	 * are closed when the worker is completed.
+	 * @return Object, that should be closed when the worker is completed.
+	 */
+	public AutoCloseable beginWorker() {
+		Validate.validState(partitioned, "Session must be partitioned");
+
+		final Object previousWorker = workers.get();
+		final Object worker = new Object();
+		workers.set(worker);
+
+		return () -> {
+			try {
+				evictPartition(worker);
+			} finally {
+				if(previousWorker != null) {
+					workers.set(previousWorker);
+				} else {
+					workers.remove();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Keeps persistence contexts of the current partition open after its worker is completed, 
+	 * until the returned object is closed. It is used by transactions, that enlist persistence contexts of workers.
+	 * @return Object, that should be closed when persistence contexts of the partition are not needed.
+	 */
+	public AutoCloseable holdPartition() {
+		if(!partitioned) {
+			return () -> {};
+		}
+
+		final Object partitionId = getPartitionId();
+		lock.lock();
+		try {
+			partitionHolds.computeIfAbsent(partitionId, id -> new PartitionHold()).holds++;
+		} finally {
+			lock.unlock();
+		}
+
+		final AtomicBoolean released = new AtomicBoolean();
+		return () -> {
+			if(!released.compareAndSet(false, true)) {
+				return;
+			}
+			lock.lock();
+			try {
+				final PartitionHold hold = partitionHolds.get(partitionId);
+				if(hold != null && --hold.holds == 0) {
+					partitionHolds.remove(partitionId);
+					if(hold.completed) {
+						evictPartition(partitionId);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		};
+	}
+
+	/**
+	 * Clear session, close all persistence contexts and release persistence factories.
+	 */
+	public void evict() {
+		lock.lock();
+		try {
+			if((threadPersistenceContexts != null && !threadPersistenceContexts.isEmpty()) || 
+					(partitions != null && !partitions.isEmpty())) {
+				if(threadPersistenceContexts != null) {
+					for(List<PersistenceContextHolder> holders : threadPersistenceContexts.values()) {
+						for(PersistenceContextHolder holder : holders) {
+							ExceptionAdapter.closeQuitely(holder.getPersistenceContext(), log);
+						}
+					}
+					threadPersistenceContexts.clear();
+				}
+				if(persistenceContexts != null) {
+					persistenceContexts.clear();
+				}
+				if(partitions != null) {
+					partitions.clear();
+				}
+				version++;
+			}
+
+			if(factories != null && !factories.isEmpty()) {
+				for(FactoryReference factory : factories.values()) {
+					factory.close();
+				}
+				factories.clear();
+			}
+
+			if(readOnly && !replicas.isEmpty()) {
+				for(Replica replica : replicas.values()) {
+					if(replica != null) {
+						replica.release();
+					}
+				}
+				replicas.clear();
+				clearResolvedKeys();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Clear session, close all persistence contexts, that were created in calling thread.
+	 */
+	public void evictInCurrentThread() {
+		lock.lock();
+		try {
+			final List<PersistenceContextHolder> holders = threadPersistenceContexts != null ? 
+					threadPersistenceContexts.remove(Thread.currentThread().getId()) : null;
+			if(holders != null) {
+				for(PersistenceContextHolder holder : holders) {
+					holder.getPartition().remove(holder.getKey(), holder);
+				}
+				version++;
+				for(PersistenceContextHolder holder : holders) {
+					ExceptionAdapter.closeQuitely(holder.getPersistenceContext(), log);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	public PersistenceContextKey resolveFactoryKey(PersistenceContextKey key) {
-		if(factoryNameOverrides != null) {
-			final String newFactoryName = factoryNameOverrides.get(key.getFactoryKey().getFactoryName());
-			if(newFactoryName != null) {
-				key = key.clone(newFactoryName);
+		final Object currentShardKey = shardKey;
+		if(factoryNameOverrides == null && !readOnly && currentShardKey == null) {
+			return key;
+		}
+
+		final ConcurrentMap<PersistenceContextKey, PersistenceContextKey> currentResolvedKeys = resolvedKeys;
+		PersistenceContextKey result = currentResolvedKeys != null ? currentResolvedKeys.get(key) : null;
+		if(result == null) {
+			result = key;
+			if(factoryNameOverrides != null) {
+				final String newFactoryName = factoryNameOverrides.get(key.getFactoryKey().getFactoryName());
+				if(newFactoryName != null) {
+					result = internKey(key.clone(newFactoryName));
+				}
+			}
+			if(currentShardKey != null) {
+				final FactoryNameResolver resolver = persistenceContextFactoryAccessor.getFactoryNameResolver();
+				if(resolver != null) {
+					final String factoryName = result.getFactoryKey().getFactoryName();
+					final String newFactoryName = resolver.resolveFactoryName(factoryName, currentShardKey);
+					if(!StringUtils.equals(factoryName, newFactoryName)) {
+						result = internKey(result.clone(newFactoryName));
+					}
+				}
+			}
+			if(readOnly) {
+				result = routeToReplica(key, result);
+			} else {
+				getResolvedKeys().putIfAbsent(key, result);
 			}
 		}
-		return key;
-	}	
-	
+		return result;
+	}
+
 	public String resolveFactoryName(String factoryName) {
 		if(factoryNameOverrides != null) {
 			final String newFactoryName = factoryNameOverrides.get(factoryName);
 			if(newFactoryName != null) {
-				return newFactoryName;
+				factoryName = newFactoryName;
+			}
+		}
+		final Object currentShardKey = shardKey;
+		if(currentShardKey != null) {
+			final FactoryNameResolver resolver = persistenceContextFactoryAccessor.getFactoryNameResolver();
+			if(resolver != null) {
+				factoryName = resolver.resolveFactoryName(factoryName, currentShardKey);
 			}
 		}
 		return factoryName;
-	} 		
-	
+	}
+
 	/**
-	 * Close persistence session.
+	 * Close persistence session. If the session is acquired by other threads, it is closed when they release it.
 	 */
 	@Override
-	public synchronized void close()
+	public void close()
 			throws Exception {
-		evict();
-	}	
-	
+		lock.lock();
+		try {
+			if(leases > 0) {
+				closePending = true;
+			} else {
+				evict();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private List<PersistenceContextHolder> getThreadPersistenceContexts() {
+		final Map<Long, List<PersistenceContextHolder>> currentThreadPersistenceContexts = threadPersistenceContexts;
+		return currentThreadPersistenceContexts != null ? 
+				currentThreadPersistenceContexts.get(Thread.currentThread().getId()) : null;
+	}
+
+	private ConcurrentMap<PersistenceContextKey, PersistenceContextKey> getResolvedKeys() {
+		ConcurrentMap<PersistenceContextKey, PersistenceContextKey> result = resolvedKeys;
+		if(result == null) {
+			lock.lock();
+			try {
+				if(resolvedKeys == null) {
+					resolvedKeys = new ConcurrentHashMap<>();
+				}
+				result = resolvedKeys;
+			} finally {
+				lock.unlock();
+			}
+		}
+		return result;
+	}
+
+	private void clearResolvedKeys() {
+		if(resolvedKeys != null) {
+			resolvedKeys.clear();
+		}
+	}
+
+	private Map<PersistenceContextKey, PersistenceContextHolder> getPartition() {
+		if(!partitioned) {
+			return persistenceContexts;
+		}
+		return partitions.get(getPartitionId());
+	}
+
+	private Object getPartitionId() {
+		final Object worker = workers.get();
+		return worker != null ? worker : Thread.currentThread().getId();
+	}
+
+	private void evictPartition(Object partitionId) {
+		lock.lock();
+		try {
+			final PartitionHold hold = partitionHolds.get(partitionId);
+			if(hold != null) {
+				// Persistence contexts are closed when the last hold is released.
+				hold.completed = true;
+				return;
+			}
+
+			final Map<PersistenceContextKey, PersistenceContextHolder> partition = partitions.remove(partitionId);
+			if(partition == null) {
+				return;
+			}
+
+			for(PersistenceContextHolder holder : partition.values()) {
+				final List<PersistenceContextHolder> holders = threadPersistenceContexts != null ? 
+						threadPersistenceContexts.get(holder.getThreadId()) : null;
+				if(holders != null) {
+					final List<PersistenceContextHolder> newHolders = new ArrayList<>(holders);
+					newHolders.remove(holder);
+					if(newHolders.isEmpty()) {
+						threadPersistenceContexts.remove(holder.getThreadId());
+					} else {
+						threadPersistenceContexts.put(holder.getThreadId(), Collections.unmodifiableList(newHolders));
+					}
+				}
+				ExceptionAdapter.closeQuitely(holder.getPersistenceContext(), log);
+			}
+			version++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private PersistenceContextKey internKey(PersistenceContextKey key) {
+		return persistenceContextFactoryAccessor != null ? persistenceContextFactoryAccessor.internKey(key) : key;
+	}
+
+	private PersistenceContextKey routeToReplica(PersistenceContextKey key, PersistenceContextKey primaryKey) {
+		lock.lock();
+		try {
+			final Map<PersistenceContextKey, PersistenceContextKey> currentResolvedKeys = getResolvedKeys();
+			PersistenceContextKey result = currentResolvedKeys.get(key);
+			if(result == null) {
+				final String factoryName = primaryKey.getFactoryKey().getFactoryName();
+				Replica replica = replicas.get(factoryName);
+				if(replica == null && !replicas.containsKey(factoryName)) {
+					replica = persistenceContextFactoryAccessor.acquireReplica(factoryName);
+					replicas.put(factoryName, replica);
+				}
+				result = replica != null ? internKey(primaryKey.clone(replica.getName())) : primaryKey;
+				currentResolvedKeys.put(key, result);
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean fallbackToPrimary(PersistenceContextKey resolvedKey) {
+		final String replicaName = resolvedKey.getFactoryKey().getFactoryName();
+		for(Entry<String, Replica> entry : replicas.entrySet()) {
+			final Replica replica = entry.getValue();
+			if(replica != null && replica.getName().equals(replicaName)) {
+				persistenceContextFactoryAccessor.markReplicaFailed(replicaName);
+				replica.release();
+				entry.setValue(null);
+				// Keys are routed again, to the primary factory.
+				clearResolvedKeys();
+				version++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private PersistenceContextHolder createPersistenceContext(
+			PersistenceContextKey originalKey, PersistenceContextKey key) {
+		lock.lock();
+		try {
+			if(!partitioned && persistenceContexts == null) {
+				persistenceContexts = new ConcurrentHashMap<>();
+			}
+			final ConcurrentMap<PersistenceContextKey, PersistenceContextHolder> partition = partitioned ? 
+					partitions.computeIfAbsent(getPartitionId(), id -> new ConcurrentHashMap<>()) : 
+					persistenceContexts;
+			PersistenceContextHolder result = partition.get(key);
+			if(result == null) {
+				final PersistenceContextWrapper persistenceContext;
+				try {
+					if(factories == null) {
+						factories = new HashMap<>();
+					}
+					FactoryReference factory = factories.get(key.getFactoryKey());
+					if(factory == null) {
+						factory = persistenceContextFactoryAccessor.acquireFactory(key.getFactoryKey());
+						factories.put(key.getFactoryKey(), factory);
+					}
+					persistenceContext = factory.getFactory().create(key);
+				} catch (RuntimeException e) {
+					if(readOnly && fallbackToPrimary(key)) {
+						log.warn("Persistence context creation on replica is failed", e);
+						return createPersistenceContext(originalKey, resolveFactoryKey(originalKey));
+					}
+					throw e;
+				}
+
+				result = new PersistenceContextHolder(partition, key, persistenceContext);
+
+				if(threadPersistenceContexts == null) {
+					threadPersistenceContexts = new ConcurrentHashMap<>();
+				}
+				final List<PersistenceContextHolder> holders =
+						threadPersistenceContexts.get(result.getThreadId());
+				final List<PersistenceContextHolder> newHolders =
+						new ArrayList<>(holders != null ? holders.size() + 1 : 1);
+				if(holders != null) {
+					newHolders.addAll(holders);
+				}
+				newHolders.add(result);
+				threadPersistenceContexts.put(result.getThreadId(), Collections.unmodifiableList(newHolders));
+
+				partition.put(key, result);
+			}
+
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	protected final class PersistenceContextHolder {
-		
+
+		private final Map<PersistenceContextKey, PersistenceContextHolder> partition;
+
+		private final PersistenceContextKey key;
+
 		private final PersistenceContextWrapper persistenceContext;
-		
+
 		private final long threadId = Thread.currentThread().getId();
-		
-		public PersistenceContextHolder(PersistenceContextWrapper persistenceContext) {
+
+		/**
+		 * The persistence context may be kept by callers.
+		 */
+		private volatile boolean referenced;
+
+		public PersistenceContextHolder(
+				Map<PersistenceContextKey, PersistenceContextHolder> partition,
+				PersistenceContextKey key, 
+				PersistenceContextWrapper persistenceContext) {
+			this.partition = partition;
+			this.key = key;
 			this.persistenceContext = persistenceContext;
 		}
 
+		public Map<PersistenceContextKey, PersistenceContextHolder> getPartition() {
+			return partition;
+		}
+
+		public PersistenceContextKey getKey() {
+			return key;
+		}
+
 		public PersistenceContextWrapper getPersistenceContext() {
 			return persistenceContext;
 		}
@@ -158,4 +837,17 @@ public class PersistenceSession implements AutoCloseable {
 			return threadId;
 		}
 	}
+
+	/**
+	 * Holds of the partition, guarded by the lock of the session.
+	 */
+	protected static final class PartitionHold {
+
+		private int holds;
+
+		/**
+		 * The worker of the partition is completed.
+		 */
+		private boolean completed;
+	}
 }
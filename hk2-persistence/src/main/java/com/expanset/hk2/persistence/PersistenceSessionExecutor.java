@@ -0,0 +1,78 @@
+package com.expanset.hk2.persistence;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.transaction.Transaction;
+
+import org.apache.commons.lang3.Validate;
+
+import com.expanset.common.errors.ExceptionAdapter;
+import com.expanset.hk2.persistence.transactions.LocalTransactionManager;
+
+/**
+ * Executor, that runs tasks in the persistence session and transaction of the thread, that submits them.
+ * It can be used with {@link java.util.concurrent.CompletableFuture} to run independent queries of one request
+ * in parallel.
+ * <pre>
+ * final Executor sessionExecutor = new PersistenceSessionExecutor(executor, sessionManager, transactionManager);
+ * CompletableFuture&lt;User&gt; user = CompletableFuture.supplyAsync(() -&gt; userDao.get(id), sessionExecutor);
+ * </pre>
+ * <p>Session and transaction are owned by the submitting code, which must wait for the tasks before
+ * the transaction is completed. Persistence contexts, that are used by tasks, are enlisted in the transaction 
+ * and are kept open until it is completed. The session is closed after the last task is completed, even if its
+ * owner has closed it before. Use partitioned session
+ * (see {@link PersistenceSessionManager#beginSession(java.util.Map, boolean)}) if tasks use the same
+ * persistence contexts in parallel.</p>
+ */
+@ThreadSafe
+public class PersistenceSessionExecutor implements Executor {
+
+	protected final Executor executor;
+
+	protected final PersistenceSessionManager persistenceSessionManager;
+
+	protected final LocalTransactionManager transactionManager;
+
+	/**
+	 * @param executor Executor to run tasks.
+	 * @param persistenceSessionManager Session manager to capture and restore sessions.
+	 * @param transactionManager Transaction manager to propagate transactions, or null.
+	 */
+	public PersistenceSessionExecutor(
+			@Nonnull Executor executor,
+			@Nonnull PersistenceSessionManager persistenceSessionManager,
+			@Nullable LocalTransactionManager transactionManager) {
+		Validate.notNull(executor, "executor");
+		Validate.notNull(persistenceSessionManager, "persistenceSessionManager");
+
+		this.executor = executor;
+		this.persistenceSessionManager = persistenceSessionManager;
+		this.transactionManager = transactionManager;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		Validate.notNull(command, "command");
+
+		final CapturedSession capturedSession = persistenceSessionManager.captureSession();
+		final Transaction transaction = transactionManager != null ?
+				ExceptionAdapter.get(() -> transactionManager.getTransaction()) : null;
+
+		try {
+			executor.execute(() -> ExceptionAdapter.run(() -> {
+				try(AutoCloseable sessionScope = capturedSession.restore();
+					AutoCloseable transactionScope =
+							transaction != null ? transactionManager.joinTransaction(transaction) : null) {
+					command.run();
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			capturedSession.close();
+			throw e;
+		}
+	}
+}
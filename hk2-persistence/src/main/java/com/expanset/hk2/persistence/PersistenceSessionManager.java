@@ -1,8 +1,5 @@
 package com.expanset.hk2.persistence;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nonnull;
@@ -75,6 +72,99 @@ public interface PersistenceSessionManager {
 	 */
 	AutoCloseable beginSession(@Nullable Map<String, String> factoryNameOverrides);
 
+	/**
+	 * Starts a new persistence context session.
+	 * @param factoryNameOverrides Factory name replacements for using in a multi database environment. 
+	 * @param partitioned Create separate persistence contexts for each thread or worker, 
+	 * so the session can be used by several threads in parallel (see {@link #beginWorker(PersistenceSession)}).
+	 * @return Object, that should be closed when persistence session is completed.
+	 */
+	default AutoCloseable beginSession(@Nullable Map<String, String> factoryNameOverrides, boolean partitioned) {
+		return beginSession(factoryNameOverrides, partitioned, false);
+	}
+
+	/**
+	 * Starts a new persistence context session.
+	 * @param factoryNameOverrides Factory name replacements for using in a multi database environment. 
+	 * @param partitioned Create separate persistence contexts for each thread or worker, 
+	 * so the session can be used by several threads in parallel (see {@link #beginWorker(PersistenceSession)}).
+	 * @param readOnly Route persistence contexts to read-only replicas of factories 
+	 * (see {@link PersistenceContextFactoryAccessor#REPLICAS_PROPERTY}).
+	 * @return Object, that should be closed when persistence session is completed.
+	 * @throws UnsupportedOperationException Manager does not support partitioned or read-only sessions.
+	 */
+	default AutoCloseable beginSession(
+			@Nullable Map<String, String> factoryNameOverrides, boolean partitioned, boolean readOnly) {
+		if(partitioned || readOnly) {
+			throw new UnsupportedOperationException("Partitioned and read-only sessions are not supported");
+		}
+		return beginSession(factoryNameOverrides);
+	}
+
+	/**
+	 * Starts a new persistence context session, that selects factories by the shard key 
+	 * (see {@link FactoryNameResolver}).
+	 * @param shardKey Shard key (identifier of user in example).
+	 * @return Object, that should be closed when persistence session is completed.
+	 */
+	default AutoCloseable beginShardSession(@Nonnull Object shardKey) {
+		Validate.notNull(shardKey, "shardKey");
+
+		final AutoCloseable scope = beginSession();
+		getCurrentSession().setShardKey(shardKey);
+		return scope;
+	}
+
+	/**
+	 * Starts a new persistence context session, that uses read-only replicas of factories.
+	 * @param factoryNameOverrides Factory name replacements for using in a multi database environment. 
+	 * @return Object, that should be closed when persistence session is completed.
+	 */
+	default AutoCloseable beginReadOnlySession(@Nullable Map<String, String> factoryNameOverrides) {
+		return beginSession(factoryNameOverrides, false, true);
+	}
+
+	/**
+	 * Starts a new persistence context session, that uses read-only replicas of factories.
+	 * @param factoryNameOverrides Factory name replacements for using in a multi database environment. 
+	 * @param shardKey Shard key (see {@link FactoryNameResolver}) or null.
+	 * @return Object, that should be closed when persistence session is completed.
+	 */
+	default AutoCloseable beginReadOnlySession(
+			@Nullable Map<String, String> factoryNameOverrides, @Nullable Object shardKey) {
+		final AutoCloseable scope = beginReadOnlySession(factoryNameOverrides);
+		if(shardKey != null) {
+			getCurrentSession().setShardKey(shardKey);
+		}
+		return scope;
+	}
+
+	/**
+	 * Binds the session to the current context. A new partition of persistence contexts is started 
+	 * in the partitioned session, otherwise persistence contexts are shared with other threads.
+	 * Persistence contexts of the partition are closed when the worker is completed, the session is not closed. 
+	 * @param persistenceSession Session, that was started in other thread.
+	 * @return Object, that should be closed when the worker is completed.
+	 * @throws UnsupportedOperationException Manager does not support workers.
+	 */
+	default AutoCloseable beginWorker(@Nonnull PersistenceSession persistenceSession) {
+		throw new UnsupportedOperationException("Workers are not supported");
+	}
+
+	/**
+	 * Captures the current session to use it in other thread (see {@link CapturedSession#restore()}).
+	 * The session is not closed by its owner until the captured session is restored and completed or closed.
+	 * @return Captured session.
+	 */
+	default CapturedSession captureSession() {
+		final PersistenceSession persistenceSession = getCurrentSession();
+		if(persistenceSession == null) {
+			throw new IllegalStateException("Must begin persistence scope by PersistenceContextRequestScopeManager.beginScope()");
+		}
+
+		return new CapturedSession(this, persistenceSession);
+	}
+
 	/**
 	 * @return Persistence session, that was bound to the current context (thread, web request etc).
 	 */
@@ -145,7 +235,6 @@ public interface PersistenceSessionManager {
 	 * @return Persistence context, that was bound to the current sessions. 
 	 * @param <T> Type of returning value.
 	 */
-	@SuppressWarnings("unchecked")
 	default <T> T getPersistenceContext(
 			@Nonnull PersistenceContextKey key, 
 			@Nonnull Class<T> persistenceContextClass,
@@ -155,24 +244,7 @@ public interface PersistenceSessionManager {
 
 		if(getScopes() != null && currentScope != null && !getScopes().contains(currentScope)) {
 			// Need to create proxy for other scopes.
-            return (T)Proxy.newProxyInstance(
-                    this.getClass().getClassLoader(),
-                    new Class<?> [] { persistenceContextClass },
-                    new InvocationHandler() {
-						@Override
-						public Object invoke(Object proxy, Method method, Object[] args) 
-								throws Throwable {
-							final PersistenceSession persistenceSession = getCurrentSession();
-							if(persistenceSession == null) {
-								throw new IllegalStateException("Must begin persistence scope by PersistenceContextRequestScopeManager.beginScope()");
-							}								
-							
-							final T persistenceContext = 
-									persistenceSession.getPersistenceContext(key, persistenceContextClass);
-							
-				            return method.invoke(persistenceContext, args);
-						}
-                    });			
+			return PersistenceContextInvocationHandler.createProxy(this, key, persistenceContextClass);
 		} else {
 			final PersistenceSession persistenceSession = getCurrentSession();
 			if(persistenceSession == null) {
@@ -0,0 +1,21 @@
+package com.expanset.hk2.persistence;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Method (or all methods of the class) only reads data, so it is called in the read-only persistence session,
+ * that uses replicas of databases (see {@link PersistenceSessionManager#beginReadOnlySession(java.util.Map)}).
+ * <p>Method is called in the current session if it is read-only already or a transaction is active, 
+ * so data written by the transaction is visible.</p>
+ * <p>Transactions of {@link com.expanset.hk2.persistence.transactions.LocalTransactionManager}, that are started
+ * in the read-only session (by {@link javax.transaction.Transactional} in example), are read-only too.</p>
+ */
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface ReadOnly {
+}
@@ -0,0 +1,41 @@
+package com.expanset.hk2.persistence;
+
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.jvnet.hk2.annotations.Service;
+
+/**
+ * Interceptor for methods that are annotated by {@link ReadOnly}. 
+ * It begins read-only persistence session with factory name overrides and shard key of the current session.
+ */
+@Service
+public class ReadOnlyInterceptor implements MethodInterceptor {
+
+	@Inject
+	protected PersistenceSessionManager persistenceSessionManager;
+
+	@Inject
+	protected TransactionManager transactionManager;
+
+	@Override
+	public Object invoke(MethodInvocation invocation) 
+			throws Throwable {
+		final PersistenceSession persistenceSession = persistenceSessionManager.getCurrentSession();
+		if(persistenceSession != null) {
+			if(persistenceSession.isReadOnly() || 
+					transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION) {
+				return invocation.proceed();
+			}
+		}
+
+		try(AutoCloseable scope = persistenceSessionManager.beginReadOnlySession(
+				persistenceSession != null ? persistenceSession.factoryNameOverrides : null,
+				persistenceSession != null ? persistenceSession.getShardKey() : null)) {
+			return invocation.proceed();
+		}
+	}
+}
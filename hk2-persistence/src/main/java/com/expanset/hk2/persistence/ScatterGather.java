@@ -0,0 +1,361 @@
+package com.expanset.hk2.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BinaryOperator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang3.Validate;
+
+import com.expanset.common.errors.ExceptionAdapter.ExceptionableSupplier;
+
+/**
+ * Runs the same code against several databases (shards) in parallel, each shard in its own persistence session.
+ * <p>Shards are defined by factory name overrides (see {@link PersistenceSessionManager#beginSession(Map)}).
+ * Executor should be bounded, it limits count of concurrently used database connections. 
+ * Shards, that are queued in the executor, time out by the deadline of the call.</p>
+ * <pre>
+ * ScatterGather scatterGather = new ScatterGather(
+ *	sessionManager, executor, 10, TimeUnit.SECONDS, ScatterGather.FailurePolicy.PARTIAL);
+ * Map&lt;String, Map&lt;String, String&gt;&gt; shards = new HashMap&lt;&gt;();
+ * shards.put("db1", Collections.singletonMap("", "db1"));
+ * shards.put("db2", Collections.singletonMap("", "db2"));
+ * Long usersCount = scatterGather.getInScopes(() -&gt; userDao.count(), shards).merge(Long::sum);
+ * </pre>
+ */
+@ThreadSafe
+public class ScatterGather {
+
+	/**
+	 * What to do, when some of shards are failed or timed out.
+	 */
+	public enum FailurePolicy {
+
+		/**
+		 * Cancel other shards and throw {@link ScatterGatherException}.
+		 */
+		FAIL,
+
+		/**
+		 * Return results of succeeded shards, errors are available in the result.
+		 */
+		PARTIAL,
+
+		/**
+		 * Return results of succeeded shards, throw {@link ScatterGatherException} if all shards are failed.
+		 */
+		REQUIRE_ANY
+	}
+
+	protected final PersistenceSessionManager persistenceSessionManager;
+
+	protected final Executor executor;
+
+	protected final long timeout;
+
+	protected final long deadline;
+
+	protected final FailurePolicy failurePolicy;
+
+	/**
+	 * @param persistenceSessionManager Session manager to start sessions for shards.
+	 * @param executor Bounded executor to run shards.
+	 * @param timeout Timeout of the call, that limits each shard too, 0 - not limited.
+	 * @param unit Unit of the timeout.
+	 * @param failurePolicy What to do, when some of shards are failed or timed out.
+	 */
+	public ScatterGather(
+			@Nonnull PersistenceSessionManager persistenceSessionManager,
+			@Nonnull Executor executor,
+			long timeout,
+			@Nonnull TimeUnit unit,
+			@Nonnull FailurePolicy failurePolicy) {
+		this(persistenceSessionManager, executor, timeout, timeout, unit, failurePolicy);
+	}
+
+	/**
+	 * @param persistenceSessionManager Session manager to start sessions for shards.
+	 * @param executor Bounded executor to run shards.
+	 * @param timeout Timeout of each shard, it is counted from the shard start, 0 - not limited.
+	 * @param deadline Timeout of the call, it is counted from the call start and limits queued shards too, 
+	 * 0 - not limited.
+	 * @param unit Unit of the timeouts.
+	 * @param failurePolicy What to do, when some of shards are failed or timed out.
+	 */
+	public ScatterGather(
+			@Nonnull PersistenceSessionManager persistenceSessionManager,
+			@Nonnull Executor executor,
+			long timeout,
+			long deadline,
+			@Nonnull TimeUnit unit,
+			@Nonnull FailurePolicy failurePolicy) {
+		Validate.notNull(persistenceSessionManager, "persistenceSessionManager");
+		Validate.notNull(executor, "executor");
+		Validate.isTrue(timeout >= 0, "timeout");
+		Validate.isTrue(deadline >= 0, "deadline");
+		Validate.notNull(unit, "unit");
+		Validate.notNull(failurePolicy, "failurePolicy");
+
+		this.persistenceSessionManager = persistenceSessionManager;
+		this.executor = executor;
+		this.timeout = unit.toNanos(timeout);
+		this.deadline = unit.toNanos(deadline);
+		this.failurePolicy = failurePolicy;
+	}
+
+	/**
+	 * Calls code in the persistence session of each shard in parallel.
+	 * @param runnable Code to call.
+	 * @param shards Shard names and factory name replacements for them.
+	 * @return Results and errors of shards.
+	 * @param <T> Type of returning value.
+	 */
+	public <T> Result<T> getInScopes(
+			@Nonnull ExceptionableSupplier<T> runnable,
+			@Nonnull Map<String, Map<String, String>> shards) {
+		Validate.notNull(runnable, "runnable");
+		Validate.notNull(shards, "shards");
+
+		final long startTime = System.nanoTime();
+		final BlockingQueue<ShardTask<T>> completed = new LinkedBlockingQueue<>();
+		final List<ShardTask<T>> tasks = new ArrayList<>(shards.size());
+		for(Entry<String, Map<String, String>> shard : shards.entrySet()) {
+			final ShardTask<T> task = new ShardTask<>(shard.getKey(), shard.getValue(), runnable, completed);
+			tasks.add(task);
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				task.reject(e);
+			}
+		}
+
+		final Map<String, T> results = new LinkedHashMap<>();
+		final Map<String, Throwable> errors = new LinkedHashMap<>();
+		int pending = tasks.size();
+		try {
+			while(pending > 0) {
+				final ShardTask<T> task = completed.poll(getWaitTime(tasks, startTime), TimeUnit.NANOSECONDS);
+				if(task == null) {
+					cancelTimedOut(tasks, startTime);
+					continue;
+				}
+
+				pending--;
+				final Throwable error = task.getError();
+				if(error == null) {
+					results.put(task.shard, task.getResult());
+				} else {
+					errors.put(task.shard, error);
+					if(failurePolicy == FailurePolicy.FAIL) {
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			errors.put(null, e);
+		} finally {
+			for(ShardTask<T> task : tasks) {
+				task.cancel(true);
+			}
+		}
+
+		final Result<T> result = new Result<>(order(results, tasks), order(errors, tasks));
+		if(!errors.isEmpty()) {
+			if(failurePolicy == FailurePolicy.FAIL ||
+					(failurePolicy == FailurePolicy.REQUIRE_ANY && results.isEmpty()) ||
+					errors.containsKey(null)) {
+				throw new ScatterGatherException(result);
+			}
+		}
+
+		return result;
+	}
+
+	private long getWaitTime(List<? extends ShardTask<?>> tasks, long startTime) {
+		if(timeout == 0 && deadline == 0) {
+			return Long.MAX_VALUE;
+		}
+
+		final long now = System.nanoTime();
+		long result = deadline != 0 ? startTime + deadline - now : Long.MAX_VALUE;
+		if(timeout != 0) {
+			// Shards, that are not started yet, are checked again after the nearest of timeouts.
+			result = Math.min(result, timeout);
+			for(ShardTask<?> task : tasks) {
+				if(task.started && !task.isDone()) {
+					result = Math.min(result, task.startTime + timeout - now);
+				}
+			}
+		}
+		return Math.max(result, 0);
+	}
+
+	private void cancelTimedOut(List<? extends ShardTask<?>> tasks, long startTime) {
+		final long now = System.nanoTime();
+		final boolean deadlineExpired = deadline != 0 && now - startTime >= deadline;
+		for(ShardTask<?> task : tasks) {
+			if(!task.isDone() && (deadlineExpired || 
+					(timeout != 0 && task.started && now - task.startTime >= timeout))) {
+				task.timedOut = true;
+				task.cancel(true);
+			}
+		}
+	}
+
+	private static <V> Map<String, V> order(Map<String, V> values, List<? extends ShardTask<?>> tasks) {
+		final Map<String, V> result = new LinkedHashMap<>();
+		for(ShardTask<?> task : tasks) {
+			if(values.containsKey(task.shard)) {
+				result.put(task.shard, values.get(task.shard));
+			}
+		}
+		if(values.containsKey(null)) {
+			result.put(null, values.get(null));
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Results and errors of shards.
+	 * @param <T> Type of shard result.
+	 */
+	public static final class Result<T> {
+
+		private final Map<String, T> results;
+
+		private final Map<String, Throwable> errors;
+
+		public Result(Map<String, T> results, Map<String, Throwable> errors) {
+			this.results = results;
+			this.errors = errors;
+		}
+
+		/**
+		 * @return Results of succeeded shards by shard names.
+		 */
+		public Map<String, T> getResults() {
+			return results;
+		}
+
+		/**
+		 * @return Errors of failed shards by shard names, timed out shards fail with {@link TimeoutException}.
+		 */
+		public Map<String, Throwable> getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return true if all shards are succeeded.
+		 */
+		public boolean isComplete() {
+			return errors.isEmpty();
+		}
+
+		/**
+		 * Merges results of succeeded shards.
+		 * @param merger Function to merge two results.
+		 * @return Merged result or null if there are no results.
+		 */
+		@Nullable
+		public T merge(@Nonnull BinaryOperator<T> merger) {
+			Validate.notNull(merger, "merger");
+
+			T result = null;
+			boolean first = true;
+			for(T value : results.values()) {
+				result = first ? value : merger.apply(result, value);
+				first = false;
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Shards succeeded: %s, failed: %s", results.keySet(), errors.keySet());
+		}
+	}
+
+	private final class ShardTask<T> extends FutureTask<T> {
+
+		private final String shard;
+
+		private final BlockingQueue<ShardTask<T>> completed;
+
+		private volatile boolean started;
+
+		private volatile long startTime;
+
+		private volatile boolean timedOut;
+
+		private volatile Throwable rejected;
+
+		public ShardTask(
+				String shard,
+				Map<String, String> factoryNameOverrides,
+				ExceptionableSupplier<T> runnable,
+				BlockingQueue<ShardTask<T>> completed) {
+			super(() -> persistenceSessionManager.getInScope(runnable, factoryNameOverrides));
+			this.shard = shard;
+			this.completed = completed;
+		}
+
+		@Override
+		public void run() {
+			startTime = System.nanoTime();
+			started = true;
+			super.run();
+		}
+
+		public void reject(Throwable e) {
+			rejected = e;
+			cancel(false);
+		}
+
+		public T getResult() {
+			try {
+				return get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Throwable getError() {
+			if(rejected != null) {
+				return rejected;
+			}
+			if(isCancelled()) {
+				return timedOut ? new TimeoutException("Shard " + shard + " timed out") : new CancellationException();
+			}
+			try {
+				get();
+				return null;
+			} catch (ExecutionException e) {
+				return e.getCause();
+			} catch (InterruptedException e) {
+				return e;
+			}
+		}
+
+		@Override
+		protected void done() {
+			completed.add(this);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.expanset.hk2.persistence;
+
+import java.util.Map.Entry;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Shards of {@link ScatterGather} are failed according to its failure policy.
+ * Errors of shards are added as suppressed exceptions.
+ */
+public class ScatterGatherException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient ScatterGather.Result<?> result;
+
+	/**
+	 * @param result Results and errors of shards.
+	 */
+	public ScatterGatherException(@Nonnull ScatterGather.Result<?> result) {
+		super(result.toString());
+
+		this.result = result;
+		for(Entry<String, Throwable> error : result.getErrors().entrySet()) {
+			addSuppressed(error.getValue());
+		}
+	}
+
+	/**
+	 * @return Results and errors of shards.
+	 */
+	public ScatterGather.Result<?> getResult() {
+		return result;
+	}
+}
@@ -1,34 +1,55 @@
 package com.expanset.hk2.persistence;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import org.apache.commons.lang3.Validate;
 import org.glassfish.hk2.api.PerLookup;
-import org.glassfish.hk2.api.ServiceLocator;
 import org.jvnet.hk2.annotations.Service;
 
 /**
  * Implementation of {@link PersistenceSessionManager} that bounds persistence session to the current thread.
+ * <p>Each started session returns its own handle, closing of the handle is idempotent and closes only that session.
+ * Closed sessions are not recycled, because they may be kept by captured sessions and transactions, 
+ * but the session allocates its maps only when persistence contexts are used.</p>
+ * <p>Session stack of the thread is removed when the last session of the thread is closed.</p>
  */
 @Service
 @ThreadSafe
 public class ThreadScopePersistenceSessionManager implements PersistenceSessionManager {
 
-	protected final ThreadLocal<Stack<PersistenceSession>> persistenceSessionStack = new ThreadLocal<>(); 
-	
+	protected final ThreadLocal<SessionStack> persistenceSessionStack = new ThreadLocal<>();
+
 	@Inject
-	protected ServiceLocator serviceLocator;
-	
+	protected PersistenceContextFactoryAccessor persistenceContextFactoryAccessor;
+
 	protected final Set<String> scopes = new HashSet<>();
-	
+
+	/**
+	 * Keep session stack for the next sessions of the thread.
+	 */
+	protected final boolean retainThreadState;
+
 	public ThreadScopePersistenceSessionManager() {
+		this(false);
+	}
+
+	/**
+	 * @param retainThreadState Keep session stack for the next sessions of the thread, 
+	 * it may be true when pooled threads run many sessions, so the thread local variable is not removed 
+	 * after each session.
+	 */
+	protected ThreadScopePersistenceSessionManager(boolean retainThreadState) {
+		this.retainThreadState = retainThreadState;
 		scopes.add(PerLookup.class.getName());
 	}
 
@@ -36,40 +57,170 @@ public class ThreadScopePersistenceSessionManager implements PersistenceSessionM
 	public Set<String> getScopes() {
 		return Collections.unmodifiableSet(scopes);
 	}
-	
+
 	@Override
 	public AutoCloseable beginSession(@Nullable Map<String, String> factoryNameOverrides) {
-		Stack<PersistenceSession> stack = persistenceSessionStack.get();
-		if(stack == null) {
-			stack = new Stack<PersistenceSession>();
-			persistenceSessionStack.set(stack);
-		}
-		
-		final PersistenceSession persistenceSession = new PersistenceSession(factoryNameOverrides);		
-		serviceLocator.inject(persistenceSession);
-		
-		stack.push(persistenceSession);
+		return beginSession(factoryNameOverrides, false, false);
+	}
+
+	@Override
+	public AutoCloseable beginSession(
+			@Nullable Map<String, String> factoryNameOverrides, boolean partitioned, boolean readOnly) {
+		final PersistenceSession persistenceSession = new PersistenceSession(
+				factoryNameOverrides, partitioned, readOnly, persistenceContextFactoryAccessor);
+
+		return getSessionStack().push(persistenceSession, true);
+	}
+
+	@Override
+	public AutoCloseable beginWorker(@Nonnull PersistenceSession persistenceSession) {
+		Validate.notNull(persistenceSession, "persistenceSession");
+
+		final AutoCloseable worker = persistenceSession.isPartitioned() ? persistenceSession.beginWorker() : null;
+
+		final AutoCloseable scope = getSessionStack().push(persistenceSession, false);
 
-		final Stack<PersistenceSession> savedStack = stack;
 		return new AutoCloseable() {
 			@Override
 			public void close() throws Exception {
-				PersistenceSession persistenceSession = savedStack.pop();
-				if(savedStack.empty()) {
-					persistenceSessionStack.remove();
+				try {
+					scope.close();
+				} finally {
+					if(worker != null) {
+						worker.close();
+					}
 				}
-				persistenceSession.close();
 			}
 		};
 	}
 
 	@Override
 	public PersistenceSession getCurrentSession() {
-		final Stack<PersistenceSession> stack = persistenceSessionStack.get();
-		if(stack != null && !stack.empty()) {
+		final SessionStack stack = persistenceSessionStack.get();
+		if(stack != null) {
 			return stack.peek();
 		}
 
 		return null;
 	}
+
+	protected SessionStack getSessionStack() {
+		SessionStack stack = persistenceSessionStack.get();
+		if(stack == null) {
+			stack = new SessionStack(retainThreadState ? null : persistenceSessionStack);
+			persistenceSessionStack.set(stack);
+		}
+		return stack;
+	}
+
+	/**
+	 * Sessions of the thread.
+	 */
+	@NotThreadSafe
+	protected static final class SessionStack {
+
+		private final ThreadLocal<SessionStack> holder;
+
+		private final Thread thread = Thread.currentThread();
+
+		private PersistenceSession[] sessions;
+
+		private boolean[] owned;
+
+		private int size;
+
+		/**
+		 * @param holder Thread local variable to clear, when the last session is closed, 
+		 * or null to retain the stack.
+		 */
+		public SessionStack(@Nullable ThreadLocal<SessionStack> holder) {
+			this.holder = holder;
+			final int capacity = holder == null ? 4 : 1;
+			this.sessions = new PersistenceSession[capacity];
+			this.owned = new boolean[capacity];
+		}
+
+		/**
+		 * @param persistenceSession Session to bind to the thread.
+		 * @param own The session is closed, when it is removed from the stack.
+		 * @return Handle, that removes the session from the stack.
+		 */
+		public AutoCloseable push(PersistenceSession persistenceSession, boolean own) {
+			if(size == sessions.length) {
+				sessions = Arrays.copyOf(sessions, size * 2);
+				owned = Arrays.copyOf(owned, size * 2);
+			}
+			sessions[size] = persistenceSession;
+			owned[size] = own;
+			size++;
+
+			return new Scope(this, persistenceSession, size);
+		}
+
+		public PersistenceSession peek() {
+			return size > 0 ? sessions[size - 1] : null;
+		}
+
+		/**
+		 * @param persistenceSession Session, that must be on the top.
+		 * @param depth Size of the stack after the session was pushed.
+		 */
+		private void checkTop(PersistenceSession persistenceSession, int depth) {
+			if(size != depth || sessions[size - 1] != persistenceSession) {
+				throw new IllegalStateException("Persistence sessions must be closed in reverse order");
+			}
+		}
+
+		/**
+		 * Removes the top session from the stack and closes it, if the session was started by the stack owner.
+		 */
+		private void pop()
+				throws Exception {
+			size--;
+			final PersistenceSession persistenceSession = sessions[size];
+			final boolean own = owned[size];
+			sessions[size] = null;
+
+			if(size == 0 && holder != null && thread == Thread.currentThread()) {
+				holder.remove();
+			}
+
+			if(own) {
+				persistenceSession.close();
+			}
+		}
+	}
+
+	/**
+	 * Handle of one session in the stack, repeated closing is ignored.
+	 */
+	@NotThreadSafe
+	protected static final class Scope implements AutoCloseable {
+
+		private final SessionStack stack;
+
+		private final PersistenceSession persistenceSession;
+
+		private final int depth;
+
+		private boolean closed;
+
+		private Scope(SessionStack stack, PersistenceSession persistenceSession, int depth) {
+			this.stack = stack;
+			this.persistenceSession = persistenceSession;
+			this.depth = depth;
+		}
+
+		@Override
+		public void close() 
+				throws Exception {
+			if(closed) {
+				return;
+			}
+			
+			stack.checkTop(persistenceSession, depth);
+			closed = true;
+			stack.pop();
+		}
+	}
 }
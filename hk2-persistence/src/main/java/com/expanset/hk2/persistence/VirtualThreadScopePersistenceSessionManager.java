@@ -0,0 +1,19 @@
+package com.expanset.hk2.persistence;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.jvnet.hk2.annotations.Service;
+
+/**
+ * Implementation of {@link PersistenceSessionManager} that bounds persistence session to the current thread
+ * and is intended for many short-lived threads (virtual threads in example). 
+ * Nothing is kept for the thread after the last session of the thread is closed.
+ */
+@Service
+@ThreadSafe
+public class VirtualThreadScopePersistenceSessionManager extends ThreadScopePersistenceSessionManager {
+
+	public VirtualThreadScopePersistenceSessionManager() {
+		super(false);
+	}
+}
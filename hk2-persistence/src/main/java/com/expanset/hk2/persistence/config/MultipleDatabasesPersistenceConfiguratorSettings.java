@@ -14,6 +14,15 @@ import com.expanset.common.ConfigurationUtils;
 
 /**
  * Implementation of {@link PersistenceConfiguratorSettings} for multi database environment.
+ * <p>Database settings may contain replicas ({@link com.expanset.hk2.persistence.PersistenceContextFactoryAccessor#REPLICAS_PROPERTY})
+ * and shards ({@link com.expanset.hk2.persistence.ConsistentHashFactoryNameResolver#SHARDS_PROPERTY}), 
+ * they are rebalanced when the configuration is reloaded:</p>
+ * <pre>
+ * databasePrefixes=users,users1,users2
+ * users.shards=users1,users2
+ * users1.javax.persistence.jdbc.url=jdbc:h2:users1
+ * users2.javax.persistence.jdbc.url=jdbc:h2:users2
+ * </pre>
  */
 @Service
 public class MultipleDatabasesPersistenceConfiguratorSettings extends PersistenceConfiguratorSettings {
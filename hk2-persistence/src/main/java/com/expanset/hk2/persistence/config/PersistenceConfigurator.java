@@ -1,5 +1,9 @@
 package com.expanset.hk2.persistence.config;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -53,8 +57,25 @@ public class PersistenceConfigurator implements
 	protected void configure(@Nonnull PersistenceContextFactoryAccessor factoryAccessor) {
 		assert factoryAccessor != null;
 				
+		factoryAccessor.setMaxFactories(settings.getMaxFactories());
+		factoryAccessor.setFactoryIdleTimeout(settings.getFactoryIdleTimeout(), TimeUnit.MILLISECONDS);
 		factoryAccessor.resetFactoriesProperties(
 				settings.getConfiguration(config),
 				settings.getCommonProperties(config));	
+		
+		if(settings.getWarmUpThreads() > 0) {
+			// Daemon threads do not prevent JVM exit, when warm-up is still running.
+			final ExecutorService executor = Executors.newFixedThreadPool(settings.getWarmUpThreads(), runnable -> {
+				final Thread thread = new Thread(runnable, PersistenceConfigurator.class.getSimpleName() + "-warm-up");
+				thread.setDaemon(true);
+				return thread;
+			});
+			try {
+				factoryAccessor.warmUp(executor);
+			} finally {
+				// Already submitted tasks are completed.
+				executor.shutdown();
+			}
+		}
 	}
 }
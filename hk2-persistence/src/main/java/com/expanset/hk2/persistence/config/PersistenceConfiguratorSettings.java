@@ -18,6 +18,12 @@ import org.jvnet.hk2.annotations.Service;
 public class PersistenceConfiguratorSettings {
 	
 	protected Map<String, String> commonProperties;
+	
+	protected int warmUpThreads;
+	
+	protected int maxFactories;
+	
+	protected long factoryIdleTimeout;
 
 	/**
 	 * @param config External configuration.
@@ -38,4 +44,38 @@ public class PersistenceConfiguratorSettings {
 	public void setCommonProperties(Map<String, String> commonProperties) {
 		this.commonProperties = commonProperties;
 	}
+
+	/**
+	 * @return Number of threads to create all persistence factories in parallel after configuring. 
+	 * 0 - factories are created on first using.
+	 */
+	public int getWarmUpThreads() {
+		return warmUpThreads;
+	}
+
+	public void setWarmUpThreads(int warmUpThreads) {
+		this.warmUpThreads = warmUpThreads;
+	}
+
+	/**
+	 * @return Maximum count of cached persistence factories, 0 - not limited.
+	 */
+	public int getMaxFactories() {
+		return maxFactories;
+	}
+
+	public void setMaxFactories(int maxFactories) {
+		this.maxFactories = maxFactories;
+	}
+
+	/**
+	 * @return Timeout in milliseconds, after that unused persistence factory is closed, 0 - factories are not closed.
+	 */
+	public long getFactoryIdleTimeout() {
+		return factoryIdleTimeout;
+	}
+
+	public void setFactoryIdleTimeout(long factoryIdleTimeout) {
+		this.factoryIdleTimeout = factoryIdleTimeout;
+	}
 }
@@ -1,8 +1,29 @@
 package com.expanset.hk2.persistence.transactions;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 import javax.transaction.HeuristicMixedException;
@@ -18,9 +39,15 @@ import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAResource;
 
 import org.apache.commons.lang.NotImplementedException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.glassfish.hk2.api.PreDestroy;
 import org.jvnet.hk2.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.expanset.common.errors.ExceptionAdapter;
+import com.expanset.hk2.persistence.PersistenceContextKey;
 import com.expanset.hk2.persistence.PersistenceContextWrapper;
 import com.expanset.hk2.persistence.PersistenceSession;
 import com.expanset.hk2.persistence.PersistenceSessionManager;
@@ -28,16 +55,105 @@ import com.expanset.hk2.persistence.PersistenceSessionManager;
 /**
  * The simple transaction manager for the current persistence context session.
  * Transactions are launched sequentially for all persistence contexts in the current session and thread.
+ * Persistence contexts, that are used by the thread after the beginning, are enlisted in the transaction 
+ * when they are used first time.
+ * <p>With lazy enlistment (see {@link #setLazyEnlistment(boolean)}) persistence contexts, that exist at the beginning
+ * and are used by proxies only, are enlisted when they are requested from the session first time too, 
+ * so untouched persistence contexts cost no round trips. Persistence contexts, that were returned to callers 
+ * directly (injected not by proxy in example), are enlisted at the beginning, because their usage cannot be tracked.</p>
+ * <p>Read-only transaction (see {@link #beginReadOnly()}) is started in read-only persistence session too 
+ * (see {@link com.expanset.hk2.persistence.ReadOnly}). Persistence engines skip flushing of changes in it.</p>
+ * <p>Transaction timeout (see {@link #setTransactionTimeout(int)}, {@link #setDefaultTransactionTimeout(int)}
+ * and {@link TransactionTimeout}) marks the transaction for rollback when it is expired. Timeouts of all 
+ * transactions are run by one {@link TimeoutWheel}. The deadline of the transaction is passed to 
+ * persistence contexts, when they are enlisted, so each statement is limited by the remaining time.</p>
+ * <p>Suspended transaction (see {@link #suspend()}) keeps its persistence contexts, the thread receives new 
+ * persistence session until the transaction is resumed, so transactions started in the meantime are independent
+ * of it (<code>REQUIRES_NEW</code> and <code>NOT_SUPPORTED</code> of {@link javax.transaction.Transactional}).</p>
+ * <p>By default transactions of persistence contexts are committed one by one, errors of all commits are thrown 
+ * as {@link com.expanset.common.errors.MultiErrorException} and all transactions are rolled back.
+ * Transactions of several persistence contexts are completed in parallel, when completion executor is set
+ * (see {@link #setCompletionExecutor(Executor)}). Then {@link HeuristicMixedException} is thrown, when commit 
+ * of some persistence context is failed after others were committed, and only not committed transactions 
+ * are rolled back. Latency of commits is measured for each persistence factory 
+ * (see {@link #getCommitStatistics()}).</p>
+ * <p>Transaction can be joined by other threads (see {@link #joinTransaction(Transaction)}), 
+ * persistence contexts used by them are enlisted in the transaction too. The transaction is completed only 
+ * by the thread, that has started it.</p>
  */
 @Service
 @ThreadSafe
-public class LocalTransactionManager implements TransactionManager {
+public class LocalTransactionManager implements TransactionManager, PreDestroy {
 
 	@Inject
 	protected PersistenceSessionManager persistenceSessionManager;
 	
 	protected ThreadLocal<CompositeTransaction> transactionHolder = new ThreadLocal<CompositeTransaction>();
+
+	protected volatile boolean lazyEnlistment;
+
+	/**
+	 * Timeout in seconds for transactions of the thread, that was set by {@link #setTransactionTimeout(int)}.
+	 */
+	protected ThreadLocal<Integer> timeoutHolder = new ThreadLocal<Integer>();
+
+	protected volatile int defaultTimeout;
+
+	protected final TimeoutWheel timeoutWheel = new TimeoutWheel();
+
+	protected volatile Executor completionExecutor;
+
+	/**
+	 * Commit metrics by factory names of persistence contexts.
+	 */
+	protected final ConcurrentMap<String, CommitMetrics> commitMetrics = new ConcurrentHashMap<>();
+
+	private final static Logger log = LoggerFactory.getLogger(LocalTransactionManager.class);
+
+	/**
+	 * @return true if persistence contexts are enlisted in transactions only when they are used.
+	 */
+	public boolean isLazyEnlistment() {
+		return lazyEnlistment;
+	}
+
+	/**
+	 * @param lazyEnlistment true if persistence contexts, that are used by proxies, are enlisted in transactions 
+	 * only when they are used.
+	 */
+	public void setLazyEnlistment(boolean lazyEnlistment) {
+		this.lazyEnlistment = lazyEnlistment;
+	}
 	
+	/**
+	 * @return Executor to complete transactions of persistence contexts in parallel or null.
+	 */
+	public Executor getCompletionExecutor() {
+		return completionExecutor;
+	}
+
+	/**
+	 * Enables parallel commit and rollback of transactions, that enlist several persistence contexts.
+	 * The calling thread completes one of transactions itself, rejected transactions are completed by it too.
+	 * When some of transactions are committed and others are failed, {@link HeuristicMixedException} is thrown.
+	 * @param completionExecutor Bounded executor, it limits count of concurrently completed transactions, 
+	 * null - transactions are completed sequentially.
+	 */
+	public void setCompletionExecutor(@Nullable Executor completionExecutor) {
+		this.completionExecutor = completionExecutor;
+	}
+
+	/**
+	 * @return Commit statistics by factory names of persistence contexts.
+	 */
+	public Map<String, CommitStatistics> getCommitStatistics() {
+		final Map<String, CommitStatistics> result = new LinkedHashMap<>();
+		for(Entry<String, CommitMetrics> entry : commitMetrics.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getStatistics());
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
 	@Override
 	public int getStatus() 
 			throws SystemException {
@@ -64,15 +180,72 @@ public class LocalTransactionManager implements TransactionManager {
 		}
 	}
 
+	/**
+	 * Sets timeout of transactions, that will be started by the calling thread.
+	 * @param seconds Timeout in seconds, 0 - use the default timeout.
+	 */
 	@Override
 	public void setTransactionTimeout(int seconds) 
 			throws SystemException {
-		throw new NotImplementedException();
+		Validate.isTrue(seconds >= 0, "seconds");
+
+		if(seconds == 0) {
+			timeoutHolder.remove();
+		} else {
+			timeoutHolder.set(seconds);
+		}
+	}
+
+	/**
+	 * @return Timeout of transactions in seconds, that was set by the calling thread, 0 - use the default timeout.
+	 */
+	public int getTransactionTimeout() {
+		final Integer seconds = timeoutHolder.get();
+		return seconds != null ? seconds : 0;
+	}
+
+	/**
+	 * @return Timeout of transactions in seconds, that is used when thread has no timeout, 0 - not limited.
+	 */
+	public int getDefaultTransactionTimeout() {
+		return defaultTimeout;
+	}
+
+	/**
+	 * @param seconds Timeout of transactions in seconds, that is used when thread has no timeout, 0 - not limited.
+	 */
+	public void setDefaultTransactionTimeout(int seconds) {
+		Validate.isTrue(seconds >= 0, "seconds");
+
+		this.defaultTimeout = seconds;
 	}
 
 	@Override
 	public void begin() 
 			throws NotSupportedException, SystemException {
+		begin(false);
+	}
+
+	/**
+	 * Starts read-only transaction, its changes are not flushed and it is completed by rollback.
+	 * @throws NotSupportedException Nested transactions are not supported.
+	 * @throws SystemException Unexpected error.
+	 */
+	public void beginReadOnly() 
+			throws NotSupportedException, SystemException {
+		begin(true);
+	}
+
+	/**
+	 * @return true if the current transaction is read-only.
+	 */
+	public boolean isReadOnly() {
+		final CompositeTransaction currentTransaction = transactionHolder.get();
+		return currentTransaction != null && currentTransaction.readOnly;
+	}
+
+	protected void begin(boolean readOnly) 
+			throws NotSupportedException, SystemException {
 		if(transactionHolder.get() != null) {
 			return;
 		}		
@@ -81,14 +254,16 @@ public class LocalTransactionManager implements TransactionManager {
 		if(persistenceSession == null) {
 			throw new IllegalStateException("Persistence context scope not initialized");
 		}
+		final boolean readOnlyTransaction = readOnly || persistenceSession.isReadOnly();
 		
-		final List<PersistenceContextWrapper> persistenceContexts = 
+		final List<PersistenceContextWrapper> persistenceContexts = lazyEnlistment ? 
+				persistenceSession.getReferencedPersistenceContextsInCurrentThread() : 
 				persistenceSession.getAllPersistenceContextsInCurrentThread();
 		
 		final List<Transaction> transactions = new ArrayList<>(persistenceContexts.size());
 		for(PersistenceContextWrapper wrapper : persistenceContexts) {
 			try {
-				transactions.add(wrapper.beginTransaction());
+				transactions.add(beginTransaction(wrapper, readOnlyTransaction));
 			} catch (Throwable e) {
 				ExceptionAdapter.run(e, transactions, 
 						t -> ExceptionAdapter.run(() -> t.rollback()),  
@@ -96,7 +271,53 @@ public class LocalTransactionManager implements TransactionManager {
 			}
 		}
 		
-		transactionHolder.set(new CompositeTransaction(transactions));
+		final CompositeTransaction transaction = 
+				new CompositeTransaction(persistenceSession, persistenceContexts, transactions, readOnlyTransaction);
+		final Integer threadTimeout = timeoutHolder.get();
+		final int timeout = threadTimeout != null ? threadTimeout : defaultTimeout;
+		if(timeout > 0) {
+			transaction.timeout = timeoutWheel.schedule(timeout, TimeUnit.SECONDS, transaction::expire);
+			for(PersistenceContextWrapper wrapper : persistenceContexts) {
+				transaction.pushDeadline(wrapper);
+			}
+		}
+		transaction.listening = persistenceSession.addListener(transaction::enlist);
+		transactionHolder.set(transaction);
+	}
+
+	/**
+	 * Associates the transaction, that was started in other thread, with the calling thread. 
+	 * Persistence contexts, that are used by the calling thread, are enlisted in the transaction, 
+	 * persistence contexts of the worker partition are kept open until the transaction is completed.
+	 * Joined transaction cannot be committed, rollback marks it for rollback only.
+	 * @param transaction Transaction, that was returned by {@link #getTransaction()} in other thread.
+	 * @return Object, that should be closed when the work in the transaction is completed.
+	 */
+	public AutoCloseable joinTransaction(@Nonnull Transaction transaction) {
+		Validate.notNull(transaction, "transaction");
+		Validate.isTrue(transaction instanceof CompositeTransaction, "Transaction is not started by this manager");
+		final CompositeTransaction currentTransaction = transactionHolder.get();
+		if(currentTransaction == transaction) {
+			return () -> {};
+		}
+		if(currentTransaction != null) {
+			throw new IllegalStateException("Thread is already associated with other transaction");
+		}
+
+		final CompositeTransaction joinedTransaction = (CompositeTransaction)transaction;
+		final PersistenceSession persistenceSession = persistenceSessionManager.getCurrentSession() != null ? 
+				persistenceSessionManager.getCurrentSession() : joinedTransaction.persistenceSession;
+		joinedTransaction.onCompletion(persistenceSession.holdPartition());
+		final AutoCloseable listening = persistenceSession.addListener(joinedTransaction::enlist);
+		transactionHolder.set(joinedTransaction);
+
+		return () -> {
+			try {
+				transactionHolder.remove();
+			} finally {
+				listening.close();
+			}
+		};
 	}
 
 	@Override
@@ -104,10 +325,18 @@ public class LocalTransactionManager implements TransactionManager {
 			throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
 		final CompositeTransaction currentTransaction = transactionHolder.get();
 		if(currentTransaction != null) {
+			if(!currentTransaction.isOwner()) {
+				throw new IllegalStateException("Transaction can be completed only by the thread, that has started it");
+			}
 			try {
 				currentTransaction.commit();
 			} catch (Throwable e) {
-				currentTransaction.rollback();				
+				// Only transactions, that were not committed in parallel, are rolled back.
+				try {
+					currentTransaction.rollback();
+				} catch (Throwable rollbackError) {
+					e.addSuppressed(rollbackError);
+				}
 				throw e;
 			} finally {
 				transactionHolder.remove();
@@ -121,6 +350,10 @@ public class LocalTransactionManager implements TransactionManager {
 			throws IllegalStateException, SecurityException, SystemException {
 		final CompositeTransaction currentTransaction = transactionHolder.get();
 		if(currentTransaction != null) {
+			if(!currentTransaction.isOwner()) {
+				currentTransaction.setRollbackOnly();
+				return;
+			}
 			try {
 				currentTransaction.rollback();
 			} finally {
@@ -130,38 +363,203 @@ public class LocalTransactionManager implements TransactionManager {
 		}
 	}
 	
+	/**
+	 * Suspends the transaction of the calling thread. New persistence session with the same factories
+	 * is started until the transaction is resumed, so the next transaction of the thread uses its own 
+	 * persistence contexts and does not wait for locks of the suspended one.
+	 * @return Suspended transaction or null if the thread has no transaction.
+	 */
 	@Override
 	public Transaction suspend() 
 			throws SystemException {
-		throw new NotImplementedException();
+		final CompositeTransaction currentTransaction = transactionHolder.get();
+		if(currentTransaction == null) {
+			return null;
+		}
+
+		final PersistenceSession persistenceSession = persistenceSessionManager.getCurrentSession();
+		if(persistenceSession != null) {
+			currentTransaction.suspendedScope = persistenceSessionManager.beginSession(
+					persistenceSession.getFactoryNameOverrides(), false, persistenceSession.isReadOnly());
+			currentTransaction.suspendedSession = persistenceSessionManager.getCurrentSession();
+			final Object shardKey = persistenceSession.getShardKey();
+			if(shardKey != null && currentTransaction.suspendedSession != null) {
+				currentTransaction.suspendedSession.setShardKey(shardKey);
+			}
+		}
+		currentTransaction.suspended = true;
+		transactionHolder.remove();
+
+		return currentTransaction;
 	}
 
+	/**
+	 * Resumes the transaction, that was suspended by {@link #suspend()}. Persistence session, 
+	 * that was started by suspending, is closed.
+	 * @param tobj Suspended transaction.
+	 */
 	@Override
 	public void resume(Transaction tobj) 
 			throws InvalidTransactionException, IllegalStateException, SystemException {
-		throw new NotImplementedException();
+		if(!(tobj instanceof CompositeTransaction) || !((CompositeTransaction)tobj).suspended) {
+			throw new InvalidTransactionException("Transaction is not suspended by this manager");
+		}
+		if(transactionHolder.get() != null) {
+			throw new IllegalStateException("Thread is already associated with other transaction");
+		}
+
+		final CompositeTransaction transaction = (CompositeTransaction)tobj;
+		if(transaction.suspendedSession != null && 
+				persistenceSessionManager.getCurrentSession() != transaction.suspendedSession) {
+			throw new IllegalStateException("Persistence session, that was started by suspending, is not completed");
+		}
+
+		final AutoCloseable suspendedScope = transaction.suspendedScope;
+		transaction.suspendedScope = null;
+		transaction.suspendedSession = null;
+		transaction.suspended = false;
+		transactionHolder.set(transaction);
+		ExceptionAdapter.close(suspendedScope);
 	}
 	
+	@Override
+	@javax.annotation.PreDestroy
+	public void preDestroy() {
+		timeoutWheel.close();
+	}
+
+	protected static Transaction beginTransaction(PersistenceContextWrapper persistenceContext, boolean readOnly) 
+			throws Exception {
+		return readOnly ? persistenceContext.beginTransaction(true) : persistenceContext.beginTransaction();
+	}
+
 	protected class CompositeTransaction implements Transaction, AutoCloseable {
 
 		private final List<Transaction> transactions;
+
+		private final PersistenceSession persistenceSession;
+
+		/**
+		 * Factory names of persistence contexts by their transactions.
+		 */
+		private final Map<Transaction, String> resources = 
+				Collections.synchronizedMap(new IdentityHashMap<>());
+
+		/**
+		 * Transactions of persistence contexts, that were committed in parallel, they are not rolled back.
+		 */
+		private final Set<Transaction> committed = 
+				Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+		/**
+		 * Enlisted persistence contexts of the owner and joined threads.
+		 */
+		private final Set<PersistenceContextWrapper> enlisted = 
+				Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+		/**
+		 * Objects, that are closed when the transaction is completed (holds of worker partitions in example).
+		 */
+		private final Queue<AutoCloseable> completionResources = new ConcurrentLinkedQueue<>();
+
+		private volatile boolean closed;
 		
-		private int status = Status.STATUS_ACTIVE;
+		private final Thread owner = Thread.currentThread();
+
+		private final boolean readOnly;
+		
+		/**
+		 * Status of the transaction, it is changed by the owner thread, other threads and the timeout wheel 
+		 * only mark the active transaction for rollback.
+		 */
+		private final AtomicInteger status = new AtomicInteger(Status.STATUS_ACTIVE);
+
+		private AutoCloseable listening;
+
+		private volatile TimeoutWheel.Timeout timeout;
+
+		/**
+		 * The transaction is suspended, its thread uses other persistence session (see {@link #suspendedScope}).
+		 */
+		private boolean suspended;
+
+		private AutoCloseable suspendedScope;
+
+		private PersistenceSession suspendedSession;
 				
-		public CompositeTransaction(List<Transaction> transactions) {
-			this.transactions = transactions;
+		public CompositeTransaction(
+				PersistenceSession persistenceSession,
+				List<PersistenceContextWrapper> persistenceContexts, 
+				List<Transaction> transactions,
+				boolean readOnly) {
+			this.persistenceSession = persistenceSession;
+			this.transactions = new CopyOnWriteArrayList<>(transactions);
+			this.enlisted.addAll(persistenceContexts);
+			this.readOnly = readOnly;
+			for(int i = 0; i < transactions.size(); i++) {
+				resources.put(transactions.get(i), getResource(persistenceContexts.get(i)));
+			}
+		}
+
+		/**
+		 * Begins transaction of the persistence context, if it is not enlisted yet.
+		 * @param persistenceContext Persistence context, that is used by the owner or joined thread.
+		 */
+		public void enlist(PersistenceContextWrapper persistenceContext) {
+			final int currentStatus = status.get();
+			if(currentStatus != Status.STATUS_ACTIVE && currentStatus != Status.STATUS_MARKED_ROLLBACK) {
+				return;
+			}
+			if(!enlisted.add(persistenceContext)) {
+				return;
+			}
+
+			final Transaction transaction;
+			try {
+				transaction = ExceptionAdapter.get(() -> beginTransaction(persistenceContext, readOnly));
+			} catch (RuntimeException | Error e) {
+				enlisted.remove(persistenceContext);
+				throw e;
+			}
+			transactions.add(transaction);
+			resources.put(transaction, getResource(persistenceContext));
+			pushDeadline(persistenceContext);
+			if(status.get() == Status.STATUS_MARKED_ROLLBACK) {
+				ExceptionAdapter.run(() -> transaction.setRollbackOnly());
+			}
+		}
+
+		/**
+		 * Closes the object when the transaction is completed, at once if it is already completed.
+		 * @param resource Object to close.
+		 */
+		public void onCompletion(AutoCloseable resource) {
+			completionResources.add(resource);
+			if(closed) {
+				closeCompletionResources();
+			}
+		}
+
+		/**
+		 * @return true if the transaction was started by the calling thread.
+		 */
+		public boolean isOwner() {
+			return owner == Thread.currentThread();
 		}
 
 		@Override
 		public int getStatus() 
 				throws SystemException {
-			return status;
+			return status.get();
 		}
 
 		@Override
 		public void setRollbackOnly() 
 				throws IllegalStateException, SystemException {
-			status = Status.STATUS_MARKED_ROLLBACK;
+			if(!status.compareAndSet(Status.STATUS_ACTIVE, Status.STATUS_MARKED_ROLLBACK) && 
+					status.get() != Status.STATUS_MARKED_ROLLBACK) {
+				throw new IllegalStateException("Transaction is completed or completing");
+			}
 			ExceptionAdapter.run(transactions, 
 					(Transaction t) -> ExceptionAdapter.run(() -> t.setRollbackOnly()));
 		}
@@ -175,40 +573,49 @@ public class LocalTransactionManager implements TransactionManager {
 		@Override
 		public void commit() 
 				throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
-			if(status == Status.STATUS_MARKED_ROLLBACK) {
-				throw new RollbackException();
-			}
-			if(status != Status.STATUS_ACTIVE) {
+			if(!status.compareAndSet(Status.STATUS_ACTIVE, Status.STATUS_COMMITTING)) {
+				if(status.get() == Status.STATUS_MARKED_ROLLBACK) {
+					throw isTimedOut() ? new RollbackException("Transaction is timed out") : new RollbackException();
+				}
 				throw new IllegalStateException();
 			}
-			
-			status = Status.STATUS_COMMITTING;
 
+			final Executor executor = completionExecutor;
 			try {
-				ExceptionAdapter.run(transactions, 
-						(Transaction t) -> ExceptionAdapter.run(() -> t.commit()));
+				if(executor != null && transactions.size() > 1) {
+					completeInParallel(executor, true);
+				} else {
+					commitSequentially();
+				}
 			} catch (Throwable e) {
-				status = Status.STATUS_MARKED_ROLLBACK;
+				status.set(Status.STATUS_MARKED_ROLLBACK);
 						
 				throw e;
 			}
 
-			status = Status.STATUS_COMMITTED;
+			status.set(Status.STATUS_COMMITTED);
 		}
 		
 		@Override
 		public void rollback() 
 				throws IllegalStateException, SystemException {
-			if(status == Status.STATUS_ROLLEDBACK || status == Status.STATUS_COMMITTED) {
+			final int currentStatus = status.get();
+			if(currentStatus == Status.STATUS_ROLLEDBACK || currentStatus == Status.STATUS_COMMITTED) {
 				return;
 			}			
 			
-			status = Status.STATUS_ROLLING_BACK;
+			status.set(Status.STATUS_ROLLING_BACK);
+			final Executor executor = completionExecutor;
 			try {
-				ExceptionAdapter.run(transactions, 
-						(Transaction t) -> ExceptionAdapter.run(() -> t.rollback()));
+				if(executor != null && getUncommitted().size() > 1 && isOwner()) {
+					ExceptionAdapter.run(() -> completeInParallel(executor, false));
+				} else {
+					ExceptionAdapter.run(getUncommitted(), 
+							(Transaction t) -> ExceptionAdapter.run(() -> t.rollback()));
+				}
 			} finally {
-				status = Status.STATUS_ROLLEDBACK;
+				// Outcome of partially committed transaction cannot be determined.
+				status.set(committed.isEmpty() ? Status.STATUS_ROLLEDBACK : Status.STATUS_UNKNOWN);
 			}
 		}
 
@@ -224,15 +631,268 @@ public class LocalTransactionManager implements TransactionManager {
 			throw new NotImplementedException();
 		}
 
+		/**
+		 * Completes transactions of persistence contexts by the executor, the first one by the calling thread.
+		 * @param executor Executor to complete transactions.
+		 * @param commit true - commit, false - rollback.
+		 * @throws RollbackException All commits are failed.
+		 * @throws HeuristicMixedException Some of commits are failed.
+		 * @throws SystemException Rollback is failed.
+		 */
+		protected void completeInParallel(Executor executor, boolean commit) 
+				throws RollbackException, HeuristicMixedException, SystemException {
+			final List<Transaction> currentTransactions = commit ? new ArrayList<>(transactions) : getUncommitted();
+			final List<FutureTask<Void>> tasks = new ArrayList<>(currentTransactions.size());
+			for(Transaction transaction : currentTransactions) {
+				final String resource = resources.get(transaction);
+				tasks.add(new FutureTask<>(() -> {
+					if(commit) {
+						commit(transaction, resource);
+						committed.add(transaction);
+					} else {
+						transaction.rollback();
+					}
+					return null;
+				}));
+			}
+			for(int i = 1; i < tasks.size(); i++) {
+				try {
+					executor.execute(tasks.get(i));
+				} catch (RejectedExecutionException e) {
+					tasks.get(i).run();
+				}
+			}
+			tasks.get(0).run();
+
+			final List<Throwable> errors = new ArrayList<>();
+			boolean interrupted = false;
+			for(FutureTask<Void> task : tasks) {
+				while(true) {
+					try {
+						task.get();
+						break;
+					} catch (InterruptedException e) {
+						// Transactions must be completed anyway, the interruption is restored later.
+						interrupted = true;
+					} catch (ExecutionException e) {
+						errors.add(e.getCause());
+						break;
+					}
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if(errors.isEmpty()) {
+				return;
+			}
+
+			if(!commit) {
+				throw withCauses(new SystemException("Rollback of " + errors.size() + " transactions is failed"), errors);
+			}
+			if(errors.size() < tasks.size()) {
+				throw withCauses(new HeuristicMixedException(
+						"Commit of " + errors.size() + " from " + tasks.size() + " transactions is failed"), errors);
+			}
+			throw withCauses(new RollbackException("Commit of all transactions is failed"), errors);
+		}
+
+		private <E extends Exception> E withCauses(E exception, List<Throwable> errors) {
+			exception.initCause(errors.get(0));
+			for(int i = 1; i < errors.size(); i++) {
+				exception.addSuppressed(errors.get(i));
+			}
+			return exception;
+		}
+
+		/**
+		 * Commits transactions of persistence contexts one by one, all transactions are committed even 
+		 * if some of them are failed. Errors are thrown as {@link com.expanset.common.errors.MultiErrorException},
+		 * all transactions are rolled back then.
+		 */
+		protected void commitSequentially() {
+			ExceptionAdapter.run(transactions, 
+					(Transaction t) -> ExceptionAdapter.run(() -> commit(t, resources.get(t))));
+		}
+
+		/**
+		 * @return Transactions of persistence contexts, that were not committed in parallel.
+		 */
+		protected List<Transaction> getUncommitted() {
+			final List<Transaction> result = new ArrayList<>(transactions.size());
+			for(Transaction transaction : transactions) {
+				if(!committed.contains(transaction)) {
+					result.add(transaction);
+				}
+			}
+			return result;
+		}
+
+		private void commit(Transaction transaction, String resource) 
+				throws Exception {
+			final long start = System.nanoTime();
+			boolean succeeded = false;
+			try {
+				transaction.commit();
+				committed.add(transaction);
+				succeeded = true;
+			} finally {
+				commitMetrics.computeIfAbsent(resource, name -> new CommitMetrics())
+					.add(System.nanoTime() - start, succeeded);
+			}
+		}
+
+		private String getResource(PersistenceContextWrapper persistenceContext) {
+			final PersistenceContextKey key = persistenceSession.getPersistenceContextKey(persistenceContext);
+			return key != null ? 
+					StringUtils.defaultString(key.getFactoryKey().getFactoryName()) : 
+					persistenceContext.getClass().getName();
+		}
+
+		/**
+		 * @return true if the transaction was marked for rollback by timeout.
+		 */
+		public boolean isTimedOut() {
+			return timeout != null && timeout.isExpired();
+		}
+
+		/**
+		 * Passes the deadline of the transaction to the persistence context.
+		 * @param persistenceContext Enlisted persistence context.
+		 */
+		public void pushDeadline(PersistenceContextWrapper persistenceContext) {
+			final TimeoutWheel.Timeout currentTimeout = timeout;
+			if(currentTimeout == null) {
+				return;
+			}
+
+			ExceptionAdapter.run(() -> persistenceContext.setDeadline(
+					() -> currentTimeout.getRemaining(TimeUnit.MILLISECONDS)));
+		}
+
+		/**
+		 * Marks the transaction for rollback, called by the timeout wheel.
+		 */
+		protected void expire() {
+			// Transactions of persistence contexts are marked by the owner thread, when it completes.
+			// Transaction, that is being completed, is not changed.
+			status.compareAndSet(Status.STATUS_ACTIVE, Status.STATUS_MARKED_ROLLBACK);
+		}
+
 		@Override
 		public void close()
 				throws Exception {
-			if(status == Status.STATUS_ACTIVE) {
-				status = Status.STATUS_UNKNOWN;
+			status.compareAndSet(Status.STATUS_ACTIVE, Status.STATUS_UNKNOWN);
+
+			ExceptionAdapter.close(listening);
+			if(timeout != null) {
+				timeout.cancel();
+				final List<PersistenceContextWrapper> enlistedContexts;
+				synchronized (enlisted) {
+					enlistedContexts = new ArrayList<>(enlisted);
+				}
+				ExceptionAdapter.run(enlistedContexts, 
+						(PersistenceContextWrapper wrapper) -> ExceptionAdapter.run(() -> wrapper.setDeadline(null)));
+			}
+			try {
+				ExceptionAdapter.run(transactions, 
+						(Transaction t) -> ExceptionAdapter.close(t));
+			} finally {
+				closed = true;
+				closeCompletionResources();
 			}
+		}
 
-			ExceptionAdapter.run(transactions, 
-					(Transaction t) -> ExceptionAdapter.close(t));
+		private void closeCompletionResources() {
+			AutoCloseable resource;
+			while((resource = completionResources.poll()) != null) {
+				ExceptionAdapter.closeQuitely(resource, log);
+			}
+		}
+	}
+
+	/**
+	 * Commit metrics of one persistence factory.
+	 */
+	protected static final class CommitMetrics {
+
+		private final LongAdder commits = new LongAdder();
+
+		private final LongAdder failures = new LongAdder();
+
+		private final LongAdder totalTime = new LongAdder();
+
+		private final LongAccumulator maxTime = new LongAccumulator(Long::max, 0);
+
+		public void add(long nanos, boolean committed) {
+			commits.increment();
+			if(!committed) {
+				failures.increment();
+			}
+			totalTime.add(nanos);
+			maxTime.accumulate(nanos);
+		}
+
+		public CommitStatistics getStatistics() {
+			return new CommitStatistics(commits.sum(), failures.sum(), totalTime.sum(), maxTime.get());
+		}
+	}
+
+	/**
+	 * Commit statistics of one persistence factory.
+	 */
+	public static final class CommitStatistics {
+
+		private final long commits;
+
+		private final long failures;
+
+		private final long totalTime;
+
+		private final long maxTime;
+
+		private CommitStatistics(long commits, long failures, long totalTime, long maxTime) {
+			this.commits = commits;
+			this.failures = failures;
+			this.totalTime = totalTime;
+			this.maxTime = maxTime;
+		}
+
+		/**
+		 * @return Count of commits including failed ones.
+		 */
+		public long getCommits() {
+			return commits;
+		}
+
+		/**
+		 * @return Count of failed commits.
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @param unit Unit of the result.
+		 * @return Average latency of commits.
+		 */
+		public long getAverageLatency(@Nonnull TimeUnit unit) {
+			return commits == 0 ? 0 : unit.convert(totalTime / commits, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @param unit Unit of the result.
+		 * @return Maximum latency of commits.
+		 */
+		public long getMaxLatency(@Nonnull TimeUnit unit) {
+			return unit.convert(maxTime, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"commits: %d, failures: %d, average latency: %d us, max latency: %d us",
+					commits, failures, getAverageLatency(TimeUnit.MICROSECONDS), getMaxLatency(TimeUnit.MICROSECONDS));
 		}
 	}
 }
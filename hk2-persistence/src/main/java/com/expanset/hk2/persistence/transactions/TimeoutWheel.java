@@ -0,0 +1,241 @@
+package com.expanset.hk2.persistence.transactions;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel, that runs timeouts of many transactions by one daemon thread.
+ * Scheduling and cancelling of timeout cost O(1), timeouts are run not earlier than their deadline
+ * and not later than one tick after it, if the thread of the wheel is not delayed by the system. 
+ * New timeouts are passed to the thread through the queue and are placed to buckets only by this thread, 
+ * so timeout can not be added to the bucket, that was processed already. 
+ * The thread is started by the first scheduled timeout.
+ */
+@ThreadSafe
+public class TimeoutWheel implements AutoCloseable {
+
+	/**
+	 * Default duration of one tick in milliseconds.
+	 */
+	public final static long DEFAULT_TICK = 100;
+
+	/**
+	 * Default count of buckets.
+	 */
+	public final static int DEFAULT_BUCKETS = 512;
+
+	protected final long tickNanos;
+
+	/**
+	 * Buckets are used only by the thread of the wheel.
+	 */
+	private final Queue<Timeout>[] buckets;
+
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+
+	private final int mask;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Last processed tick.
+	 */
+	private volatile long processedTick;
+
+	private volatile Thread thread;
+
+	private volatile boolean closed;
+
+	private final static Logger log = LoggerFactory.getLogger(TimeoutWheel.class);
+
+	public TimeoutWheel() {
+		this(DEFAULT_TICK, TimeUnit.MILLISECONDS, DEFAULT_BUCKETS);
+	}
+
+	/**
+	 * @param tick Duration of one tick.
+	 * @param unit Unit of the tick.
+	 * @param bucketsCount Count of buckets, it is rounded to power of two.
+	 */
+	@SuppressWarnings("unchecked")
+	public TimeoutWheel(long tick, @Nonnull TimeUnit unit, int bucketsCount) {
+		Validate.isTrue(tick > 0, "tick");
+		Validate.notNull(unit, "unit");
+		Validate.isTrue(bucketsCount > 0 && bucketsCount <= 1 << 20, "bucketsCount");
+
+		this.tickNanos = unit.toNanos(tick);
+		int size = 1;
+		while(size < bucketsCount) {
+			size <<= 1;
+		}
+		this.buckets = new Queue[size];
+		for(int i = 0; i < size; i++) {
+			buckets[i] = new ArrayDeque<>();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Schedules the task.
+	 * @param delay Delay of the task.
+	 * @param unit Unit of the delay.
+	 * @param task Task to run in the thread of the wheel, it should be short.
+	 * @return Scheduled timeout.
+	 */
+	public Timeout schedule(long delay, @Nonnull TimeUnit unit, @Nonnull Runnable task) {
+		Validate.notNull(unit, "unit");
+		Validate.notNull(task, "task");
+		if(closed) {
+			throw new IllegalStateException("Timeout wheel is closed");
+		}
+
+		start();
+
+		final long deadline = System.nanoTime() + unit.toNanos(Math.max(delay, 0));
+		final Timeout timeout = new Timeout(deadline, task);
+		timeout.tick = Math.floorDiv(deadline + tickNanos - 1, tickNanos);
+		scheduled.add(timeout);
+
+		return timeout;
+	}
+
+	/**
+	 * Stops the thread, scheduled timeouts are not run.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		final Thread currentThread = thread;
+		if(currentThread != null) {
+			LockSupport.unpark(currentThread);
+		}
+	}
+
+	private void start() {
+		if(thread != null) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			if(thread == null) {
+				processedTick = Math.floorDiv(System.nanoTime(), tickNanos) - 1;
+				final Thread newThread = new Thread(this::run, "transaction-timeouts");
+				newThread.setDaemon(true);
+				newThread.start();
+				thread = newThread;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void run() {
+		while(!closed) {
+			final long currentTick = Math.floorDiv(System.nanoTime(), tickNanos);
+			if(currentTick - processedTick > buckets.length) {
+				for(Queue<Timeout> bucket : buckets) {
+					expire(bucket, currentTick);
+				}
+			} else {
+				for(long tick = processedTick + 1; tick <= currentTick; tick++) {
+					expire(buckets[(int)(tick & mask)], tick);
+				}
+			}
+			processedTick = currentTick;
+			transferScheduled(currentTick);
+
+			LockSupport.parkNanos(this, (currentTick + 1) * tickNanos - System.nanoTime());
+		}
+	}
+
+	private void transferScheduled(long currentTick) {
+		Timeout timeout;
+		while((timeout = scheduled.poll()) != null) {
+			if(timeout.cancelled) {
+				continue;
+			}
+			if(timeout.tick <= currentTick) {
+				timeout.expire();
+			} else {
+				buckets[(int)(timeout.tick & mask)].add(timeout);
+			}
+		}
+	}
+
+	private static void expire(Queue<Timeout> bucket, long currentTick) {
+		for(Iterator<Timeout> iterator = bucket.iterator(); iterator.hasNext(); ) {
+			final Timeout timeout = iterator.next();
+			if(timeout.cancelled) {
+				iterator.remove();
+			} else if(timeout.tick <= currentTick) {
+				iterator.remove();
+				timeout.expire();
+			}
+		}
+	}
+
+	/**
+	 * Scheduled task.
+	 */
+	public static final class Timeout {
+
+		private final long deadline;
+
+		private final Runnable task;
+
+		private long tick;
+
+		private volatile boolean cancelled;
+
+		private volatile boolean expired;
+
+		private Timeout(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the task, if it is not run yet.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		/**
+		 * @return true if the task was run.
+		 */
+		public boolean isExpired() {
+			return expired;
+		}
+
+		/**
+		 * @param unit Unit of the result.
+		 * @return Time before the deadline, may be negative.
+		 */
+		public long getRemaining(@Nonnull TimeUnit unit) {
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		private void expire() {
+			expired = true;
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.error("Timeout task is failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.expanset.hk2.persistence.transactions;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Timeout of the transaction, that is started by {@link javax.transaction.Transactional} method 
+ * (or methods of the class). Expired transaction is marked for rollback.
+ * <p>Example:</p>
+ * <pre>
+ * {@literal @}Transactional
+ * {@literal @}TransactionTimeout(30)
+ * public void importUsers() {
+ * }
+ * </pre>
+ */
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface TransactionTimeout {
+
+	/**
+	 * @return Timeout in seconds.
+	 */
+	int value();
+}
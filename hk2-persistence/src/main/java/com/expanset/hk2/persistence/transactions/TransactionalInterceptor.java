@@ -4,6 +4,7 @@ import javax.inject.Inject;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.SystemException;
@@ -20,6 +21,7 @@ import org.jvnet.hk2.annotations.Service;
 /**
  * Interceptor for methods that are annotated by {@link javax.transaction.Transactional}. 
  * Registered {@link javax.transaction.TransactionManager} is used for transaction management. 
+ * Timeout of started transactions is set by {@link TransactionTimeout}.
  */
 @Service
 public class TransactionalInterceptor implements MethodInterceptor {
@@ -53,7 +55,7 @@ public class TransactionalInterceptor implements MethodInterceptor {
 			break;
 		case REQUIRED:
 			if(transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION) {
-				transactionManager.begin();
+				begin(invocation);
 				needCommit = true;
 			}
 			break;
@@ -61,7 +63,14 @@ public class TransactionalInterceptor implements MethodInterceptor {
 			if(transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION) {
 				suspendedTransaction = transactionManager.suspend();
 			}
-			transactionManager.begin();
+			try {
+				begin(invocation);
+			} catch (Throwable e) {
+				if(suspendedTransaction != null) {
+					transactionManager.resume(suspendedTransaction);
+				}
+				throw e;
+			}
 			needCommit = true;
 			break;
 		default:
@@ -103,6 +112,30 @@ public class TransactionalInterceptor implements MethodInterceptor {
 		}
 	}
 
+	protected void begin(MethodInvocation invocation) 
+			throws NotSupportedException, SystemException {
+		TransactionTimeout timeout = invocation.getMethod().getAnnotation(TransactionTimeout.class);
+		if(timeout == null) {
+			final Class<?> targetClass = invocation.getThis() != null ? 
+					invocation.getThis().getClass() : invocation.getMethod().getDeclaringClass();
+			timeout = targetClass.getAnnotation(TransactionTimeout.class);
+		}
+		if(timeout == null) {
+			transactionManager.begin();
+			return;
+		}
+		
+		// JTA has no way to read the timeout of the thread, so only the local manager restores it.
+		final int previousTimeout = transactionManager instanceof LocalTransactionManager ? 
+				((LocalTransactionManager)transactionManager).getTransactionTimeout() : 0;
+		transactionManager.setTransactionTimeout(timeout.value());
+		try {
+			transactionManager.begin();
+		} finally {
+			transactionManager.setTransactionTimeout(previousTimeout);
+		}
+	}
+
 	protected boolean needRollback(Transactional ann, Throwable e) 
 			throws Exception {
 		assert ann != null;
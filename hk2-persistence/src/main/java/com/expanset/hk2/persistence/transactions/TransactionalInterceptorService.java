@@ -16,20 +16,34 @@ import org.glassfish.hk2.api.InterceptionService;
 import org.glassfish.hk2.utilities.BuilderHelper;
 import org.jvnet.hk2.annotations.Service;
 
+import com.expanset.hk2.persistence.ReadOnly;
+import com.expanset.hk2.persistence.ReadOnlyInterceptor;
+
 /**
- * Register interceptor for methods, that are annotated by {@link Transactional}.
+ * Register interceptors for methods, that are annotated by {@link Transactional} and {@link ReadOnly}.
+ * Read-only session is started before the transaction.
  */
 @Service
 public class TransactionalInterceptorService implements InterceptionService {
 
 	protected final List<MethodInterceptor> interceprors = new ArrayList<>();
 	
+	protected final List<MethodInterceptor> readOnlyInterceptors = new ArrayList<>();
+
+	protected final List<MethodInterceptor> readOnlyTransactionalInterceptors = new ArrayList<>();
+
 	@Inject
 	protected TransactionalInterceptor interceptor;	
 	
+	@Inject
+	protected ReadOnlyInterceptor readOnlyInterceptor;	
+
 	@PostConstruct
 	public void initialize() {
 		interceprors.add(interceptor);
+		readOnlyInterceptors.add(readOnlyInterceptor);
+		readOnlyTransactionalInterceptors.add(readOnlyInterceptor);
+		readOnlyTransactionalInterceptors.add(interceptor);
 	}
 	
 	@Override
@@ -39,10 +53,16 @@ public class TransactionalInterceptorService implements InterceptionService {
 
 	@Override
 	public List<MethodInterceptor> getMethodInterceptors(Method method) {
-        if (method.isAnnotationPresent(Transactional.class) || 
-        		method.getDeclaringClass().isAnnotationPresent(Transactional.class)) {
-            return interceprors;
-        }
+		final boolean transactional = method.isAnnotationPresent(Transactional.class) || 
+				method.getDeclaringClass().isAnnotationPresent(Transactional.class);
+		final boolean readOnly = method.isAnnotationPresent(ReadOnly.class) || 
+				method.getDeclaringClass().isAnnotationPresent(ReadOnly.class);
+		if(readOnly) {
+			return transactional ? readOnlyTransactionalInterceptors : readOnlyInterceptors;
+		}
+		if(transactional) {
+			return interceprors;
+		}
         
 		return null;
 	}
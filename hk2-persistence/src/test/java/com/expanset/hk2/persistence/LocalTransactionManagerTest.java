@@ -1,10 +1,22 @@
 package com.expanset.hk2.persistence;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
+import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 import org.glassfish.hk2.api.ServiceLocator;
@@ -13,8 +25,10 @@ import org.glassfish.hk2.utilities.ServiceLocatorUtilities;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import com.expanset.common.errors.MultiErrorException;
+import com.expanset.hk2.persistence.transactions.LocalTransactionManager;
 import com.expanset.hk2.persistence.transactions.LocalTransactionsBinder;
 
 import static org.junit.Assert.*;
@@ -30,6 +44,15 @@ public class LocalTransactionManagerTest {
 	
 	private List<PersistenceContextWrapper> persistenceContexts = new ArrayList<>();
 	
+	private PersistenceContextListener listener;
+
+	private PersistenceSessionManager sessionManager;
+
+	/**
+	 * Sessions of the thread, the top is the current session.
+	 */
+	private Deque<PersistenceSession> sessions = new ArrayDeque<>();
+	
 	@Before
 	public void init() 
 			throws Exception {
@@ -48,10 +71,15 @@ public class LocalTransactionManagerTest {
 		final PersistenceSession persistenceSession = 
 				mock(PersistenceSession.class) ;
 		when(persistenceSession.getAllPersistenceContextsInCurrentThread()).thenReturn(persistenceContexts);
+		when(persistenceSession.addListener(any(PersistenceContextListener.class))).thenAnswer(invocation -> {
+			listener = (PersistenceContextListener)invocation.getArguments()[0];
+			return (AutoCloseable)() -> listener = null;
+		});
 		
-		final PersistenceSessionManager sessionManager = 
-				mock(PersistenceSessionManager.class);
-		when(sessionManager.getCurrentSession()).thenReturn(persistenceSession);
+		sessions = new ArrayDeque<>();
+		sessions.push(persistenceSession);
+		sessionManager = mock(PersistenceSessionManager.class);
+		when(sessionManager.getCurrentSession()).thenAnswer(invocation -> sessions.peek());
 		
 		serviceLocator = ServiceLocatorUtilities.bind(new PersistenceBinder() {
 			@Override
@@ -278,4 +306,404 @@ public class LocalTransactionManagerTest {
 			throw e;
 		}
 	}	
+
+	@Test
+	public void joiningTransaction() 
+			throws Throwable {
+		final LocalTransactionManager transactionManager = 
+				(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+
+		transactionManager.begin();
+		final Transaction transaction = transactionManager.getTransaction();
+		
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(() -> {
+				assertTrue(transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION);
+				try(AutoCloseable scope = transactionManager.joinTransaction(transaction)) {
+					assertTrue(transactionManager.getTransaction() == transaction);
+					assertTrue(transactionManager.getStatus() == Status.STATUS_ACTIVE);
+					try {
+						transactionManager.commit();
+						fail();
+					} catch (IllegalStateException e) {
+					}
+					transactionManager.rollback();
+				}
+				assertTrue(transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION);
+				return null;
+			}).get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		assertTrue(transactionManager.getStatus() == Status.STATUS_MARKED_ROLLBACK);
+		try {
+			transactionManager.commit();
+			fail();
+		} catch (RollbackException e) {
+		}
+		
+		assertTrue(transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION);
+		verify(transaction1, never()).commit();
+		verify(transaction1, times(1)).rollback();
+	}
+
+	@Test
+	public void lazyEnlistment() 
+			throws Throwable {
+		final LocalTransactionManager transactionManager = 
+				(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+		transactionManager.setLazyEnlistment(true);
+
+		transactionManager.begin();
+		assertNotNull(listener);
+		verify(persistenceContexts.get(0), never()).beginTransaction();
+		verify(persistenceContexts.get(1), never()).beginTransaction();
+
+		listener.persistenceContextUsed(persistenceContexts.get(1));
+		listener.persistenceContextUsed(persistenceContexts.get(1));
+		verify(persistenceContexts.get(1), times(1)).beginTransaction();
+		assertTrue(transaction2.getStatus() == Status.STATUS_ACTIVE);
+		
+		transactionManager.commit();
+		assertNull(listener);
+		verify(transaction2, times(1)).commit();
+		verify(transaction2, times(1)).close();
+		verify(persistenceContexts.get(0), never()).beginTransaction();
+	}
+
+	@Test
+	public void lazyEnlistmentOfReferencedContext() 
+			throws Throwable {
+		// The first persistence context was injected directly, its usage cannot be tracked.
+		when(sessions.peek().getReferencedPersistenceContextsInCurrentThread())
+			.thenReturn(Collections.singletonList(persistenceContexts.get(0)));
+		final LocalTransactionManager transactionManager = 
+				(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+		transactionManager.setLazyEnlistment(true);
+
+		transactionManager.begin();
+		verify(persistenceContexts.get(0), times(1)).beginTransaction();
+		verify(persistenceContexts.get(1), never()).beginTransaction();
+
+		listener.persistenceContextUsed(persistenceContexts.get(0));
+		verify(persistenceContexts.get(0), times(1)).beginTransaction();
+
+		transactionManager.commit();
+		verify(transaction1, times(1)).commit();
+		verify(persistenceContexts.get(1), never()).beginTransaction();
+	}
+
+	@Test
+	public void enlistLateContext() 
+			throws Throwable {
+		final TransactionManager transactionManager = 
+				serviceLocator.getService(TransactionManager.class);
+
+		transactionManager.begin();
+		
+		final TransactionImpl transaction3 = spy(new TransactionImpl());
+		final PersistenceContextWrapper persistenceContext3 = 
+				mock(PersistenceContextWrapper.class);
+		when(persistenceContext3.beginTransaction()).thenReturn(transaction3);
+		listener.persistenceContextUsed(persistenceContexts.get(0));
+		listener.persistenceContextUsed(persistenceContext3);
+		verify(persistenceContexts.get(0), times(1)).beginTransaction();
+		verify(persistenceContext3, times(1)).beginTransaction();
+
+		transactionManager.rollback();
+		verify(transaction1, times(1)).rollback();
+		verify(transaction3, times(1)).rollback();
+		verify(transaction3, times(1)).close();
+	}
+
+	@Test
+	public void readOnlyTransaction() 
+			throws Throwable {
+		when(persistenceContexts.get(0).beginTransaction(true)).thenReturn(transaction1);
+		when(persistenceContexts.get(1).beginTransaction(true)).thenReturn(transaction2);
+		final LocalTransactionManager transactionManager = 
+				(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+
+		transactionManager.beginReadOnly();
+		assertTrue(transactionManager.isReadOnly());
+		verify(persistenceContexts.get(0), times(1)).beginTransaction(true);
+		verify(persistenceContexts.get(0), never()).beginTransaction();
+		
+		final TransactionImpl transaction3 = spy(new TransactionImpl());
+		final PersistenceContextWrapper persistenceContext3 = 
+				mock(PersistenceContextWrapper.class);
+		when(persistenceContext3.beginTransaction(true)).thenReturn(transaction3);
+		listener.persistenceContextUsed(persistenceContext3);
+		verify(persistenceContext3, times(1)).beginTransaction(true);
+
+		transactionManager.commit();
+		assertFalse(transactionManager.isReadOnly());
+		verify(transaction1, times(1)).commit();
+		verify(transaction3, times(1)).commit();
+	}
+
+	@Test
+	public void transactionTimeout() 
+			throws Throwable {
+		final LocalTransactionManager transactionManager = 
+				(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+
+		transactionManager.setTransactionTimeout(1);
+		transactionManager.begin();
+		transactionManager.setTransactionTimeout(0);
+		final ArgumentCaptor<LongSupplier> remainingTime = ArgumentCaptor.forClass(LongSupplier.class);
+		verify(persistenceContexts.get(0), times(1)).setDeadline(remainingTime.capture());
+		verify(persistenceContexts.get(0), never()).setDeadline(null);
+		assertTrue(transactionManager.getStatus() == Status.STATUS_ACTIVE);
+		// Remaining time is calculated for each statement.
+		final long remaining = remainingTime.getValue().getAsLong();
+		assertTrue(remaining > 0 && remaining <= 1000);
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while(transactionManager.getStatus() == Status.STATUS_ACTIVE && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		assertTrue(transactionManager.getStatus() == Status.STATUS_MARKED_ROLLBACK);
+		assertTrue(remainingTime.getValue().getAsLong() <= 0);
+
+		try {
+			transactionManager.commit();
+			fail();
+		} catch (RollbackException e) {
+			assertEquals("Transaction is timed out", e.getMessage());
+		}
+		verify(transaction1, never()).commit();
+		verify(transaction1, times(1)).rollback();
+		verify(persistenceContexts.get(0), times(1)).setDeadline(null);
+		verify(persistenceContexts.get(1), times(1)).setDeadline(null);
+
+		transactionManager.begin();
+		transactionManager.commit();
+		verify(transaction1, times(1)).commit();
+		verify(persistenceContexts.get(0), times(2)).setDeadline(any(LongSupplier.class));
+	}
+
+	@Test
+	public void suspendAndResume() 
+			throws Throwable {
+		final TransactionImpl transaction3 = spy(new TransactionImpl());
+		final PersistenceContextWrapper persistenceContext3 = mock(PersistenceContextWrapper.class);
+		when(persistenceContext3.beginTransaction()).thenReturn(transaction3);
+		final PersistenceSession innerSession = mock(PersistenceSession.class);
+		when(innerSession.getAllPersistenceContextsInCurrentThread())
+			.thenReturn(Collections.singletonList(persistenceContext3));
+		when(innerSession.addListener(any(PersistenceContextListener.class))).thenReturn(() -> {});
+		when(sessionManager.beginSession(any(), anyBoolean(), anyBoolean())).thenAnswer(invocation -> {
+			sessions.push(innerSession);
+			return (AutoCloseable)() -> sessions.pop();
+		});
+		final TransactionManager transactionManager = 
+				serviceLocator.getService(TransactionManager.class);
+
+		assertNull(transactionManager.suspend());
+
+		transactionManager.begin();
+		final Transaction outerTransaction = transactionManager.getTransaction();
+		final Transaction suspendedTransaction = transactionManager.suspend();
+		assertSame(outerTransaction, suspendedTransaction);
+		assertTrue(transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION);
+		assertSame(innerSession, sessionManager.getCurrentSession());
+
+		transactionManager.begin();
+		transactionManager.setRollbackOnly();
+		transactionManager.rollback();
+		assertTrue(transaction3.getStatus() == Status.STATUS_ROLLEDBACK);
+		assertTrue(transaction1.getStatus() == Status.STATUS_ACTIVE);
+		assertTrue(suspendedTransaction.getStatus() == Status.STATUS_ACTIVE);
+
+		transactionManager.resume(suspendedTransaction);
+		assertSame(outerTransaction, transactionManager.getTransaction());
+		assertEquals(1, sessions.size());
+		transactionManager.commit();
+		assertTrue(transaction1.getStatus() == Status.STATUS_COMMITTED);
+		assertTrue(transaction2.getStatus() == Status.STATUS_COMMITTED);
+		verify(persistenceContexts.get(0), times(1)).beginTransaction();
+		verify(persistenceContext3, times(1)).beginTransaction();
+	}
+
+	@Test(expected=InvalidTransactionException.class)
+	public void resumeNotSuspended() 
+			throws Throwable {
+		final TransactionManager transactionManager = 
+				serviceLocator.getService(TransactionManager.class);
+
+		transactionManager.begin();
+		final Transaction transaction = transactionManager.getTransaction();
+		transactionManager.commit();
+		transactionManager.resume(transaction);
+	}
+
+	@Test
+	public void deepSuspendNesting() 
+			throws Throwable {
+		// Each nesting level uses its own session with one persistence context.
+		final int maxDepth = 32;
+		final List<TransactionImpl> committed = new ArrayList<>();
+		final PersistenceSession[] levelSessions = new PersistenceSession[maxDepth + 1];
+		for(int i = 0; i <= maxDepth; i++) {
+			final PersistenceContextWrapper persistenceContext = mock(PersistenceContextWrapper.class);
+			when(persistenceContext.beginTransaction()).thenAnswer(invocation -> new TransactionImpl() {
+				@Override
+				public void commit() 
+						throws RollbackException, HeuristicMixedException, HeuristicRollbackException, 
+							SecurityException, IllegalStateException, SystemException {
+					super.commit();
+					committed.add(this);
+				}
+			});
+			levelSessions[i] = mock(PersistenceSession.class);
+			when(levelSessions[i].getAllPersistenceContextsInCurrentThread())
+				.thenReturn(Collections.singletonList(persistenceContext));
+			when(levelSessions[i].addListener(any(PersistenceContextListener.class))).thenReturn(() -> {});
+		}
+		sessions.clear();
+		sessions.push(levelSessions[0]);
+		when(sessionManager.beginSession(any(), anyBoolean(), anyBoolean())).thenAnswer(invocation -> {
+			sessions.push(levelSessions[sessions.size()]);
+			return (AutoCloseable)() -> sessions.pop();
+		});
+		final TransactionManager transactionManager = 
+				serviceLocator.getService(TransactionManager.class);
+		final int count = 10;
+
+		runNested(transactionManager, maxDepth, count);
+
+		assertEquals(count * (maxDepth + 1), committed.size());
+		assertEquals(1, sessions.size());
+		assertTrue(transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION);
+	}
+
+	private static void runNested(TransactionManager transactionManager, int depth, int count) 
+			throws Throwable {
+		final Transaction[] suspended = new Transaction[depth];
+		for(int i = 0; i < count; i++) {
+			transactionManager.begin();
+			for(int level = 0; level < depth; level++) {
+				suspended[level] = transactionManager.suspend();
+				transactionManager.begin();
+			}
+			for(int level = depth - 1; level >= 0; level--) {
+				transactionManager.commit();
+				transactionManager.resume(suspended[level]);
+			}
+			transactionManager.commit();
+		}
+	}
+
+	@Test
+	public void parallelCommit() 
+			throws Throwable {
+		// Each commit completes only when all commits are running.
+		final int count = 3;
+		final CountDownLatch committing = new CountDownLatch(count);
+		persistenceContexts.clear();
+		final List<TransactionImpl> transactions = new ArrayList<>();
+		for(int i = 0; i < count; i++) {
+			final TransactionImpl transaction = spy(new TransactionImpl() {
+				@Override
+				public void commit() 
+						throws RollbackException, HeuristicMixedException, HeuristicRollbackException, 
+							SecurityException, IllegalStateException, SystemException {
+					committing.countDown();
+					try {
+						if(!committing.await(10, TimeUnit.SECONDS)) {
+							throw new SystemException("Transactions are not committed in parallel");
+						}
+					} catch (InterruptedException e) {
+						throw new SystemException();
+					}
+					super.commit();
+				}
+			});
+			final PersistenceContextWrapper persistenceContext = mock(PersistenceContextWrapper.class);
+			when(persistenceContext.beginTransaction()).thenReturn(transaction);
+			persistenceContexts.add(persistenceContext);
+			transactions.add(transaction);
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final LocalTransactionManager transactionManager = 
+					(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+			transactionManager.setCompletionExecutor(executor);
+
+			transactionManager.begin();
+			transactionManager.commit();
+
+			for(TransactionImpl transaction : transactions) {
+				assertTrue(transaction.getStatus() == Status.STATUS_COMMITTED);
+				verify(transaction, times(1)).close();
+			}
+			
+			long commits = 0;
+			for(LocalTransactionManager.CommitStatistics statistics : 
+					transactionManager.getCommitStatistics().values()) {
+				commits += statistics.getCommits();
+				assertEquals(0, statistics.getFailures());
+			}
+			assertEquals(count, commits);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void parallelCommitHeuristicMixed() 
+			throws Throwable {
+		final TransactionImpl transaction3 = spy(new TransactionImpl(true, false));
+		final PersistenceContextWrapper persistenceContext3 = 
+				mock(PersistenceContextWrapper.class);
+		when(persistenceContext3.beginTransaction()).thenReturn(transaction3);
+		persistenceContexts.add(persistenceContext3);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final LocalTransactionManager transactionManager = 
+					(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+			transactionManager.setCompletionExecutor(executor);
+
+			transactionManager.begin();
+			try {
+				transactionManager.commit();
+				fail();
+			} catch (HeuristicMixedException e) {
+				assertTrue(e.getCause() instanceof SystemException);
+			}
+			assertTrue(transaction1.getStatus() == Status.STATUS_COMMITTED);
+			assertTrue(transaction2.getStatus() == Status.STATUS_COMMITTED);
+			verify(transaction1, never()).rollback();
+			verify(transaction2, never()).rollback();
+			verify(transaction3, times(1)).rollback();
+			verify(transaction3, times(1)).close();
+			assertTrue(transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION);
+
+			long failures = 0;
+			for(LocalTransactionManager.CommitStatistics statistics : 
+					transactionManager.getCommitStatistics().values()) {
+				failures += statistics.getFailures();
+			}
+			assertEquals(1, failures);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void parallelRollback() 
+			throws Throwable {
+		final LocalTransactionManager transactionManager = 
+				(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+		transactionManager.setCompletionExecutor(Runnable::run);
+
+		transactionManager.begin();
+		transactionManager.rollback();
+		assertTrue(transaction1.getStatus() == Status.STATUS_ROLLEDBACK);
+		assertTrue(transaction2.getStatus() == Status.STATUS_ROLLEDBACK);
+		assertTrue(transactionManager.getCommitStatistics().isEmpty());
+	}
 }
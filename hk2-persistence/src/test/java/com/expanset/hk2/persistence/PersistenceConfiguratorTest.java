@@ -2,6 +2,7 @@ package com.expanset.hk2.persistence;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.MapConfiguration;
@@ -26,10 +27,11 @@ public class PersistenceConfiguratorTest {
 	
 	private ServiceLocator serviceLocator;
 	
+	private PersistenceContextFactoryCreator factoryCreator;
+	
 	@Before
 	public void init() {
-		final PersistenceContextFactoryCreator factoryCreator = 
-				mock(PersistenceContextFactoryCreator.class);
+		factoryCreator = mock(PersistenceContextFactoryCreator.class);
 		
 		serviceLocator = ServiceLocatorUtilities.bind(new PersistenceBinder() {
 			@Override
@@ -130,4 +132,44 @@ public class PersistenceConfiguratorTest {
 		storedProperties = accessor.getFactoryProperties("");
 		assertEquals(propertiesDb1, storedProperties);
 	}
+
+	@Test
+	public void warmUpFactories() 
+			throws Throwable {		
+		final Map<String, String> properties = new HashMap<>();
+		properties.put("dbs", "db1,db2");
+		properties.put("db1.key11", "value11");
+		properties.put("db2.key12", "value12");
+		final Configuration config = new MapConfiguration(properties);
+		
+		when(factoryCreator.createKey(any(), any(), any()))
+			.thenAnswer(invocation -> new PersistenceContextFactoryKey((String)invocation.getArguments()[0]));
+		when(factoryCreator.create(any(), any(), any()))
+			.thenAnswer(invocation -> mock(PersistenceContextFactoryWrapper.class));
+		
+		ServiceLocatorUtilities.bind(serviceLocator, 
+				new AbstractBinder() {
+					@Override
+					protected void configure() {
+						bind(config).to(Configuration.class);
+						MultipleDatabasesPersistenceConfiguratorSettings settings = 
+								new MultipleDatabasesPersistenceConfiguratorSettings("dbs", "db2");
+						settings.setWarmUpThreads(2);
+						bind(settings).to(PersistenceConfiguratorSettings.class);
+						addActiveDescriptor(PersistenceConfigurator.class);
+					}
+				});
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		
+		accessor.getWarmUp().get(10, TimeUnit.SECONDS);
+		
+		assertTrue(accessor.isFactoryReady(new PersistenceContextFactoryKey("")));
+		assertTrue(accessor.isFactoryReady(new PersistenceContextFactoryKey("db1")));
+		assertTrue(accessor.isFactoryReady(new PersistenceContextFactoryKey("db2")));
+		assertFalse(accessor.isFactoryReady(new PersistenceContextFactoryKey("db3")));
+		
+		verify(factoryCreator, times(3)).create(any(), any(), any());
+	}
 }
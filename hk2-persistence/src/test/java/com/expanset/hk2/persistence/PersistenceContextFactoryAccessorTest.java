@@ -1,7 +1,16 @@
 package com.expanset.hk2.persistence;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.glassfish.hk2.api.ServiceLocator;
 import org.glassfish.hk2.api.ServiceLocatorFactory;
@@ -155,7 +164,7 @@ public class PersistenceContextFactoryAccessorTest {
 		
 		accessor.resetFactoriesProperties(factories, commonProperties);
 
-		// Create 3 (key)
+		// Returns cached, settings are not changed.
 		storedWrapper = accessor.getFactory(key);
 		assertTrue(storedWrapper == wrapper);	
 		
@@ -169,13 +178,13 @@ public class PersistenceContextFactoryAccessorTest {
 		storedWrapper = accessor.getFactory(key2);
 		assertTrue(storedWrapper == wrapper2);			
 
-		// Create 4 (key)
+		// Create 3 (key)
 		storedWrapper = accessor.getFactory(key);
 		assertTrue(storedWrapper == wrapper);	
 		
 		accessor.evictAll();
 
-		// Create 5 (key)
+		// Create 4 (key)
 		storedWrapper = accessor.getFactory(key);
 		assertTrue(storedWrapper == wrapper);	
 
@@ -198,17 +207,304 @@ public class PersistenceContextFactoryAccessorTest {
 		}
 		assertTrue(cached);
 		
-		verify(factoryCreator, times(5))
+		verify(factoryCreator, times(4))
 			.create(key, factoryProperties, commonProperties);
 		verify(factoryCreator, times(2))
 			.create(key2, factoryProperties, commonProperties);
 
 		accessor.preDestroy();
 		
-		verify(wrapper, times(5)).close();
+		verify(wrapper, times(4)).close();
 		verify(wrapper2, times(2)).close();
 	}	
 
+	@Test
+	public void concurrentFactoryCreation() 
+			throws Throwable {
+		final PersistenceContextFactoryWrapper wrapper = 
+				mock(PersistenceContextFactoryWrapper.class);
+		final PersistenceContextFactoryWrapper slowWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);
+		
+		final PersistenceContextFactoryKey key = new PersistenceContextFactoryKey("test");
+		final PersistenceContextFactoryKey slowKey = new PersistenceContextFactoryKey("slow");
+		
+		final Map<String, String> factoryProperties = new HashMap<>();
+		factoryProperties.put("key", "value");
+		final Map<String, Map<String, String>> factories = new HashMap<>();
+		factories.put("test", factoryProperties);
+		factories.put("slow", factoryProperties);
+		
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final CountDownLatch slowRelease = new CountDownLatch(1);
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(eq(key), any(), any()))
+				.thenReturn(wrapper);
+		when(factoryCreator.create(eq(slowKey), any(), any()))
+				.thenAnswer(invocation -> {
+					slowStarted.countDown();
+					slowRelease.await();
+					return slowWrapper;
+				});
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);
+			}
+		});
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.resetFactoriesProperties(factories, null);
+		accessor.getFactory(key);
+		
+		final int threadCount = 64;
+		final ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+		try {
+			// Slow factory is being created, other threads wait for the same key.
+			final List<Future<PersistenceContextFactoryWrapper>> slowResults = new ArrayList<>();
+			for(int i = 0; i < 4; i++) {
+				slowResults.add(executor.submit(() -> accessor.getFactory(slowKey)));
+			}
+			assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+			
+			// Cached factory is available while slow factory is being created.
+			final List<Future<PersistenceContextFactoryWrapper>> results = new ArrayList<>();
+			for(int i = 0; i < threadCount; i++) {
+				results.add(executor.submit(() -> {
+					PersistenceContextFactoryWrapper result = null;
+					for(int j = 0; j < 10000; j++) {
+						result = accessor.getFactory(key);
+					}
+					return result;
+				}));
+			}
+			for(Future<PersistenceContextFactoryWrapper> result : results) {
+				assertTrue(result.get(10, TimeUnit.SECONDS) == wrapper);
+			}
+			
+			slowRelease.countDown();
+			for(Future<PersistenceContextFactoryWrapper> result : slowResults) {
+				assertTrue(result.get(10, TimeUnit.SECONDS) == slowWrapper);
+			}
+		} finally {
+			slowRelease.countDown();
+			executor.shutdownNow();
+		}
+		
+		verify(factoryCreator, times(1)).create(eq(key), any(), any());
+		verify(factoryCreator, times(1)).create(eq(slowKey), any(), any());
+		
+		// Each request is counted once.
+		final PersistenceContextFactoryAccessor.Statistics statistics = accessor.getStatistics();
+		assertEquals(2, statistics.getMisses());
+		assertEquals(threadCount * 10000 + 3, statistics.getHits());
+	}
+
+	@Test
+	public void factorySwapWithOpenSession() 
+			throws Throwable {
+		final PersistenceContextFactoryWrapper wrapper = 
+				mock(PersistenceContextFactoryWrapper.class);
+		final PersistenceContextFactoryWrapper wrapper2 = 
+				mock(PersistenceContextFactoryWrapper.class);
+		when(wrapper.create(any())).thenReturn(mock(PersistenceContextWrapper.class));
+		
+		final PersistenceContextFactoryKey key = new PersistenceContextFactoryKey("test");
+		
+		final Map<String, String> factoryProperties = new HashMap<>();
+		factoryProperties.put("key", "value");
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(eq(key), any(), any()))
+				.thenReturn(wrapper, wrapper2);
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);
+			}
+		});
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test", factoryProperties);
+		
+		final PersistenceSession session = new PersistenceSession(null);
+		serviceLocator.inject(session);
+		session.getPersistenceContext(new PersistenceContextKey(key), Object.class);
+		
+		// Factory is used by session, it is not closed.
+		accessor.setFactoryProperties("test", factoryProperties);
+		verify(wrapper, never()).close();
+		
+		// New factory is available at once.
+		assertTrue(accessor.getFactory(key) == wrapper2);
+		
+		// Old factory is closed after session is completed.
+		session.close();
+		verify(wrapper, timeout(10000)).close();
+		verify(wrapper2, never()).close();
+	}
+
+	@Test
+	public void changedFactoriesReset() 
+			throws Exception {
+		final PersistenceContextFactoryKey key = new PersistenceContextFactoryKey("test");
+		final PersistenceContextFactoryKey key2 = new PersistenceContextFactoryKey("test2");
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(any(), any(), any()))
+				.thenAnswer(invocation -> mock(PersistenceContextFactoryWrapper.class));
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);
+			}
+		});
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		
+		final Map<String, Map<String, String>> factories = new HashMap<>();
+		factories.put("test", Collections.singletonMap("key", "value"));
+		factories.put("test2", Collections.singletonMap("key", "value"));
+		accessor.resetFactoriesProperties(factories, Collections.singletonMap("ckey", "cvalue"));
+		
+		final PersistenceContextFactoryWrapper wrapper = accessor.getFactory(key);
+		final PersistenceContextFactoryWrapper wrapper2 = accessor.getFactory(key2);
+		
+		// Only test2 settings are changed.
+		factories.put("test2", Collections.singletonMap("key", "value2"));
+		Set<String> evicted = accessor.resetFactoriesProperties(factories, Collections.singletonMap("ckey", "cvalue"));
+		assertEquals(Collections.singleton("test2"), evicted);
+		assertTrue(accessor.getFactory(key) == wrapper);
+		assertTrue(accessor.getFactory(key2) != wrapper2);
+		verify(wrapper, never()).close();
+		verify(wrapper2, times(1)).close();
+		
+		// Common properties are changed, all factories are evicted.
+		evicted = accessor.resetFactoriesProperties(null, Collections.singletonMap("ckey", "cvalue2"));
+		assertEquals(2, evicted.size());
+		assertTrue(accessor.getFactory(key) != wrapper);
+		verify(wrapper, times(1)).close();
+	}
+
+	@Test
+	public void boundedFactoryCache() 
+			throws Exception {
+		final PersistenceContextFactoryKey key = new PersistenceContextFactoryKey("test");
+		final PersistenceContextFactoryKey key2 = new PersistenceContextFactoryKey("test2");
+		final PersistenceContextFactoryKey key3 = new PersistenceContextFactoryKey("test3");
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(any(), any(), any()))
+				.thenAnswer(invocation -> {
+					final PersistenceContextFactoryWrapper wrapper = mock(PersistenceContextFactoryWrapper.class);
+					when(wrapper.create(any())).thenReturn(mock(PersistenceContextWrapper.class));
+					return wrapper;
+				});
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);
+			}
+		});
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		
+		final Map<String, Map<String, String>> factories = new HashMap<>();
+		factories.put("test", Collections.singletonMap("key", "value"));
+		factories.put("test2", Collections.singletonMap("key", "value"));
+		factories.put("test3", Collections.singletonMap("key", "value"));
+		accessor.resetFactoriesProperties(factories, null);
+		accessor.setMaxFactories(2);
+		
+		// Factory, that is used by session, is not evicted.
+		final PersistenceSession session = new PersistenceSession(null);
+		serviceLocator.inject(session);
+		session.getPersistenceContext(new PersistenceContextKey(key), Object.class);
+		final PersistenceContextFactoryWrapper wrapper = accessor.getFactory(key);
+		
+		final PersistenceContextFactoryWrapper wrapper2 = accessor.getFactory(key2);
+		final PersistenceContextFactoryWrapper wrapper3 = accessor.getFactory(key3);
+		
+		assertTrue(accessor.isFactoryReady(key));
+		assertFalse(accessor.isFactoryReady(key2));
+		assertTrue(accessor.isFactoryReady(key3));
+		verify(wrapper, never()).close();
+		verify(wrapper2, times(1)).close();
+		
+		PersistenceContextFactoryAccessor.Statistics statistics = accessor.getStatistics();
+		assertEquals(1, statistics.getHits());
+		assertEquals(3, statistics.getMisses());
+		assertEquals(1, statistics.getEvictions());
+		assertEquals(2, statistics.getSize());
+		
+		// Unused factories are evicted after idle timeout.
+		session.close();
+		accessor.setFactoryIdleTimeout(50, TimeUnit.MILLISECONDS);
+		final long deadline = System.currentTimeMillis() + 10000;
+		while(accessor.getStatistics().getEvictions() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		
+		statistics = accessor.getStatistics();
+		assertEquals(3, statistics.getEvictions());
+		assertEquals(0, statistics.getSize());
+		verify(wrapper, times(1)).close();
+		verify(wrapper3, times(1)).close();
+	}
+
+	@Test
+	public void internedKeysAreReleased() {
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(any(), any(), any()))
+				.thenAnswer(invocation -> mock(PersistenceContextFactoryWrapper.class));
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);
+			}
+		});
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test", Collections.singletonMap("key", "value"));
+		accessor.setFactoryProperties("test2", Collections.singletonMap("key", "value"));
+		
+		final PersistenceContextFactoryKey factoryKey = new PersistenceContextFactoryKey("test");
+		final PersistenceContextKey key = accessor.internKey(new PersistenceContextKey(factoryKey));
+		final PersistenceContextKey key2 = 
+				accessor.internKey(new PersistenceContextKey(new PersistenceContextFactoryKey("test2")));
+		accessor.getFactory(factoryKey);
+		accessor.getFactory(key2.getFactoryKey());
+		assertSame(key, accessor.internKey(new PersistenceContextKey(factoryKey)));
+		
+		accessor.evict("test");
+		
+		final PersistenceContextKey newKey = accessor.internKey(new PersistenceContextKey(factoryKey));
+		assertNotSame(key, newKey);
+		assertEquals(key, newKey);
+		assertSame(key2, accessor.internKey(new PersistenceContextKey(new PersistenceContextFactoryKey("test2"))));
+	}
+	
 	private void bindDumbFactoryCreator() {
 		ServiceLocatorUtilities.bind(new AbstractBinder() {
 			@Override
@@ -1,8 +1,15 @@
 package com.expanset.hk2.persistence;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.glassfish.hk2.api.ServiceLocator;
 import org.glassfish.hk2.api.ServiceLocatorFactory;
@@ -110,6 +117,7 @@ public class PersistenceSessionTest {
 
 		storedPersistenceContext = session.getPersistenceContext(key, Object.class);
 		assertTrue(storedPersistenceContext == persistenceContext);
+		assertEquals(Collections.singletonList(wrapper), session.getReferencedPersistenceContextsInCurrentThread());
 		
 		Thread thread = new Thread(() -> {
 			try {
@@ -149,4 +157,306 @@ public class PersistenceSessionTest {
 		verify(wrapper, times(2)).close();	
 		verify(wrapper2, times(2)).close();			
 	}	
+
+	@Test
+	public void concurrentPersistenceContextLookup() 
+			throws Throwable {
+		final PersistenceContextFactoryKey factoryKey = 
+				new PersistenceContextFactoryKey("test1");
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(factoryKey);
+		
+		final Object persistenceContext = new Object();
+		final PersistenceContextWrapper wrapper = 
+				mock(PersistenceContextWrapper.class);		
+		when(wrapper.unwrap(Object.class)).thenReturn(persistenceContext);
+		
+		final PersistenceContextFactoryWrapper factoryWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);		
+		when(factoryWrapper.create(eq(key))).thenReturn(wrapper);
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(eq(factoryKey), any(), any()))
+				.thenReturn(factoryWrapper);			
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);				
+			}
+		});		
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test1", new HashMap<>());
+		
+		final PersistenceSession session = new PersistenceSession(null);
+		serviceLocator.inject(session);
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			final List<Future<Object>> results = new ArrayList<>();
+			for(int i = 0; i < 16; i++) {
+				results.add(executor.submit(() -> {
+					Object result = null;
+					for(int j = 0; j < 1000; j++) {
+						result = session.getPersistenceContext(key, Object.class);
+					}
+					return result;
+				}));
+			}
+			for(Future<Object> result : results) {
+				assertTrue(result.get(10, TimeUnit.SECONDS) == persistenceContext);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		assertTrue(session.getAllPersistenceContextsInCurrentThread().isEmpty());
+		
+		session.close();
+		
+		verify(factoryWrapper, times(1)).create(eq(key));	
+		verify(wrapper, times(1)).close();	
+	}
+
+	@Test
+	public void partitionedSession() 
+			throws Throwable {
+		final PersistenceContextFactoryKey factoryKey = 
+				new PersistenceContextFactoryKey("test1");
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(factoryKey);
+		
+		final PersistenceContextFactoryWrapper factoryWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);		
+		when(factoryWrapper.create(eq(key))).thenAnswer(invocation -> {
+			final Object persistenceContext = new Object();
+			final PersistenceContextWrapper wrapper = 
+					mock(PersistenceContextWrapper.class);		
+			when(wrapper.unwrap(Object.class)).thenReturn(persistenceContext);
+			return wrapper;
+		});
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(eq(factoryKey), any(), any()))
+				.thenReturn(factoryWrapper);			
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);				
+			}
+		});		
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test1", new HashMap<>());
+		
+		final PersistenceSession session = new PersistenceSession(null, true);
+		serviceLocator.inject(session);
+		assertTrue(session.isPartitioned());
+		
+		final Object persistenceContext = session.getPersistenceContext(key, Object.class);
+		assertTrue(session.getPersistenceContext(key, Object.class) == persistenceContext);
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Object>> results = new ArrayList<>();
+			for(int i = 0; i < 4; i++) {
+				results.add(executor.submit(() -> {
+					final Object result = session.getPersistenceContext(key, Object.class);
+					assertTrue(session.getPersistenceContext(key, Object.class) == result);
+					assertEquals(1, session.getAllPersistenceContextsInCurrentThread().size());
+					return result;
+				}));
+			}
+			for(Future<Object> result : results) {
+				assertTrue(result.get(10, TimeUnit.SECONDS) != persistenceContext);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		final PersistenceContextWrapper mainWrapper = 
+				session.getAllPersistenceContextsInCurrentThread().get(0);
+		
+		final Object workerPersistenceContext;
+		final PersistenceContextWrapper workerWrapper;
+		try(AutoCloseable worker = session.beginWorker()) {
+			workerPersistenceContext = session.getPersistenceContext(key, Object.class);
+			assertTrue(workerPersistenceContext != persistenceContext);
+			assertEquals(2, session.getAllPersistenceContextsInCurrentThread().size());
+			workerWrapper = session.getAllPersistenceContextsInCurrentThread().get(1);
+		}
+		
+		verify(workerWrapper, times(1)).close();	
+		verify(mainWrapper, never()).close();	
+		assertEquals(1, session.getAllPersistenceContextsInCurrentThread().size());
+		assertTrue(session.getPersistenceContext(key, Object.class) == persistenceContext);
+
+		session.close();
+		
+		verify(factoryWrapper, times(6)).create(eq(key));	
+		verify(mainWrapper, times(1)).close();	
+	}
+
+	@Test
+	public void factoryKeyResolution() 
+			throws Throwable {
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		final PersistenceSession session = 
+				new PersistenceSession(Collections.singletonMap("test1", "test2"));
+		serviceLocator.inject(session);
+
+		final PersistenceContextKey key = 
+				accessor.internKey(new PersistenceContextKey(new PersistenceContextFactoryKey("test1")));
+		assertTrue(accessor.internKey(new PersistenceContextKey(new PersistenceContextFactoryKey("test1"))) == key);
+		
+		final PersistenceContextKey resolvedKey = session.resolveFactoryKey(key);
+		assertEquals("test2", resolvedKey.getFactoryKey().getFactoryName());
+		assertTrue(session.resolveFactoryKey(key) == resolvedKey);
+		assertTrue(
+				accessor.internKey(new PersistenceContextKey(new PersistenceContextFactoryKey("test2"))) == resolvedKey);
+		
+		final PersistenceContextKey otherKey = 
+				new PersistenceContextKey(new PersistenceContextFactoryKey("test3"));
+		assertTrue(session.resolveFactoryKey(otherKey) == otherKey);
+	}
+
+	@Test
+	public void readOnlyRouting() 
+			throws Throwable {
+		final List<String> usedFactories = new ArrayList<>();
+		final PersistenceContextFactoryWrapper factoryWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);		
+		when(factoryWrapper.create(any())).thenAnswer(invocation -> {
+			final PersistenceContextKey key = (PersistenceContextKey)invocation.getArguments()[0];
+			usedFactories.add(key.getFactoryKey().getFactoryName());
+			return mock(PersistenceContextWrapper.class);
+		});
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(any(), any(), any())).thenReturn(factoryWrapper);
+		when(factoryCreator.create(eq(new PersistenceContextFactoryKey("test1r1")), any(), any()))
+				.thenThrow(new IllegalStateException("Replica is down"));
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);				
+			}
+		});			
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test1", 
+				Collections.singletonMap(PersistenceContextFactoryAccessor.REPLICAS_PROPERTY, "test1r1, test1r2"));
+		accessor.setFactoryProperties("test1r1", new HashMap<>());
+		accessor.setFactoryProperties("test1r2", new HashMap<>());
+		assertEquals(2, accessor.getReplicas("test1").size());
+		
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(new PersistenceContextFactoryKey("test1"));
+
+		// Replicas are balanced by count of sessions.
+		final PersistenceSession session1 = new PersistenceSession(null, false, true, accessor);
+		final PersistenceSession session2 = new PersistenceSession(null, false, true, accessor);
+		final String replica1 = session1.resolveFactoryKey(key).getFactoryKey().getFactoryName();
+		final String replica2 = session2.resolveFactoryKey(key).getFactoryKey().getFactoryName();
+		assertTrue(replica1.startsWith("test1r"));
+		assertTrue(replica2.startsWith("test1r"));
+		assertFalse(replica1.equals(replica2));
+		for(PersistenceContextFactoryAccessor.Replica replica : accessor.getReplicas("test1")) {
+			assertEquals(1, replica.getOutstanding());
+		}
+		session1.close();
+		session2.close();
+		for(PersistenceContextFactoryAccessor.Replica replica : accessor.getReplicas("test1")) {
+			assertEquals(0, replica.getOutstanding());
+		}
+
+		// Primary is used when replica is failed.
+		accessor.markReplicaFailed("test1r2");
+		final PersistenceSession session3 = new PersistenceSession(null, false, true, accessor);
+		final int version = session3.getVersion();
+		assertNotNull(session3.getPersistenceContext(key, Object.class));
+		assertTrue(session3.getVersion() != version);
+		assertEquals(Collections.singletonList("test1"), usedFactories);
+		assertEquals("test1", session3.resolveFactoryKey(key).getFactoryKey().getFactoryName());
+		for(PersistenceContextFactoryAccessor.Replica replica : accessor.getReplicas("test1")) {
+			assertFalse(replica.isHealthy());
+			assertEquals(0, replica.getOutstanding());
+		}
+		session3.close();
+		
+		// Not read-only session uses primary.
+		final PersistenceSession session4 = new PersistenceSession(null, false, accessor);
+		assertTrue(session4.resolveFactoryKey(key) == key);
+		session4.close();
+	}
+
+	@Test
+	public void shardKeyResolution() 
+			throws Throwable {
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(mock(PersistenceContextFactoryCreator.class))
+					.to(PersistenceContextFactoryCreator.class);
+				addActiveDescriptor(ConsistentHashFactoryNameResolver.class);
+			}
+		});			
+		
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		final Map<String, Map<String, String>> factoryProperties = new HashMap<>();
+		factoryProperties.put("users", 
+				Collections.singletonMap(ConsistentHashFactoryNameResolver.SHARDS_PROPERTY, "users1,users2,users3"));
+		accessor.resetFactoriesProperties(factoryProperties, null);
+		
+		final ThreadScopePersistenceSessionManager sessionManager = 
+				serviceLocator.getService(ThreadScopePersistenceSessionManager.class);
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(new PersistenceContextFactoryKey("users"));
+		
+		final Map<Long, String> shards = new HashMap<>();
+		for(long userId = 0; userId < 300; userId++) {
+			try(AutoCloseable scope = sessionManager.beginShardSession(userId)) {
+				final String shard = sessionManager.getCurrentSession()
+						.resolveFactoryKey(key).getFactoryKey().getFactoryName();
+				assertTrue(shard.startsWith("users"));
+				shards.put(userId, shard);
+			}
+		}
+		assertEquals(3, new HashSet<>(shards.values()).size());
+		
+		// Keys are moved only to the new shard.
+		factoryProperties.put("users", 
+				Collections.singletonMap(ConsistentHashFactoryNameResolver.SHARDS_PROPERTY, "users1,users2,users3,users4"));
+		accessor.resetFactoriesProperties(factoryProperties, null);
+		int moved = 0;
+		for(long userId = 0; userId < 300; userId++) {
+			try(AutoCloseable scope = sessionManager.beginShardSession(userId)) {
+				final String shard = sessionManager.getCurrentSession()
+						.resolveFactoryKey(key).getFactoryKey().getFactoryName();
+				if(!shard.equals(shards.get(userId))) {
+					assertEquals("users4", shard);
+					moved++;
+				}
+			}
+		}
+		assertTrue(moved > 0 && moved < 150);
+		
+		try(AutoCloseable scope = sessionManager.beginSession()) {
+			assertTrue(sessionManager.getCurrentSession().resolveFactoryKey(key) == key);
+		}
+	}
 }
@@ -1,8 +1,27 @@
 package com.expanset.hk2.persistence;
 
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
 
 import org.glassfish.hk2.api.PerLookup;
 import org.glassfish.hk2.api.ServiceLocator;
@@ -13,9 +32,12 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.expanset.common.errors.ExceptionAdapter;
+import com.expanset.hk2.persistence.transactions.LocalTransactionManager;
 import com.expanset.hk2.persistence.transactions.LocalTransactionsBinder;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.*;
 import static org.mockito.Mockito.*;
 
 public class ThreadScopePersistenceSessionManagerTest {
@@ -127,4 +149,497 @@ public class ThreadScopePersistenceSessionManagerTest {
 		
 		verify(persistenceContext, times(1)).run();	
 	}
+
+	@Test
+	public void proxyDispatch() 
+			throws Throwable {		
+		final PersistenceContextFactoryKey factoryKey = 
+				new PersistenceContextFactoryKey("test1");
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(factoryKey);
+		
+		final AtomicInteger calls = new AtomicInteger();
+		final Runnable persistenceContext = () -> calls.incrementAndGet();
+		
+		final PersistenceContextWrapper wrapper = 
+				mock(PersistenceContextWrapper.class);		
+		when(wrapper.unwrap(Runnable.class)).thenReturn(persistenceContext);
+		
+		final PersistenceContextFactoryWrapper factoryWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);		
+		when(factoryWrapper.create(eq(key))).thenReturn(wrapper);
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(any(), any(), any()))
+				.thenReturn(factoryWrapper);			
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);				
+			}
+		});			
+
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test1", new HashMap<>());
+		
+		final ThreadScopePersistenceSessionManager sessionManager = 
+				serviceLocator.getService(ThreadScopePersistenceSessionManager.class);
+		
+		final Runnable proxy = sessionManager.getPersistenceContext(key, Runnable.class, "scope");
+		final Runnable proxy2 = sessionManager.getPersistenceContext(key, Runnable.class, "scope");
+		assertTrue(proxy != proxy2);
+		assertTrue(proxy.getClass() == proxy2.getClass());
+		
+		final int count = 1000;
+		try (AutoCloseable scope = sessionManager.beginSession()) {
+			for(int i = 0; i < count; i++) {
+				proxy.run();
+				proxy2.run();
+			}
+		}
+		try (AutoCloseable scope = sessionManager.beginSession()) {
+			proxy.run();
+		}
+		
+		assertEquals(count * 2 + 1, calls.get());
+		// Persistence context is resolved once for each session.
+		verify(wrapper, times(2)).unwrap(Runnable.class);
+		verify(wrapper, times(2)).close();
+	}
+
+	@Test
+	public void proxyListenerOfOtherThread() 
+			throws Throwable {		
+		final PersistenceContextFactoryKey factoryKey = 
+				new PersistenceContextFactoryKey("test1");
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(factoryKey);
+		
+		final Runnable persistenceContext = () -> {};
+		final PersistenceContextWrapper wrapper = 
+				mock(PersistenceContextWrapper.class);		
+		when(wrapper.unwrap(Runnable.class)).thenReturn(persistenceContext);
+		
+		final PersistenceContextFactoryWrapper factoryWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);		
+		when(factoryWrapper.create(eq(key))).thenReturn(wrapper);
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(any(), any(), any()))
+				.thenReturn(factoryWrapper);			
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);				
+			}
+		});			
+
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test1", new HashMap<>());
+		
+		final ThreadScopePersistenceSessionManager sessionManager = 
+				serviceLocator.getService(ThreadScopePersistenceSessionManager.class);
+		final Runnable proxy = sessionManager.getPersistenceContext(key, Runnable.class, "scope");
+		
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (AutoCloseable scope = sessionManager.beginSession()) {
+			final PersistenceSession session = sessionManager.getCurrentSession();
+			final List<PersistenceContextWrapper> used = Collections.synchronizedList(new ArrayList<>());
+			final List<AutoCloseable> workerScopes = new ArrayList<>();
+			executor.submit(() -> {
+				workerScopes.add(sessionManager.beginWorker(session));
+				workerScopes.add(session.addListener(used::add));
+				return null;
+			}).get(10, TimeUnit.SECONDS);
+			
+			// Persistence context is cached by the proxy for this thread.
+			proxy.run();
+			proxy.run();
+			
+			executor.submit(() -> {
+				proxy.run();
+				for(int i = workerScopes.size() - 1; i >= 0; i--) {
+					workerScopes.get(i).close();
+				}
+				return null;
+			}).get(10, TimeUnit.SECONDS);
+			
+			assertEquals(Collections.singletonList(wrapper), used);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void sessionHandles() 
+			throws Throwable {		
+		final ThreadScopePersistenceSessionManager sessionManager = 
+				serviceLocator.getService(ThreadScopePersistenceSessionManager.class);
+
+		final AutoCloseable scope = sessionManager.beginSession();
+		final PersistenceSession session = sessionManager.getCurrentSession();
+		scope.close();
+		assertNull(sessionManager.getCurrentSession());
+
+		try (AutoCloseable scope2 = sessionManager.beginSession()) {
+			final PersistenceSession session2 = sessionManager.getCurrentSession();
+			assertNotSame(session, session2);
+			
+			// Repeated closing of the old handle does not close other sessions.
+			scope.close();
+			assertSame(session2, sessionManager.getCurrentSession());
+			
+			final AutoCloseable scope3 = sessionManager.beginSession();
+			try {
+				scope2.close();
+				fail();
+			} catch (IllegalStateException e) {
+				assertNotSame(session2, sessionManager.getCurrentSession());
+			}
+			scope3.close();
+			assertSame(session2, sessionManager.getCurrentSession());
+		}
+		assertNull(sessionManager.getCurrentSession());
+	}
+
+	@Test
+	public void sessionAllocation() 
+			throws Throwable {		
+		final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+		assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+		
+		final ThreadScopePersistenceSessionManager sessionManager = 
+				serviceLocator.getService(ThreadScopePersistenceSessionManager.class);
+		final int count = 100000;
+		for(int i = 0; i < count; i++) {
+			try (AutoCloseable scope = sessionManager.beginSession()) {
+			}
+		}
+		
+		final long threadId = Thread.currentThread().getId();
+		final long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+		for(int i = 0; i < count; i++) {
+			try (AutoCloseable scope = sessionManager.beginSession()) {
+			}
+		}
+		final long allocated = (allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / count;
+		
+		// Session, its lock, handle and thread stack, maps of the session are not created.
+		assertTrue("Bytes per session: " + allocated, allocated < 384);
+	}
+
+	@Test
+	public void shortLivedThreadSessions() 
+			throws Throwable {		
+		final int threadCount = 16;
+		
+		final PersistenceContextFactoryKey factoryKey = 
+				new PersistenceContextFactoryKey("test1");
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(factoryKey);
+		
+		final PersistenceContextWrapper wrapper = 
+				mock(PersistenceContextWrapper.class);		
+		when(wrapper.unwrap(Object.class)).thenReturn(new Object());
+		when(wrapper.beginTransaction()).thenAnswer(invocation -> new TransactionImpl());
+		
+		// Persistence context creation is blocking operation under the session lock, 
+		// it completes only when all threads are creating their persistence contexts.
+		final CountDownLatch creating = new CountDownLatch(threadCount);
+		final PersistenceContextFactoryWrapper factoryWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);		
+		when(factoryWrapper.create(eq(key))).thenAnswer(invocation -> {
+			creating.countDown();
+			if(!creating.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Sessions do not create persistence contexts concurrently");
+			}
+			return wrapper;
+		});
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(eq(factoryKey), any(), any()))
+				.thenReturn(factoryWrapper);			
+		
+		final ServiceLocator shortLivedServiceLocator = ServiceLocatorUtilities.bind(new PersistenceBinder() {
+			@Override
+			protected void configure() {
+				super.configure();
+				
+				install(new LocalTransactionsBinder());
+
+				addActiveDescriptor(VirtualThreadScopePersistenceSessionManager.class);
+				bind(factoryCreator).to(PersistenceContextFactoryCreator.class);
+			}
+		});
+		try {
+			final PersistenceContextFactoryAccessor accessor = 
+					shortLivedServiceLocator.getService(PersistenceContextFactoryAccessor.class);
+			accessor.setFactoryProperties("test1", new HashMap<>());
+			
+			final VirtualThreadScopePersistenceSessionManager sessionManager = 
+					(VirtualThreadScopePersistenceSessionManager)
+					shortLivedServiceLocator.getService(PersistenceSessionManager.class);
+			final TransactionManager transactionManager = 
+					shortLivedServiceLocator.getService(TransactionManager.class);
+			
+			// Each task runs in its own thread, virtual one when it is supported.
+			final List<FutureTask<Boolean>> results = new ArrayList<>(threadCount);
+			for(int i = 0; i < threadCount; i++) {
+				final FutureTask<Boolean> result = new FutureTask<>(() -> {
+					sessionManager.runInScope(() -> {
+						sessionManager.getCurrentSession().getPersistenceContext(key, Object.class);
+						transactionManager.begin();
+						transactionManager.commit();
+					});
+					// Nothing is kept for the thread after its last session.
+					return sessionManager.persistenceSessionStack.get() == null;
+				});
+				startThread(result);
+				results.add(result);
+			}
+			for(Future<Boolean> result : results) {
+				assertTrue(result.get(30, TimeUnit.SECONDS));
+			}
+			
+			verify(factoryWrapper, times(threadCount)).create(eq(key));
+			verify(wrapper, times(threadCount)).close();
+		} finally {
+			ServiceLocatorFactory.getInstance().destroy(shortLivedServiceLocator);
+		}
+	}
+
+	private static void startThread(Runnable task) 
+			throws Exception {
+		try {
+			Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, task);
+		} catch (NoSuchMethodException e) {
+			new Thread(task).start();
+		}
+	}
+
+	@Test
+	public void sessionPropagation() 
+			throws Throwable {		
+		final PersistenceContextFactoryKey factoryKey = 
+				new PersistenceContextFactoryKey("test1");
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(factoryKey);
+		
+		final Object persistenceContext = new Object();
+		final PersistenceContextWrapper wrapper = 
+				mock(PersistenceContextWrapper.class);		
+		when(wrapper.unwrap(Object.class)).thenReturn(persistenceContext);
+		
+		final PersistenceContextFactoryWrapper factoryWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);		
+		when(factoryWrapper.create(eq(key))).thenReturn(wrapper);
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(eq(factoryKey), any(), any()))
+				.thenReturn(factoryWrapper);			
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);				
+			}
+		});			
+
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test1", new HashMap<>());
+		
+		final ThreadScopePersistenceSessionManager sessionManager = 
+				serviceLocator.getService(ThreadScopePersistenceSessionManager.class);
+		final LocalTransactionManager transactionManager = 
+				(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+		
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final CountDownLatch taskStarted = new CountDownLatch(1);
+			final CountDownLatch sessionClosed = new CountDownLatch(1);
+			final CompletableFuture<Object> result;
+			final PersistenceSession session;
+			try (AutoCloseable scope = sessionManager.beginSession()) {
+				session = sessionManager.getCurrentSession();
+				final Executor sessionExecutor = 
+						new PersistenceSessionExecutor(executor, sessionManager, transactionManager);
+				result = CompletableFuture.supplyAsync(() -> {
+					assertTrue(sessionManager.getCurrentSession() == session);
+					taskStarted.countDown();
+					ExceptionAdapter.run(() -> sessionClosed.await(10, TimeUnit.SECONDS));
+					return session.getPersistenceContext(key, Object.class);
+				}, sessionExecutor);
+				taskStarted.await(10, TimeUnit.SECONDS);
+			}
+			
+			// Session is used by the task, it is closed after the task completion.
+			assertTrue(session.isAcquired());
+			sessionClosed.countDown();
+			
+			assertTrue(result.get(10, TimeUnit.SECONDS) == persistenceContext);
+			verify(wrapper, timeout(10000)).close();
+			assertFalse(session.isAcquired());
+			
+			executor.submit(() -> assertNull(sessionManager.getCurrentSession())).get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void transactionPropagation() 
+			throws Throwable {		
+		final PersistenceContextFactoryKey factoryKey = 
+				new PersistenceContextFactoryKey("test1");
+		final PersistenceContextKey key = 
+				new PersistenceContextKey(factoryKey);
+		
+		final List<TransactionImpl> transactions = Collections.synchronizedList(new ArrayList<>());
+		final PersistenceContextWrapper wrapper = 
+				mock(PersistenceContextWrapper.class);		
+		when(wrapper.unwrap(Object.class)).thenReturn(new Object());
+		when(wrapper.beginTransaction()).thenAnswer(invocation -> {
+			final TransactionImpl transaction = new TransactionImpl();
+			transactions.add(transaction);
+			return transaction;
+		});
+		
+		final PersistenceContextFactoryWrapper factoryWrapper = 
+				mock(PersistenceContextFactoryWrapper.class);		
+		when(factoryWrapper.create(eq(key))).thenReturn(wrapper);
+		
+		final PersistenceContextFactoryCreator factoryCreator = 
+				mock(PersistenceContextFactoryCreator.class);
+		when(factoryCreator.create(eq(factoryKey), any(), any()))
+				.thenReturn(factoryWrapper);			
+		
+		ServiceLocatorUtilities.bind(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(factoryCreator)
+					.to(PersistenceContextFactoryCreator.class);				
+			}
+		});			
+
+		final PersistenceContextFactoryAccessor accessor = 
+				serviceLocator.getService(PersistenceContextFactoryAccessor.class);
+		accessor.setFactoryProperties("test1", new HashMap<>());
+		
+		final ThreadScopePersistenceSessionManager sessionManager = 
+				serviceLocator.getService(ThreadScopePersistenceSessionManager.class);
+		final LocalTransactionManager transactionManager = 
+				(LocalTransactionManager)serviceLocator.getService(TransactionManager.class);
+		
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (AutoCloseable scope = sessionManager.beginSession(null, true)) {
+			final Executor sessionExecutor = 
+					new PersistenceSessionExecutor(executor, sessionManager, transactionManager);
+			
+			transactionManager.begin();
+			// The worker writes by new persistence context of its partition.
+			CompletableFuture.runAsync(() -> 
+					sessionManager.getCurrentSession().getPersistenceContext(key, Object.class), sessionExecutor)
+				.get(10, TimeUnit.SECONDS);
+			
+			assertEquals(1, transactions.size());
+			assertEquals(Status.STATUS_ACTIVE, transactions.get(0).getStatus());
+			// Persistence context of the worker is kept open until the transaction is completed.
+			verify(wrapper, never()).close();
+			
+			transactionManager.rollback();
+			assertEquals(Status.STATUS_ROLLEDBACK, transactions.get(0).getStatus());
+			verify(wrapper, times(1)).close();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void scatterGather() 
+			throws Throwable {		
+		final ThreadScopePersistenceSessionManager sessionManager = 
+				serviceLocator.getService(ThreadScopePersistenceSessionManager.class);
+		
+		final Map<String, Map<String, String>> shards = new LinkedHashMap<>();
+		shards.put("db1", Collections.singletonMap("db", "db1"));
+		shards.put("db2", Collections.singletonMap("db", "db2"));
+		shards.put("db3", Collections.singletonMap("db", "db3"));
+		shards.put("db4", Collections.singletonMap("db", "db4"));
+		
+		final CountDownLatch slowShard = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final ScatterGather partial = new ScatterGather(
+					sessionManager, executor, 200, TimeUnit.MILLISECONDS, ScatterGather.FailurePolicy.PARTIAL);
+			final ScatterGather.Result<Integer> result = partial.getInScopes(() -> {
+				final String shard = sessionManager.getCurrentSession().factoryNameOverrides.get("db");
+				if(shard.equals("db2")) {
+					throw new IllegalArgumentException(shard);
+				}
+				if(shard.equals("db3")) {
+					slowShard.await(10, TimeUnit.SECONDS);
+				}
+				return Integer.parseInt(shard.substring(2));
+			}, shards);
+			
+			assertFalse(result.isComplete());
+			assertEquals(Arrays.asList("db1", "db4"), new ArrayList<>(result.getResults().keySet()));
+			assertEquals(Integer.valueOf(5), result.merge(Integer::sum));
+			assertTrue(result.getErrors().get("db2") instanceof IllegalArgumentException);
+			assertTrue(result.getErrors().get("db3") instanceof TimeoutException);
+			slowShard.countDown();
+			
+			final ScatterGather failFast = new ScatterGather(
+					sessionManager, executor, 0, TimeUnit.MILLISECONDS, ScatterGather.FailurePolicy.FAIL);
+			try {
+				failFast.getInScopes(() -> {
+					throw new IllegalStateException();
+				}, shards);
+				fail();
+			} catch (ScatterGatherException e) {
+				assertTrue(e.getResult().getResults().isEmpty());
+				assertTrue(e.getSuppressed()[0] instanceof IllegalStateException);
+			}
+			
+			// Shards, that are queued behind the slow shard, time out by the deadline of the call.
+			final CountDownLatch slowShards = new CountDownLatch(1);
+			final ExecutorService singleExecutor = Executors.newSingleThreadExecutor();
+			try {
+				final ScatterGather deadline = new ScatterGather(
+						sessionManager, singleExecutor, 0, 200, TimeUnit.MILLISECONDS, 
+						ScatterGather.FailurePolicy.PARTIAL);
+				final ScatterGather.Result<Integer> queuedResult = deadline.getInScopes(() -> {
+					slowShards.await(10, TimeUnit.SECONDS);
+					return 1;
+				}, shards);
+				
+				assertTrue(queuedResult.getResults().isEmpty());
+				assertEquals(shards.keySet(), queuedResult.getErrors().keySet());
+				for(Throwable error : queuedResult.getErrors().values()) {
+					assertTrue(error instanceof TimeoutException);
+				}
+			} finally {
+				slowShards.countDown();
+				singleExecutor.shutdownNow();
+			}
+			
+			assertNull(sessionManager.getCurrentSession());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 }
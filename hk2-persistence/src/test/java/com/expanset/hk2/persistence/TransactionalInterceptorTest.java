@@ -9,6 +9,7 @@ import java.util.List;
 
 import javax.inject.Inject;
 import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
 import javax.transaction.Transactional;
 import javax.transaction.Transactional.TxType;
 import javax.transaction.TransactionalException;
@@ -24,7 +25,9 @@ import org.jvnet.hk2.annotations.Contract;
 import org.jvnet.hk2.annotations.Service;
 
 import com.expanset.common.errors.MultiErrorException;
+import com.expanset.hk2.persistence.transactions.LocalTransactionManager;
 import com.expanset.hk2.persistence.transactions.LocalTransactionsBinder;
+import com.expanset.hk2.persistence.transactions.TransactionTimeout;
 
 public class TransactionalInterceptorTest {
 	
@@ -237,6 +240,25 @@ public class TransactionalInterceptorTest {
 		verify(transaction2, times(1)).rollback();		
 	}	
 	
+	@Test
+	public void threadTimeoutRestored() 
+			throws Throwable {
+		final LocalTransactionManager transactionManager = (LocalTransactionManager)
+				serviceLocator.getService(TransactionManager.class);
+		final TransactionalTest test = 
+				serviceLocator.getService(TransactionalTest.class);
+		
+		transactionManager.setTransactionTimeout(30);
+		try {
+			test.timeout();
+			
+			assertEquals(30, transactionManager.getTransactionTimeout());
+		} finally {
+			transactionManager.setTransactionTimeout(0);
+		}
+		verify(transaction1, times(1)).commit();
+	}	
+	
 	@Service
 	@Contract
 	@PerLookup
@@ -300,5 +322,11 @@ public class TransactionalInterceptorTest {
 		public void never1() 
 				throws Exception {	
 		}		
+
+		@Transactional
+		@TransactionTimeout(5)
+		public void timeout() 
+				throws Exception {	
+		}		
 	}
 }